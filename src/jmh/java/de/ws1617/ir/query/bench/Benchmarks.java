@@ -0,0 +1,41 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate
+ * is reported next to the time of each benchmark. Accepts the same
+ * arguments as the JMH runner, e.g. a regular expression selecting the
+ * benchmarks to run.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) {
+        try {
+            // build the synthetic index once before the forks use it
+            SyntheticIndex.getDirectory();
+            Options options = new OptionsBuilder()
+                    .parent(new CommandLineOptions(args))
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+        catch (CommandLineOptionException | IOException | RunnerException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import de.ws1617.ir.query.preproc.DataCompressor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the DataCompressor iterators decode the n-gram and
+ * docset files. The files are read into memory beforehand, so only the
+ * decoding is measured and not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    // the file to decode
+    @Param({"ngrams-1", "ngrams-2", "ngrams-3", "docsets"})
+    public String file;
+
+    private byte[] data;
+
+
+    @Setup
+    public void setup() throws IOException {
+        data = Files.readAllBytes(Paths.get(SyntheticIndex.getDirectory() + file));
+    }
+
+    /**
+     * @return the number of decoded n-grams or docsets
+     */
+    @Benchmark
+    public int decode(Blackhole bh) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int n = 0;
+        if (file.equals("docsets")) {
+            DataCompressor.DocSetFileIterator iter = DataCompressor.docSetIterator(in);
+            while (iter.advance()) {
+                bh.consume(iter.getTerm());
+                bh.consume(iter.getDocs());
+                n++;
+            }
+        }
+        else {
+            DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+            while (iter.advance()) {
+                bh.consume(iter.getNGram());
+                bh.consume(iter.getFrequency());
+                n++;
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the startup time, i.e. loading all data files of the index into
+ * a new QuerySuggestor as Main does. Every invocation loads the whole index,
+ * so it is measured in single shot mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LoadBenchmark {
+
+    @Setup
+    public void setup() throws IOException {
+        // build the index outside of the measurement
+        SyntheticIndex.getDirectory();
+    }
+
+    @Benchmark
+    public QuerySuggestor load() throws IOException {
+        return SyntheticIndex.load();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures complete suggestion requests on a fixed set of queries, with
+ * partial and complete last terms benchmarked separately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class QueryBenchmark {
+
+    // the number of queries in the query set
+    private static final int QUERIES = 512;
+    // the number of suggestions per query
+    private static final int RESULTS = 10;
+
+    private QuerySuggestor q;
+    private Query[] partial;
+    private Query[] complete;
+    private int nextPartial;
+    private int nextComplete;
+
+
+    @Setup
+    public void setup() throws IOException {
+        q = SyntheticIndex.load();
+        List<Query> partialQueries = new ArrayList<>();
+        List<Query> completeQueries = new ArrayList<>();
+        for (String query : SyntheticIndex.queries(2 * QUERIES)) {
+            Query parsed = Query.parse(query);
+            (parsed.isComplete() ? completeQueries : partialQueries).add(parsed);
+        }
+        partial = partialQueries.toArray(new Query[0]);
+        complete = completeQueries.toArray(new Query[0]);
+    }
+
+    @Benchmark
+    public List<String> queryPartial() {
+        Query query = partial[nextPartial];
+        nextPartial = (nextPartial + 1) % partial.length;
+        return q.queryPartial(query.getContext(), query.getLastTerm(), RESULTS);
+    }
+
+    @Benchmark
+    public List<String> queryComplete() {
+        Query query = complete[nextComplete];
+        nextComplete = (nextComplete + 1) % complete.length;
+        return q.queryComplete(query.getContext(), query.getLastTerm(), RESULTS);
+    }
+}
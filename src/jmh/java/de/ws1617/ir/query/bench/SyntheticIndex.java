@@ -0,0 +1,170 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.preproc.Trainer;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A small index trained on a generated corpus, so that the benchmarks can
+ * run without the Wikicorpus data. Word frequencies follow a Zipf
+ * distribution, and words are random letter sequences, so that prefixes
+ * of different lengths match very different numbers of words.
+ *
+ * The index is trained once and cached in the temporary folder, since
+ * every JMH fork runs in a new JVM. Set the system property bench.index
+ * to a folder with the data files to benchmark a real index instead.
+ */
+public final class SyntheticIndex {
+
+    // the number of distinct words
+    private static final int VOCABULARY = 20000;
+    // the number of documents
+    private static final int DOCS = 4000;
+    // the number of lines per document
+    private static final int LINES = 10;
+    // the number of words per line
+    private static final int WORDS = 15;
+    // the seed of the generator
+    private static final long SEED = 42;
+
+    // the index folder, once it has been built
+    private static String dir;
+
+
+    private SyntheticIndex() {}
+
+    /**
+     * @return the folder with the data files of the index, building the
+     * index first if necessary
+     * @throws IOException
+     */
+    public static synchronized String getDirectory() throws IOException {
+        if (dir != null)
+            return dir;
+        String index = System.getProperty("bench.index");
+        if (index != null) {
+            dir = index.endsWith(File.separator) ? index : index + File.separator;
+            return dir;
+        }
+        File folder = new File(System.getProperty("java.io.tmpdir"), "querysugg-bench-" + VOCABULARY + "-" + DOCS + "-" + SEED);
+        // the word ids are written last, so their presence marks a complete index
+        if (!new File(folder, "wordIDs").exists()) {
+            File tmp = new File(folder.getPath() + ".tmp");
+            tmp.mkdirs();
+            File corpus = new File(tmp, "corpus.txt");
+            writeCorpus(corpus);
+            String out = tmp.getPath() + File.separator;
+            Trainer.main(new String[] { "-in", corpus.getPath(), "-out", out, "-from", "1", "-to", "3", "-raw" });
+            corpus.delete();
+            if (!tmp.renameTo(folder) && !new File(folder, "wordIDs").exists())
+                throw new IOException("Could not create the index in " + folder);
+        }
+        dir = folder.getPath() + File.separator;
+        return dir;
+    }
+
+    /**
+     * Loads the index like Main does.
+     * @return a QuerySuggestor with the index
+     * @throws IOException
+     */
+    public static QuerySuggestor load() throws IOException {
+        return Main.load(getDirectory());
+    }
+
+    /**
+     * @return the words of the index, ordered by id
+     * @throws IOException
+     */
+    public static List<String> readWords() throws IOException {
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(getDirectory() + "wordIDs"), "UTF-8"))) {
+            return DataCompressor.readWordIDsToList(read);
+        }
+    }
+
+    /**
+     * Generates a fixed set of queries from the words of the index: half of
+     * them with a context word, half of them ending with a complete term.
+     * @param size the number of queries
+     * @return the queries
+     * @throws IOException
+     */
+    public static List<String> queries(int size) throws IOException {
+        List<String> words = readWords();
+        Random rnd = new Random(SEED);
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            // prefer frequent words, as users do
+            String word = words.get(zipf(rnd, words.size()));
+            String query = (i % 4 < 2) ? word.substring(0, 1 + rnd.nextInt(word.length())) : word + ' ';
+            if (i % 2 == 0)
+                query = words.get(zipf(rnd, words.size())) + ' ' + query;
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    /**
+     * Writes the generated corpus in the format of the preprocessed Wikicorpus.
+     * @param file the corpus file
+     * @throws IOException
+     */
+    private static void writeCorpus(File file) throws IOException {
+        Random rnd = new Random(SEED);
+        String[] vocabulary = new String[VOCABULARY];
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < VOCABULARY; i++) {
+            String word;
+            do {
+                StringBuilder s = new StringBuilder();
+                int length = 2 + rnd.nextInt(9);
+                for (int j = 0; j < length; j++)
+                    s.append((char) ('a' + Math.min(25, (int) (rnd.nextDouble() * rnd.nextDouble() * 26))));
+                word = s.toString();
+            } while (!seen.add(word));
+            vocabulary[i] = word;
+        }
+        try (PrintWriter writ = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+            for (int d = 0; d < DOCS; d++) {
+                writ.println("<newdoc>");
+                // each document has a topic of words that it repeats
+                int topic = rnd.nextInt(VOCABULARY);
+                for (int l = 0; l < LINES; l++) {
+                    StringBuilder line = new StringBuilder();
+                    for (int w = 0; w < WORDS; w++) {
+                        if (w > 0) line.append(' ');
+                        int word = zipf(rnd, VOCABULARY);
+                        if (rnd.nextInt(8) == 0)
+                            word = (topic + word % 50) % VOCABULARY;
+                        line.append(vocabulary[word]);
+                    }
+                    writ.println(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws an index from an approximate Zipf distribution.
+     * @param rnd the random generator
+     * @param n the number of indices
+     * @return an index between 0 and n-1, small ones being more frequent
+     */
+    private static int zipf(Random rnd, int n) {
+        return (int) Math.min(n - 1, Math.floor(Math.exp(rnd.nextDouble() * Math.log(n + 1)) - 1));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.bench;
+
+import de.ws1617.ir.query.rtrie.IntRTrieMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures exact lookups and prefix searches in the word trie for
+ * prefixes of different lengths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrieBenchmark {
+
+    // the number of looked up words
+    private static final int LOOKUPS = 1024;
+
+    // the length of the prefixes, 0 for complete words
+    @Param({"1", "2", "3", "5", "0"})
+    public int prefixLength;
+
+    private IntRTrieMap trie;
+    private String[] keys;
+    private int next;
+
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> words = SyntheticIndex.readWords();
+        TObjectIntMap<String> ids = new TObjectIntHashMap<>();
+        for (int i = 0; i < words.size(); i++)
+            ids.put(words.get(i), i);
+        trie = IntRTrieMap.constructTrie(ids);
+
+        // pick words evenly spread over the ids, as frequent words get
+        // small ids
+        keys = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            String word = words.get((int) ((long) i * words.size() / LOOKUPS));
+            keys[i] = (prefixLength == 0 || prefixLength >= word.length()) ? word : word.substring(0, prefixLength);
+        }
+    }
+
+    private String nextKey() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return keys[next];
+    }
+
+    @Benchmark
+    public int get() {
+        return trie.get(nextKey());
+    }
+
+    @Benchmark
+    public TIntSet getValuesWithPrefix() {
+        return trie.getValuesWithPrefix(nextKey());
+    }
+}
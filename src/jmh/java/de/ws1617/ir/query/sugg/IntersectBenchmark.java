@@ -0,0 +1,65 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the intersection of two sorted docsets for different ratios
+ * between the sizes of the docsets. It lives in the package of the
+ * QuerySuggestor to reach its package-private intersect method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntersectBenchmark {
+
+    // the number of documents in the collection
+    private static final int DOCS = 1000000;
+
+    // the size of the larger docset
+    @Param({"100000"})
+    public int size;
+
+    // the size of the larger docset divided by that of the smaller one
+    @Param({"1", "10", "100", "1000"})
+    public int ratio;
+
+    private TIntList small;
+    private int[] large;
+
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(42);
+        small = new TIntArrayList(randomDocSet(rnd, size / ratio));
+        large = randomDocSet(rnd, size);
+    }
+
+    /**
+     * @param rnd the random generator
+     * @param n the size of the docset
+     * @return a sorted docset with n distinct documents
+     */
+    private static int[] randomDocSet(Random rnd, int n) {
+        int[] docs = rnd.ints(0, DOCS).distinct().limit(n).toArray();
+        java.util.Arrays.sort(docs);
+        return docs;
+    }
+
+    @Benchmark
+    public TIntList intersect() {
+        return QuerySuggestor.intersect(small, large);
+    }
+}
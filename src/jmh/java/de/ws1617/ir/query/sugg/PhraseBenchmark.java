@@ -0,0 +1,90 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import de.ws1617.ir.query.bench.SyntheticIndex;
+import de.ws1617.ir.query.metrics.QueryMetrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the queries with a context word, whose phrases are correlated
+ * with the docset of the context, with and without skipping the phrases
+ * that cannot be among the top phrases. The setup checks that both make
+ * the same suggestions and prints the mean number of phrases correlated
+ * per query. It lives in the package of the QuerySuggestor to reach its
+ * package-private setExhaustive method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PhraseBenchmark {
+
+    // the number of queries in the query set
+    private static final int QUERIES = 512;
+    // the number of suggestions per query
+    private static final int RESULTS = 10;
+
+    // whether all phrases are correlated with the context
+    @Param({"false", "true"})
+    public boolean exhaustive;
+
+    private QuerySuggestor q;
+    private Query[] queries;
+    private int next;
+
+
+    @Setup
+    public void setup() throws IOException {
+        q = SyntheticIndex.load();
+        List<Query> withContext = new ArrayList<>();
+        for (String query : SyntheticIndex.queries(2 * QUERIES)) {
+            Query parsed = Query.parse(query);
+            if (!parsed.getContext().isEmpty())
+                withContext.add(parsed);
+        }
+        queries = withContext.toArray(new Query[0]);
+
+        List<List<String>> expected = suggestAll(true);
+        List<List<String>> actual = suggestAll(false);
+        if (!expected.equals(actual))
+            throw new IllegalStateException("Skipping phrases changes the suggestions.");
+        q.setExhaustive(exhaustive);
+    }
+
+    /**
+     * Makes suggestions for all queries and prints the mean number of
+     * phrases correlated per query.
+     * @param exhaustive whether all phrases are correlated with the context
+     * @return the suggestions for each query
+     */
+    private List<List<String>> suggestAll(boolean exhaustive) {
+        QueryMetrics metrics = new QueryMetrics(Long.MAX_VALUE / 1000000);
+        q.setExhaustive(exhaustive);
+        q.setMetrics(metrics);
+        List<List<String>> suggestions = new ArrayList<>();
+        for (Query query : queries)
+            suggestions.add(query.suggest(q, RESULTS));
+        q.setMetrics(null);
+        System.out.printf("%s: %.1f correlated phrases per query%n", exhaustive ? "exhaustive" : "early termination",
+                metrics.getCorrelatedPhrases().mean());
+        return suggestions;
+    }
+
+    @Benchmark
+    public List<String> suggest() {
+        Query query = queries[next];
+        next = (next + 1) % queries.length;
+        return query.suggest(q, RESULTS);
+    }
+}
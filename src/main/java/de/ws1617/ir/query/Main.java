@@ -5,12 +5,20 @@
 
 package de.ws1617.ir.query;
 
+import de.ws1617.ir.query.metrics.LoadEvent;
 import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.sugg.PrefixTable;
+import de.ws1617.ir.query.sugg.Query;
 import de.ws1617.ir.query.sugg.QuerySuggestor;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * This class accepts incomplete user queries and suggests possible
@@ -21,12 +29,14 @@ public class Main {
     // the number of suggestions
     private static final int NO_OF_RESULTS = 10;
     // the directory of the data files
-    private static final String DATA_DIR = "src/main/resources/";
+    public static final String DATA_DIR = "src/main/resources/";
+    // the name of the n-gram file of some order
+    private static final Pattern NGRAM_FILE = Pattern.compile("ngrams-(\\d+)");
 
 
     public static void main(String[] args) {
         // load all data files
-        QuerySuggestor q = load();
+        QuerySuggestor q = load(DATA_DIR);
 
         // start dialogue with user
         Scanner user = new Scanner(System.in);
@@ -35,33 +45,13 @@ public class Main {
         String query = user.nextLine().toLowerCase();
 
         while (!query.equals("-exit")) {
-            // checks whether the last word is a partial or complete term
-            boolean complete = query.charAt(query.length()-1) == ' ';
-            // end index of the query
-            int end = (complete) ? query.length()-1 : query.length();
-            // start index of last term
-            int split1 = query.lastIndexOf(' ', end-1);
-            // the last term
-            String qWord = query.substring(split1+1, end);
-            // the query term preceding the last term
-            String context = "";
-            // all other query terms entered so far
-            String greaterContext = "";
-            // get context if available
-            if (split1 > 0) {
-                int split2 = query.lastIndexOf(' ', split1-1);
-                context = query.substring(split2+1, split1);
-                // get greater context if available
-                if (split2 > 0) {
-                    greaterContext = query.substring(0, split2);
-                }
-            }
+            // split query into last term, context and greater context
+            Query parsed = Query.parse(query);
+            String greaterContext = parsed.getGreaterContext();
 
             // get query suggestions
             long start = System.currentTimeMillis();
-            List<String> c = (complete)
-                    ? q.queryComplete(context, qWord, NO_OF_RESULTS)
-                    : q.queryPartial(context, qWord, NO_OF_RESULTS);
+            List<String> c = parsed.suggest(q, NO_OF_RESULTS);
             long finish = System.currentTimeMillis() - start;
 
             // print suggestions
@@ -81,48 +71,131 @@ public class Main {
     }
 
 
-    private static QuerySuggestor load() {
+    /**
+     * Loads all data files from a directory into a QuerySuggestor.
+     * Exits if any of them cannot be read.
+     * @param dataDir the directory of the data files
+     * @return the QuerySuggestor
+     */
+    public static QuerySuggestor load(String dataDir) {
 
         try {
-            long start = System.currentTimeMillis();
-            
-            System.out.println("Loading word to id mappings...");
-            BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(DATA_DIR+"wordIDs"), "UTF-8"));
-            List<String> IDToWord = DataCompressor.readWordIDsToList(read);
-            read.close();
+            return read(dataDir);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
 
-            QuerySuggestor q = new QuerySuggestor(IDToWord);
+        return null;
+    }
 
-            System.out.println("Loading docsets...");
-            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(DATA_DIR+"docsets")));
-            q.addDocSets(DataCompressor.docSetIterator(in));
-            in.close();
+    /**
+     * Loads all data files from a directory into a QuerySuggestor.
+     * @param dataDir the directory of the data files
+     * @return the QuerySuggestor
+     * @throws IOException if any of the files cannot be read
+     */
+    public static QuerySuggestor read(String dataDir) throws IOException {
+        return read(dataDir, unigram -> true, true);
+    }
 
-            System.out.println("Loading unigrams...");
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(DATA_DIR+"ngrams-1")));
-            q.addUnigrams(DataCompressor.nGramIterator(in));
-            in.close();
+    /**
+     * Finds the n-gram files of all orders above 1 in a directory, i.e.
+     * all files named ngrams-<n>, whichever orders Trainer generated.
+     * @param dataDir the directory of the data files
+     * @return the orders of the n-gram files in ascending order
+     */
+    public static List<Integer> nGramOrders(String dataDir) {
+        List<Integer> orders = new ArrayList<>();
+        String[] files = new File(dataDir).list();
+        if (files != null) {
+            for (String file : files) {
+                Matcher m = NGRAM_FILE.matcher(file);
+                if (m.matches() && Integer.parseInt(m.group(1)) > 1)
+                    orders.add(Integer.parseInt(m.group(1)));
+            }
+        }
+        Collections.sort(orders);
+        return orders;
+    }
 
-            System.out.println("Loading bigrams...");
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(DATA_DIR+"ngrams-2")));
-            q.addNGrams(DataCompressor.nGramIterator(in));
-            in.close();
+    /**
+     * Loads the data files from a directory into a QuerySuggestor, but only
+     * the unigrams accepted by a filter and the n-grams containing them,
+     * e.g. for one shard of a sharded index. The dictionary and all docsets
+     * are loaded, since phrases and contexts may contain any word. Each
+     * phase is recorded as a LoadEvent if a flight recording enables it.
+     * @param dataDir the directory of the data files
+     * @param unigrams accepts the ids of the unigrams to load
+     * @return the QuerySuggestor
+     * @throws IOException if any of the files cannot be read
+     */
+    public static QuerySuggestor read(String dataDir, IntPredicate unigrams) throws IOException {
+        return read(dataDir, unigrams, false);
+    }
 
-            System.out.println("Loading trigrams...");
-            in = new DataInputStream(new BufferedInputStream(new FileInputStream(DATA_DIR+"ngrams-3")));
-            q.addNGrams(DataCompressor.nGramIterator(in));
+    /**
+     * @param dataDir the directory of the data files
+     * @param unigrams accepts the ids of the unigrams to load
+     * @param prefixes whether to load the precomputed suggestions for short
+     *                 prefixes, which are only valid for the whole index
+     * @return the QuerySuggestor
+     * @throws IOException if any of the files cannot be read
+     */
+    private static QuerySuggestor read(String dataDir, IntPredicate unigrams, boolean prefixes) throws IOException {
+        long start = System.currentTimeMillis();
+        
+        System.out.println("Loading word to id mappings...");
+        LoadEvent event = LoadEvent.start("word ids", dataDir+"wordIDs");
+        BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(dataDir+"wordIDs"), "UTF-8"));
+        List<String> IDToWord = DataCompressor.readWordIDsToList(read);
+        read.close();
+        event.finish(IDToWord.size());
+
+        QuerySuggestor q = new QuerySuggestor(IDToWord);
+
+        System.out.println("Loading docsets...");
+        event = LoadEvent.start("docsets", dataDir+"docsets");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir+"docsets")));
+        event.finish(q.addDocSets(DataCompressor.docSetIterator(in)));
+        in.close();
+
+        System.out.println("Loading unigrams...");
+        event = LoadEvent.start("unigrams", dataDir+"ngrams-1");
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir+"ngrams-1")));
+        event.finish(q.addUnigrams(DataCompressor.nGramIterator(in), unigrams));
+        in.close();
+
+        for (int n : nGramOrders(dataDir)) {
+            System.out.println("Loading " + n + "-grams...");
+            event = LoadEvent.start(n + "-grams", dataDir+"ngrams-"+n);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir+"ngrams-"+n)));
+            event.finish(q.addNGrams(DataCompressor.nGramIterator(in)));
             in.close();
-            
-            System.out.println("Launched in " + (System.currentTimeMillis() - start) + " ms.");
-
-            return q;
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+        if (new File(dataDir+"phrasesums").exists()) {
+            System.out.println("Loading phrase sums...");
+            event = LoadEvent.start("phrase sums", dataDir+"phrasesums");
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir+"phrasesums")));
+            event.finish(q.addPhraseSums(DataCompressor.nGramIterator(in)));
+            in.close();
         }
+        event = LoadEvent.start("sorting", null);
+        q.sortNGrams();
+        event.finish(0);
+        if (prefixes && new File(dataDir+PrefixTable.FILE).exists()) {
+            System.out.println("Loading precomputed prefixes...");
+            event = LoadEvent.start("prefixes", dataDir+PrefixTable.FILE);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir+PrefixTable.FILE)));
+            q.setPrefixTable(PrefixTable.read(in));
+            in.close();
+            event.finish(q.getPrefixTable().size());
+        }
+        
+        System.out.println("Launched in " + (System.currentTimeMillis() - start) + " ms.");
 
-        return null;
+        return q;
     }
 
 }
@@ -0,0 +1,114 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.load;
+
+import de.ws1617.ir.query.preproc.DataCompressor;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sequence of requests as a user typing queries would send them: every
+ * query is expanded into all of its prefixes, one per keystroke, e.g.
+ * "new york" into "n", "ne", "new", "new ", "new y", ... As in Main, the
+ * queries are converted to lower case, and a prefix ending with a space
+ * asks for suggestions for a complete term.
+ *
+ * The queries are either read from a query log with one query per line or
+ * synthesized from the vocabulary of an index, drawing words according to
+ * their frequency.
+ */
+public class Keystrokes {
+
+    // the maximum number of words of a synthesized query
+    private static final int MAX_WORDS = 3;
+
+
+    private Keystrokes() {}
+
+    /**
+     * Reads queries from a log and expands them into keystrokes.
+     * @param log a file with one query per line
+     * @return the keystrokes of all queries, in the order of the log
+     * @throws IOException
+     */
+    public static List<String> fromLog(String log) throws IOException {
+        List<String> keystrokes = new ArrayList<>();
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"))) {
+            for (String query = read.readLine(); query != null; query = read.readLine()) {
+                // as in Main, but without repeated spaces, which would
+                // only produce empty terms
+                query = query.trim().replaceAll("\\s+", " ").toLowerCase();
+                if (!query.isEmpty())
+                    expand(query, keystrokes);
+            }
+        }
+        return keystrokes;
+    }
+
+    /**
+     * Synthesizes queries of one to three words from the vocabulary of an
+     * index and expands them into keystrokes. Words are drawn according to
+     * their raw counts if the index contains them (see Trainer -raw), and
+     * according to their unigram weights otherwise.
+     * @param data the data folder of the index
+     * @param queries the number of queries
+     * @param seed the seed of the random generator
+     * @return the keystrokes of all queries
+     * @throws IOException
+     */
+    public static List<String> synthesize(String data, int queries, long seed) throws IOException {
+        List<String> words;
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(data + "wordIDs"), "UTF-8"))) {
+            words = DataCompressor.readWordIDsToList(read);
+        }
+
+        // the cumulative frequencies of the words
+        File counts = new File(data + "counts-1");
+        List<String> vocabulary = new ArrayList<>();
+        double[] cumulative = new double[words.size()];
+        double sum = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(counts.exists() ? counts : new File(data + "ngrams-1"))))) {
+            DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+            while (iter.advance()) {
+                if (iter.getFrequency() <= 0) continue;
+                sum += iter.getFrequency();
+                cumulative[vocabulary.size()] = sum;
+                vocabulary.add(words.get(iter.getNGram()[0]));
+            }
+        }
+        cumulative = Arrays.copyOf(cumulative, vocabulary.size());
+
+        Random random = new Random(seed);
+        List<String> keystrokes = new ArrayList<>();
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < queries && !vocabulary.isEmpty(); i++) {
+            query.setLength(0);
+            int length = 1 + random.nextInt(MAX_WORDS);
+            for (int w = 0; w < length; w++) {
+                int pos = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                if (pos < 0) pos = -pos - 1;
+                if (w > 0) query.append(' ');
+                query.append(vocabulary.get(Math.min(pos, vocabulary.size()-1)));
+            }
+            expand(query.toString(), keystrokes);
+        }
+        return keystrokes;
+    }
+
+    /**
+     * Adds all prefixes of a query to a list of keystrokes.
+     * @param query the query
+     * @param keystrokes the list of keystrokes
+     */
+    private static void expand(String query, List<String> keystrokes) {
+        for (int i = 1; i <= query.length(); i++)
+            keystrokes.add(query.substring(0, i));
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.load;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.metrics.Histogram;
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Replays keystrokes against a QuerySuggestor in this JVM or against a
+ * SuggestionServer. It accepts input of the form:
+ *
+ * -data <data folder> -url <server> -log <query log> -queries <n>
+ * -rate <requests per second> -concurrency <n> -threads <n>
+ * -seconds <n> -warmup <n> -results <n> -seed <n>
+ *
+ * The keystrokes are read from a query log with one query per line, or
+ * synthesized from the index in the data folder if no log is given (see
+ * Keystrokes). Without -url, the index is loaded into this JVM.
+ *
+ * With -rate, the load is open-loop: request i is due at i/rate seconds
+ * after the start, no matter how long earlier requests took, and its
+ * latency is measured from that due time. A stall therefore shows up in
+ * the latency of all requests that should have been sent during it,
+ * instead of silently lowering the request rate (coordinated omission).
+ * The requests are sent by a pool of threads, which has to be large enough
+ * to keep up with the rate. With -concurrency instead, a fixed number of
+ * clients send requests back to back (closed-loop).
+ *
+ * Besides throughput and latency percentiles, the GC pauses and the
+ * allocation rate of the sending threads in this JVM are reported, which
+ * only cover the QuerySuggestor if it runs in this JVM.
+ */
+public class LoadGenerator {
+
+    // the default number of sending threads in open-loop mode
+    private static final int DEFAULT_THREADS = 64;
+
+    // the keystrokes to send
+    private final List<String> keystrokes;
+    // the QuerySuggestor to query, null when querying a server
+    private final QuerySuggestor q;
+    // the URL to which the keystrokes are appended, null when querying locally
+    private final String base;
+    // the number of suggestions per request
+    private final int results;
+
+    // the time from the due time to the response in ns
+    private final Histogram latency;
+    // the time from sending a request to the response in ns
+    private final Histogram service;
+    // the GC pauses in ns
+    private final Histogram gcPauses;
+    // the number of failed requests
+    private final LongAdder errors;
+    // the bytes allocated by the sending threads
+    private final LongAdder allocated;
+    // the index of the next keystroke to send
+    private final AtomicLong next;
+    // the duration of the last run in ns, including the time to finish
+    // requests that were due before its end
+    private long elapsed;
+
+
+    /**
+     * @param keystrokes the keystrokes to send, in order
+     * @param q the QuerySuggestor to query, or null to query a server
+     * @param url the base URL of the server, e.g. http://localhost:8080
+     * @param results the number of suggestions per request
+     */
+    public LoadGenerator(List<String> keystrokes, QuerySuggestor q, String url, int results) {
+        this.keystrokes = keystrokes;
+        this.q = q;
+        this.base = (url == null) ? null : url + "/suggest?n=" + results + "&q=";
+        this.results = results;
+        this.latency = new Histogram();
+        this.service = new Histogram();
+        this.gcPauses = new Histogram();
+        this.errors = new LongAdder();
+        this.allocated = new LongAdder();
+        this.next = new AtomicLong();
+        listenToGC();
+    }
+
+    /**
+     * Sends requests at a fixed rate (open-loop).
+     * @param rate the number of requests per second
+     * @param threads the number of sending threads
+     * @param seconds the duration
+     */
+    public void runAtRate(double rate, int threads, int seconds) throws InterruptedException {
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        next.set(0);
+        run(threads, () -> {
+            while (true) {
+                long i = next.getAndIncrement();
+                long due = start + i * interval;
+                if (due >= end) return;
+                // wait for the due time; if it has passed already because
+                // all threads were busy, send immediately
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+                    LockSupport.parkNanos(wait);
+                send(keystrokes.get((int) (i % keystrokes.size())), due);
+            }
+        });
+    }
+
+    /**
+     * Sends requests from a fixed number of clients, each waiting for the
+     * response before sending the next request (closed-loop).
+     * @param clients the number of clients
+     * @param seconds the duration
+     */
+    public void runWithConcurrency(int clients, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        next.set(0);
+        run(clients, () -> {
+            while (System.nanoTime() < end) {
+                long i = next.getAndIncrement();
+                send(keystrokes.get((int) (i % keystrokes.size())), System.nanoTime());
+            }
+        });
+    }
+
+    /**
+     * Runs a task in several threads, recording the bytes they allocate.
+     * @param threads the number of threads
+     * @param task the task
+     */
+    private void run(int threads, Runnable task) throws InterruptedException {
+        long start = System.nanoTime();
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                long id = Thread.currentThread().getId();
+                long before = bean.getThreadAllocatedBytes(id);
+                task.run();
+                allocated.add(bean.getThreadAllocatedBytes(id) - before);
+            }, "load-" + t);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * Sends a single request and records its latency.
+     * @param keystroke the query typed so far
+     * @param due the time at which the request was due
+     */
+    private void send(String keystroke, long due) {
+        long start = System.nanoTime();
+        try {
+            if (q != null)
+                Query.parse(keystroke).suggest(q, results);
+            else if (get(base + URLEncoder.encode(keystroke, "UTF-8")) >= 400)
+                errors.increment();
+        }
+        catch (IOException | RuntimeException e) {
+            errors.increment();
+        }
+        long done = System.nanoTime();
+        latency.record(done - due);
+        service.record(done - start);
+    }
+
+    /**
+     * Sends a request and reads the complete response, so that the
+     * connection is returned to the keep-alive cache.
+     * @param url the URL
+     * @return the status code of the response
+     * @throws IOException
+     */
+    private static int get(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        int status = conn.getResponseCode();
+        try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            while (in != null && in.read(buffer) != -1);
+        }
+        return status;
+    }
+
+    /**
+     * Records the duration of every garbage collection in this JVM.
+     */
+    private void listenToGC() {
+        NotificationListener listener = (Notification notification, Object handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                gcPauses.record(info.getGcInfo().getDuration() * 1000000);
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            if (gc instanceof NotificationEmitter)
+                ((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * Discards all measurements, e.g. after a warmup.
+     */
+    public void reset() {
+        latency.reset();
+        service.reset();
+        gcPauses.reset();
+        errors.reset();
+        allocated.reset();
+    }
+
+    /**
+     * @return the measurements of the last run as text
+     */
+    public String getReport() {
+        double seconds = elapsed / 1e9;
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("requests: %d (%d errors), %.1f req/s%n", latency.count(), errors.sum(), latency.count() / seconds));
+        s.append(String.format("%-14s %9s %9s %9s %9s %9s %9s%n", "", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        appendRow(s, "latency (ms)", latency);
+        appendRow(s, "service (ms)", service);
+        appendRow(s, "gc pause (ms)", gcPauses);
+        s.append(String.format("gc: %d collections%n", gcPauses.count()));
+        s.append(String.format("allocation: %.1f MB/s%n", allocated.sum() / 1e6 / seconds));
+        return s.toString();
+    }
+
+    private static void appendRow(StringBuilder s, String name, Histogram h) {
+        s.append(String.format("%-14s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, h.mean() / 1e6,
+                h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6));
+    }
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        String url = null;
+        String log = null;
+        int queries = 10000;
+        double rate = 0;
+        int concurrency = 0;
+        int threads = DEFAULT_THREADS;
+        int seconds = 30;
+        int warmup = 10;
+        int results = 10;
+        long seed = 42;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-url": url = args[++i]; break;
+                case "-log": log = args[++i]; break;
+                case "-queries": queries = Integer.parseInt(args[++i]); break;
+                case "-rate": rate = Double.parseDouble(args[++i]); break;
+                case "-concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "-warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "-results": results = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+
+        // check if exactly one of rate and concurrency was provided
+        if ((rate > 0) == (concurrency > 0) || seconds < 1) {
+            System.err.println("Please specify either a rate or a concurrency.");
+            printParameters();
+            System.exit(1);
+        }
+
+        try {
+            List<String> keystrokes = (log != null) ? Keystrokes.fromLog(log) : Keystrokes.synthesize(data, queries, seed);
+            if (keystrokes.isEmpty()) {
+                System.err.println("No queries to send.");
+                System.exit(1);
+            }
+            QuerySuggestor q = (url == null) ? Main.load(data) : null;
+            LoadGenerator generator = new LoadGenerator(keystrokes, q, url, results);
+            System.out.println(keystrokes.size() + " keystrokes, " + ((rate > 0) ? rate + " req/s open-loop" : concurrency + " clients closed-loop"));
+
+            for (int phase = (warmup > 0) ? 0 : 1; phase < 2; phase++) {
+                int duration = (phase == 0) ? warmup : seconds;
+                if (rate > 0)
+                    generator.runAtRate(rate, threads, duration);
+                else
+                    generator.runWithConcurrency(concurrency, duration);
+                if (phase == 0)
+                    generator.reset();
+            }
+            System.out.print(generator.getReport());
+        }
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-url: Base URL of a SuggestionServer, e.g. http://localhost:8080 (optional, default: query in this JVM)");
+        System.err.println("\t-log: Query log with one query per line (optional, default: synthesize queries from the data files)");
+        System.err.println("\t-queries: Number of synthesized queries (optional, default: 10000)");
+        System.err.println("\t-rate: Requests per second, open-loop (either this or -concurrency)");
+        System.err.println("\t-concurrency: Number of clients, closed-loop (either this or -rate)");
+        System.err.println("\t-threads: Number of sending threads with -rate (optional, default: " + DEFAULT_THREADS + ")");
+        System.err.println("\t-seconds: Duration of the measurement (optional, default: 30)");
+        System.err.println("\t-warmup: Duration of the warmup (optional, default: 10)");
+        System.err.println("\t-results: Number of suggestions per request (optional, default: 10)");
+        System.err.println("\t-seed: Seed for synthesizing queries (optional, default: 42)");
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.rtrie.NGramTrie;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Predicts the heap an index will use from its data files, without
+ * loading it. It reads the files the way Main.read() loads them and
+ * returns a MemoryReport with the same structures and the same size model
+ * as QuerySuggestor.memoryReport(), so that the heap can be planned and
+ * compact representations can be chosen before an index is deployed. It
+ * accepts input of the form:
+ *
+ * -data <data folder> -load
+ *
+ * With -load, the index is loaded afterwards, and the prediction is
+ * compared to the report of the loaded index and to the heap usage
+ * measured before and after loading.
+ */
+public class HeapPredictor {
+
+    private HeapPredictor() {}
+
+    /**
+     * Predicts the heap used by an index.
+     * @param dataDir the directory of the data files
+     * @return the predicted report
+     * @throws IOException if any of the files cannot be read
+     */
+    public static MemoryReport predict(String dataDir) throws IOException {
+        MemoryReport report = new MemoryReport();
+
+        List<String> words;
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(dataDir + "wordIDs"), "UTF-8"))) {
+            words = DataCompressor.readWordIDsToList(read);
+        }
+        long dictionary = MemoryReport.arrayListBytes(words.size());
+        for (String word : words)
+            dictionary += MemoryReport.stringBytes(word);
+        report.add(MemoryReport.DICTIONARY, words.size(), "words", dictionary);
+
+        // the docsets are loaded before the unigrams, but reported after them
+        TIntHashSet terms = new TIntHashSet();
+        long postings = 0;
+        long postingBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir + "docsets")))) {
+            DataCompressor.DocSetFileIterator iter = DataCompressor.docSetIterator(in);
+            while (iter.advance()) {
+                terms.add(iter.getTerm());
+                postings += iter.getDocs().length;
+                postingBytes += MemoryReport.arrayBytes(iter.getDocs().length, 4);
+            }
+        }
+
+        // a Trove set grows like a Trove map with the same keys
+        TIntHashSet unigrams = new TIntHashSet();
+        List<String> unigramWords = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir + "ngrams-1")))) {
+            DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+            while (iter.advance()) {
+                int unigram = iter.getNGram()[0];
+                if (unigrams.add(unigram))
+                    unigramWords.add(words.get(unigram));
+            }
+        }
+        long nodes = trieNodes(unigramWords);
+        report.add(MemoryReport.TRIE, nodes, "nodes", nodes * MemoryReport.objectBytes(10, 4));
+        report.add(MemoryReport.UNIGRAMS, unigrams.size(), "unigrams", MemoryReport.troveMapBytes(unigrams.capacity(), 4, 8));
+
+        // the number of n-grams in the list of each unigram; the shared
+        // prefixes depend on all n-grams, so their trie is built, which
+        // takes a fraction of the heap of the index
+        TIntIntHashMap lists = new TIntIntHashMap();
+        NGramTrie trie = new NGramTrie();
+        for (int n : Main.nGramOrders(dataDir)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir + "ngrams-" + n)))) {
+                DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+                while (iter.advance()) {
+                    boolean suggestable = false;
+                    for (int word : iter.getNGram())
+                        suggestable |= unigrams.contains(word);
+                    if (!suggestable) continue;
+                    int count = trie.getNGramCount();
+                    trie.add(iter.getNGram(), iter.getFrequency());
+                    if (trie.getNGramCount() > count)
+                        for (int word : iter.getNGram())
+                            if (unigrams.contains(word))
+                                lists.adjustOrPutValue(word, 1, 1);
+                }
+            }
+        }
+        report.add(MemoryReport.NGRAMS, trie.size(), "nodes", MemoryReport.ngramTrieBytes(trie.size(), 0));
+        long references = 0;
+        long listBytes = MemoryReport.troveMapBytes(lists.capacity(), 4, MemoryReport.REFERENCE);
+        for (TIntIntIterator iter = lists.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            references += iter.value();
+            listBytes += MemoryReport.troveListBytes(iter.value());
+            listBytes += MemoryReport.arrayBytes(iter.value(), 8);
+        }
+        // the term to phrase probabilities of the sorted lists
+        listBytes += MemoryReport.troveMapBytes(lists.capacity(), 4, MemoryReport.REFERENCE);
+        // the sums of the pruned lists
+        if (new File(dataDir + "phrasesums").exists()) {
+            TIntHashSet sums = new TIntHashSet();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir + "phrasesums")))) {
+                DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+                while (iter.advance())
+                    if (unigrams.contains(iter.getNGram()[0]))
+                        sums.add(iter.getNGram()[0]);
+            }
+            if (!sums.isEmpty())
+                listBytes += MemoryReport.troveMapBytes(sums.capacity(), 4, 8);
+        }
+        report.add(MemoryReport.NGRAM_LISTS, references, "references", listBytes);
+
+        report.add(MemoryReport.DOCSET_MAP, terms.size(), "terms", MemoryReport.troveMapBytes(terms.capacity(), 4, MemoryReport.REFERENCE));
+        report.add(MemoryReport.POSTINGS, postings, "postings", postingBytes);
+
+        return report;
+    }
+
+    /**
+     * Counts the nodes of a ternary search trie containing some words,
+     * which has one node per distinct non-empty prefix of the words,
+     * regardless of the order of insertion.
+     * @param words the words
+     * @return the number of nodes
+     */
+    static long trieNodes(List<String> words) {
+        List<String> sorted = new ArrayList<>(words);
+        Collections.sort(sorted);
+        long nodes = 0;
+        String previous = "";
+        for (String word : sorted) {
+            int common = 0;
+            while (common < word.length() && common < previous.length() && word.charAt(common) == previous.charAt(common))
+                common++;
+            nodes += word.length() - common;
+            previous = word;
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the heap in use after a full garbage collection in bytes
+     */
+    private static long usedHeapAfterGC() {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        boolean load = false;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-load": load = true; break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+
+        try {
+            MemoryReport predicted = predict(data);
+            System.out.println("Predicted heap usage of the index in " + data + ":");
+            System.out.print(predicted);
+            if (load) {
+                long before = usedHeapAfterGC();
+                QuerySuggestor q = Main.read(data);
+                long measured = usedHeapAfterGC() - before;
+                MemoryReport actual = q.memoryReport();
+                System.out.println();
+                System.out.println("Heap usage of the loaded index:");
+                System.out.print(actual);
+                System.out.println();
+                System.out.printf("Predicted %.1f MB, loaded %.1f MB, measured %.1f MB after a full GC%n",
+                        predicted.getTotalBytes() / 1048576.0, actual.getTotalBytes() / 1048576.0, measured / 1048576.0);
+                // keep the index reachable until it has been measured
+                System.out.println("Index with " + q.getUnigramCount() + " unigrams.");
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-load: Also load the index and compare the prediction to its actual size (optional)");
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values with a bounded
+ * relative error, similar to an HdrHistogram. Values below 64 are counted
+ * exactly; larger values are counted in buckets that split each power of
+ * two into 64 sub-buckets, i.e. the error of a reported value is at most
+ * 1/64 (about 1.6%). Values are recorded with a single atomic increment,
+ * so the histogram can be shared by any number of threads.
+ */
+public class Histogram {
+
+    // the number of bits used to split a power of two
+    private static final int SUB_BITS = 6;
+    // the number of sub-buckets per power of two
+    private static final int SUB = 1 << SUB_BITS;
+    // the largest power of two that is recorded; larger values are clamped
+    private static final int MAX_EXP = 40;
+
+    // the counts of the buckets
+    private final AtomicLongArray counts;
+    // the number of recorded values
+    private final LongAdder count;
+    // the sum of all recorded values
+    private final LongAdder sum;
+    // the largest recorded value
+    private final AtomicLong max;
+
+
+    public Histogram() {
+        this.counts = new AtomicLongArray(SUB + (MAX_EXP - SUB_BITS + 1) * SUB);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a value.
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(Math.min(value, (1L << (MAX_EXP+1)) - 1)));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of all recorded values, 0 if there are none
+     */
+    public double mean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : sum.sum() / (double) n;
+    }
+
+    /**
+     * @return the largest recorded value
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value below or at which a given percentage of all recorded
+     * values lie.
+     * @param percentile the percentage, between 0 and 100
+     * @return the (approximate) value at that percentile, 0 if no values
+     * were recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(value(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Removes all recorded values. Values recorded concurrently may
+     * partly remain.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @param value a value
+     * @return the index of the bucket counting the value
+     */
+    private static int index(long value) {
+        if (value < SUB)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return SUB + (exp - SUB_BITS) * SUB + sub;
+    }
+
+    /**
+     * @param index the index of a bucket
+     * @return the value in the middle of the bucket
+     */
+    private static long value(int index) {
+        if (index < SUB)
+            return index;
+        int shift = (index - SUB) / SUB;
+        int sub = (index - SUB) % SUB;
+        long lower = ((long) (SUB + sub)) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the memory report of an index through JMX. The report is
+ * computed whenever it is read, so that it always describes the index
+ * currently in use.
+ */
+public class IndexMemory implements IndexMemoryMXBean {
+
+    // the name under which the report is registered with JMX
+    public static final String JMX_NAME = "de.ws1617.ir.query:type=IndexMemory";
+
+    // computes the report of the current index
+    private final Supplier<MemoryReport> reports;
+
+
+    /**
+     * @param reports computes the report of the current index
+     */
+    public IndexMemory(Supplier<MemoryReport> reports) {
+        this.reports = reports;
+    }
+
+    /**
+     * Registers the report with the platform MBean server.
+     * @throws JMException if it cannot be registered
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(JMX_NAME));
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return reports.get().getTotalBytes();
+    }
+
+    @Override
+    public Map<String, Long> getBytes() {
+        return reports.get().getBytes();
+    }
+
+    @Override
+    public Map<String, Long> getEntries() {
+        return reports.get().getEntries();
+    }
+
+    @Override
+    public String getReport() {
+        return reports.get().toString();
+    }
+}
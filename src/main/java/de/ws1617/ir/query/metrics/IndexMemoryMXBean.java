@@ -0,0 +1,18 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the MemoryReport of the index a server uses.
+ */
+public interface IndexMemoryMXBean {
+    long getTotalBytes();
+    Map<String, Long> getBytes();
+    Map<String, Long> getEntries();
+    String getReport();
+}
@@ -0,0 +1,71 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.File;
+
+/**
+ * A JDK Flight Recorder event for a phase of loading an index (see
+ * Main.read()): reading one of the data files, or sorting the n-grams
+ * afterwards. Like QueryEvent, it is cheap unless a recording enables it.
+ */
+@Name("de.ws1617.ir.query.Load")
+@Label("Index Load Phase")
+@Category("Query Suggestion")
+@Description("A phase of loading an index with the records and bytes it read")
+@StackTrace(false)
+public class LoadEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("File")
+    String file;
+
+    @Label("Records")
+    @Description("Number of words, docsets or n-grams read, 0 for phases without a file")
+    long records;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytes;
+
+
+    /**
+     * Starts the event of a phase.
+     * @param phase the name of the phase
+     * @param file the data file read in the phase, null if none
+     * @return the started event
+     */
+    public static LoadEvent start(String phase, String file) {
+        LoadEvent event = new LoadEvent();
+        event.phase = phase;
+        event.file = file;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a phase and commits it. The data file is read
+     * completely in its phase, so its length is the number of bytes read.
+     * @param records the number of records read
+     */
+    public void finish(long records) {
+        end();
+        if (!shouldCommit()) return;
+        this.records = records;
+        this.bytes = (file == null) ? 0 : new File(file).length();
+        commit();
+    }
+}
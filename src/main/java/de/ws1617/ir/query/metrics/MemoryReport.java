@@ -0,0 +1,301 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An estimate of the heap used by the structures of an index, with the
+ * number of entries of each structure. The estimates follow the object
+ * layout of a 64-bit HotSpot JVM: object headers, references (compressed
+ * if the JVM uses compressed oops), fields and alignment to 8 bytes, and
+ * the actual capacity of growing arrays such as those of ArrayLists and
+ * Trove hash maps.
+ *
+ * A report is either computed from a loaded index (see
+ * QuerySuggestor.memoryReport()) or predicted from the index files before
+ * loading them (see HeapPredictor); both use the same structure names and
+ * the same size model.
+ */
+public class MemoryReport {
+
+    // the names of the structures of an index
+    public static final String DICTIONARY = "dictionary";
+    public static final String TRIE = "trie";
+    public static final String UNIGRAMS = "unigrams";
+    public static final String NGRAMS = "n-grams";
+    public static final String NGRAM_LISTS = "n-gram lists";
+    public static final String DOCSET_MAP = "docset map";
+    public static final String POSTINGS = "postings";
+    public static final String PAIR_INDEX = "pair index";
+    public static final String SKETCHES = "sketches";
+    public static final String FOLDED_INDEX = "folded index";
+    public static final String PREFIX_TABLE = "prefix table";
+
+    // the size of a reference in bytes
+    public static final int REFERENCE;
+    // the size of an object header in bytes
+    public static final int HEADER;
+    // the size of an array header including its length in bytes
+    public static final int ARRAY_HEADER;
+    // whether strings store Latin-1 characters in one byte
+    private static final boolean COMPACT_STRINGS = !System.getProperty("java.specification.version").startsWith("1.");
+
+    static {
+        boolean compressed = true;
+        try {
+            HotSpotDiagnosticMXBean hotspot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressed = Boolean.parseBoolean(hotspot.getVMOption("UseCompressedOops").getValue());
+        }
+        catch (RuntimeException e) {
+            // not a HotSpot JVM, assume the default of heaps below 32 GB
+        }
+        REFERENCE = compressed ? 4 : 8;
+        HEADER = compressed ? 12 : 16;
+        ARRAY_HEADER = compressed ? 16 : 24;
+    }
+
+    // the structures in the order they were added
+    private final List<Structure> structures;
+
+
+    public MemoryReport() {
+        this.structures = new ArrayList<>();
+    }
+
+    /**
+     * Adds a structure to this report.
+     * @param name the name of the structure
+     * @param entries the number of entries
+     * @param unit what the entries are, e.g. "nodes"
+     * @param bytes the estimated size in bytes
+     */
+    public void add(String name, long entries, String unit, long bytes) {
+        structures.add(new Structure(name, entries, unit, bytes));
+    }
+
+    /**
+     * @return the structures of this report
+     */
+    public List<Structure> getStructures() {
+        return Collections.unmodifiableList(structures);
+    }
+
+    /**
+     * @param name the name of a structure
+     * @return the structure, null if it is not part of this report
+     */
+    public Structure getStructure(String name) {
+        for (Structure structure : structures)
+            if (structure.name.equals(name))
+                return structure;
+        return null;
+    }
+
+    /**
+     * @return the estimated size of all structures in bytes
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (Structure structure : structures)
+            total += structure.bytes;
+        return total;
+    }
+
+    /**
+     * @return the estimated size of each structure in bytes
+     */
+    public Map<String, Long> getBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        for (Structure structure : structures)
+            bytes.put(structure.name, structure.bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the number of entries of each structure
+     */
+    public Map<String, Long> getEntries() {
+        Map<String, Long> entries = new LinkedHashMap<>();
+        for (Structure structure : structures)
+            entries.put(structure.name, structure.entries);
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        long total = getTotalBytes();
+        s.append(String.format("%-14s %14s %-12s %12s %6s%n", "structure", "entries", "", "MB", "share"));
+        for (Structure structure : structures)
+            s.append(String.format("%-14s %14d %-12s %12.1f %5.1f%%%n", structure.name, structure.entries, structure.unit,
+                    structure.bytes / 1048576.0, (total == 0) ? 0 : 100.0 * structure.bytes / total));
+        s.append(String.format("%-14s %14s %-12s %12.1f %5.1f%%%n", "total", "", "", total / 1048576.0, 100.0));
+        return s.toString();
+    }
+
+
+    /**
+     * @param bytes a size in bytes
+     * @return the size rounded up to the object alignment of 8 bytes
+     */
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @param primitiveBytes the size of all primitive fields in bytes
+     * @param references the number of reference fields, including the
+     * reference to the enclosing instance of inner classes
+     * @return the size of an object with these fields in bytes
+     */
+    public static long objectBytes(int primitiveBytes, int references) {
+        return align(HEADER + primitiveBytes + (long) references * REFERENCE);
+    }
+
+    /**
+     * @param length the length of an array
+     * @param elementBytes the size of an element in bytes
+     * @return the size of the array in bytes
+     */
+    public static long arrayBytes(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    /**
+     * @param length the length of an array of references
+     * @return the size of the array in bytes
+     */
+    public static long referenceArrayBytes(long length) {
+        return arrayBytes(length, REFERENCE);
+    }
+
+    /**
+     * @param s a string
+     * @return the size of the string and its character array in bytes
+     */
+    public static long stringBytes(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++)
+            latin1 = s.charAt(i) <= 0xFF;
+        return stringBytes(s.length(), latin1);
+    }
+
+    /**
+     * @param length the length of a string
+     * @param latin1 whether all of its characters are Latin-1 characters
+     * @return the size of the string and its character array in bytes
+     */
+    public static long stringBytes(int length, boolean latin1) {
+        // the hash, and the coder and whether the hash is zero in compact strings
+        long string = COMPACT_STRINGS ? objectBytes(6, 1) : objectBytes(4, 1);
+        return string + arrayBytes(length, (COMPACT_STRINGS && latin1) ? 1 : 2);
+    }
+
+    /**
+     * @param size the size of an ArrayList filled by adding elements
+     * @return the length of its array
+     */
+    public static int arrayListCapacity(int size) {
+        if (size == 0)
+            return 0;
+        int capacity = 10;
+        while (capacity < size)
+            capacity += capacity >> 1;
+        return capacity;
+    }
+
+    /**
+     * @param size the size of an ArrayList filled by adding elements
+     * @return the size of the list and its array in bytes, not including
+     * the elements
+     */
+    public static long arrayListBytes(int size) {
+        // size, modCount and the array
+        long list = objectBytes(8, 1);
+        return (size == 0) ? list : list + referenceArrayBytes(arrayListCapacity(size));
+    }
+
+    /**
+     * @param size the size of a Trove list of ints trimmed to its size
+     * @return the size of the list and its array in bytes
+     */
+    public static long troveListBytes(int size) {
+        // the array, its used size and the no entry value
+        return objectBytes(8, 1) + arrayBytes(size, 4);
+    }
+
+    /**
+     * @param nodes the number of nodes of an NGramTrie trimmed to its size
+     * @param indexCapacity the capacity of the index of its children, 0 if
+     *                      it has been dropped
+     * @return the size of the trie in bytes
+     */
+    public static long ngramTrieBytes(int nodes, int indexCapacity) {
+        // the word, the parent and the frequency of each node in three
+        // Trove lists, and the count of n-grams
+        long trie = objectBytes(4, 4) + 2 * troveListBytes(nodes) + objectBytes(12, 1) + arrayBytes(nodes, 8);
+        return (indexCapacity == 0) ? trie : trie + troveMapBytes(indexCapacity, 8, 4);
+    }
+
+    /**
+     * @param capacity the capacity of a Trove hash map with primitive keys
+     * @param keyBytes the size of a key in bytes
+     * @param valueBytes the size of a value in bytes
+     * @return the size of the map and its arrays in bytes, not including
+     * the objects its values refer to
+     */
+    public static long troveMapBytes(int capacity, int keyBytes, int valueBytes) {
+        // load factors, sizes, free entries, no-entry values and the arrays
+        long map = objectBytes(36, 3);
+        return map + arrayBytes(capacity, keyBytes) + arrayBytes(capacity, valueBytes) + arrayBytes(capacity, 1);
+    }
+
+
+    /**
+     * The estimated size and the number of entries of a structure.
+     */
+    public static class Structure {
+        // the name of the structure
+        private final String name;
+        // the number of entries
+        private final long entries;
+        // what the entries are
+        private final String unit;
+        // the estimated size in bytes
+        private final long bytes;
+
+        private Structure(String name, long entries, String unit, long bytes) {
+            this.name = name;
+            this.entries = entries;
+            this.unit = unit;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
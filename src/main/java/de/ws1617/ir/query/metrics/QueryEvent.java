@@ -0,0 +1,126 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JDK Flight Recorder event for a query, spanning from its start to the
+ * end of its trace (see QueryTrace), with the time spent in each stage and
+ * the number of candidates. The query terms themselves are not recorded.
+ * Queries are only traced for the event while a recording enables it (see
+ * querysugg.jfc), and no stack trace is taken, so that the event can stay
+ * enabled in production; a threshold records slow queries only.
+ */
+@Name("de.ws1617.ir.query.Query")
+@Label("Query")
+@Category("Query Suggestion")
+@Description("A suggestion query with the time spent in each stage")
+@StackTrace(false)
+public class QueryEvent extends Event {
+
+    // the type of this event, to check whether a recording enables it
+    private static final EventType TYPE = EventType.getEventType(QueryEvent.class);
+
+    @Label("Kind")
+    @Description("Partial or complete last query term")
+    String kind;
+
+    @Label("Prefix Length")
+    @Description("Number of characters of the last query term")
+    int prefixLength;
+
+    @Label("Context Terms")
+    int contextTerms;
+
+    @Label("Completions")
+    @Description("Number of completions matching the prefix")
+    int completions;
+
+    @Label("Selected Completions")
+    int selectedCompletions;
+
+    @Label("Phrases")
+    @Description("Number of candidate phrases")
+    int phrases;
+
+    @Label("Correlated Phrases")
+    int correlatedPhrases;
+
+    @Label("Strategy")
+    @Description("Whether phrases, for too many phrases the completions themselves, or precomputed suggestions were suggested")
+    String strategy;
+
+    @Label("Degraded Stages")
+    @Description("Stages that returned degraded results to meet a deadline, empty if none")
+    String degraded;
+
+    @Label("Trie Lookup")
+    @Timespan(Timespan.NANOSECONDS)
+    long trieLookup;
+
+    @Label("Completion Ranking")
+    @Timespan(Timespan.NANOSECONDS)
+    long completionRanking;
+
+    @Label("Phrase Gathering")
+    @Timespan(Timespan.NANOSECONDS)
+    long phraseGathering;
+
+    @Label("Intersection")
+    @Description("Time spent intersecting docsets, part of completion ranking and phrase gathering")
+    @Timespan(Timespan.NANOSECONDS)
+    long intersection;
+
+    @Label("Top K")
+    @Timespan(Timespan.NANOSECONDS)
+    long topK;
+
+    @Label("Translation")
+    @Timespan(Timespan.NANOSECONDS)
+    long translation;
+
+
+    /**
+     * @return whether any recording enables this event
+     */
+    public static boolean isRecorded() {
+        return TYPE.isEnabled();
+    }
+
+    /**
+     * Completes the event with the results of a finished trace and
+     * commits it, unless its duration is below the threshold.
+     * @param trace the trace of the query
+     */
+    void commit(QueryTrace trace) {
+        end();
+        if (!shouldCommit()) return;
+        kind = trace.getKind();
+        prefixLength = trace.getTerm().length();
+        contextTerms = trace.getContext().isEmpty() ? 0 : trace.getContext().split(" ").length;
+        completions = trace.getCompletions();
+        selectedCompletions = trace.getSelectedCompletions();
+        phrases = trace.getPhrases();
+        correlatedPhrases = trace.getCorrelatedPhrases();
+        strategy = trace.isPrecomputed() ? "precomputed" : (trace.isTooManyPhrases() ? "completions" : "phrases");
+        degraded = trace.isDegraded() ? trace.getDegradedStages().toString().toLowerCase() : "";
+        trieLookup = trace.getNanos(QueryTrace.Stage.TRIE_LOOKUP);
+        completionRanking = trace.getNanos(QueryTrace.Stage.COMPLETION_RANKING);
+        phraseGathering = trace.getNanos(QueryTrace.Stage.PHRASE_GATHERING);
+        intersection = trace.getNanos(QueryTrace.Stage.INTERSECTION);
+        topK = trace.getNanos(QueryTrace.Stage.TOP_K);
+        translation = trace.getNanos(QueryTrace.Stage.TRANSLATION);
+        commit();
+    }
+}
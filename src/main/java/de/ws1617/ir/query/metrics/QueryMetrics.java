@@ -0,0 +1,260 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the traces of all queries of a QuerySuggestor in histograms of
+ * the time spent in each stage and of the number of candidates. Queries
+ * that take longer than a threshold are written to a slow query log with
+ * their complete trace. The metrics can be read through JMX or dumped as
+ * text.
+ */
+public class QueryMetrics implements QueryMetricsMXBean {
+
+    // the name under which the metrics are registered with JMX
+    public static final String JMX_NAME = "de.ws1617.ir.query:type=QueryMetrics";
+
+    // the time spent in each stage in ns
+    private final Histogram[] stages;
+    // the number of completions matching the prefix
+    private final Histogram completions;
+    // the number of completions selected for phrase gathering
+    private final Histogram selectedCompletions;
+    // the number of candidate phrases
+    private final Histogram phrases;
+    // the number of phrases correlated with the context
+    private final Histogram correlatedPhrases;
+    // the number of queries that used completions instead of phrases
+    private final LongAdder tooManyPhrases;
+    // the number of slow queries
+    private final LongAdder slowQueries;
+    // the number of queries with degraded results
+    private final LongAdder degradedQueries;
+    // the number of queries degraded in each stage
+    private final LongAdder[] degradedStages;
+    // the number of queries cancelled before they finished
+    private final LongAdder cancelledQueries;
+
+    // the threshold above which queries are logged in ns
+    private volatile long slowThreshold;
+    // the slow query log
+    private final PrintStream slowLog;
+
+
+    /**
+     * Creates metrics that log slow queries to System.err.
+     * @param slowThresholdMillis the threshold above which queries are logged
+     */
+    public QueryMetrics(long slowThresholdMillis) {
+        this(slowThresholdMillis, System.err);
+    }
+
+    /**
+     * @param slowThresholdMillis the threshold above which queries are logged
+     * @param slowLog the slow query log
+     */
+    public QueryMetrics(long slowThresholdMillis, PrintStream slowLog) {
+        this.stages = new Histogram[QueryTrace.Stage.values().length];
+        for (int i = 0; i < stages.length; i++)
+            stages[i] = new Histogram();
+        this.completions = new Histogram();
+        this.selectedCompletions = new Histogram();
+        this.phrases = new Histogram();
+        this.correlatedPhrases = new Histogram();
+        this.tooManyPhrases = new LongAdder();
+        this.slowQueries = new LongAdder();
+        this.degradedQueries = new LongAdder();
+        this.degradedStages = new LongAdder[QueryTrace.Stage.values().length];
+        for (int i = 0; i < degradedStages.length; i++)
+            degradedStages[i] = new LongAdder();
+        this.cancelledQueries = new LongAdder();
+        this.slowThreshold = slowThresholdMillis * 1000000;
+        this.slowLog = slowLog;
+    }
+
+    /**
+     * Records a finished query.
+     * @param trace the trace of the query
+     */
+    public void record(QueryTrace trace) {
+        if (!trace.isEnabled()) return;
+        for (QueryTrace.Stage stage : QueryTrace.Stage.values())
+            stages[stage.ordinal()].record(trace.getNanos(stage));
+        completions.record(trace.getCompletions());
+        selectedCompletions.record(trace.getSelectedCompletions());
+        phrases.record(trace.getPhrases());
+        correlatedPhrases.record(trace.getCorrelatedPhrases());
+        if (trace.isTooManyPhrases())
+            tooManyPhrases.increment();
+        if (trace.isDegraded()) {
+            degradedQueries.increment();
+            for (QueryTrace.Stage stage : trace.getDegradedStages())
+                degradedStages[stage.ordinal()].increment();
+        }
+        if (trace.getNanos(QueryTrace.Stage.TOTAL) > slowThreshold) {
+            slowQueries.increment();
+            slowLog.println("Slow query: " + trace);
+        }
+    }
+
+    /**
+     * Records a query that was cancelled before it finished, e.g. because
+     * it was superseded by a later query of the same session. Cancelled
+     * queries are not part of the other metrics.
+     */
+    public void recordCancelled() {
+        cancelledQueries.increment();
+    }
+
+    /**
+     * @param stage a stage
+     * @return the histogram of the time spent in that stage in ns
+     */
+    public Histogram getHistogram(QueryTrace.Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * @return the histogram of the number of phrases per query whose
+     * docsets were intersected with the context
+     */
+    public Histogram getCorrelatedPhrases() {
+        return correlatedPhrases;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     * @throws JMException if they cannot be registered
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(JMX_NAME));
+    }
+
+    @Override
+    public long getQueryCount() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].count();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return slowQueries.sum();
+    }
+
+    @Override
+    public long getTooManyPhrasesCount() {
+        return tooManyPhrases.sum();
+    }
+
+    @Override
+    public long getDegradedCount() {
+        return degradedQueries.sum();
+    }
+
+    @Override
+    public double getDegradedRate() {
+        long queries = getQueryCount();
+        return (queries == 0) ? 0 : degradedQueries.sum() / (double) queries;
+    }
+
+    /**
+     * @param stage a stage
+     * @return the number of queries that returned degraded results in that stage
+     */
+    public long getDegradedCount(QueryTrace.Stage stage) {
+        return degradedStages[stage.ordinal()].sum();
+    }
+
+    @Override
+    public long getCancelledCount() {
+        return cancelledQueries.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].mean() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].percentile(50) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].percentile(99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].percentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return stages[QueryTrace.Stage.TOTAL.ordinal()].max() / 1e6;
+    }
+
+    @Override
+    public long getSlowQueryThresholdMillis() {
+        return slowThreshold / 1000000;
+    }
+
+    @Override
+    public void setSlowQueryThresholdMillis(long threshold) {
+        this.slowThreshold = threshold * 1000000;
+    }
+
+    /**
+     * @return the percentiles of all histograms as text, times in microseconds
+     */
+    @Override
+    public String getReport() {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%-24s %10s %10s %10s %10s %10s %10s%n", "", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (QueryTrace.Stage stage : QueryTrace.Stage.values())
+            appendRow(s, stage.name().toLowerCase() + " (us)", stages[stage.ordinal()], 1000);
+        appendRow(s, "completions", completions, 1);
+        appendRow(s, "selected completions", selectedCompletions, 1);
+        appendRow(s, "phrases", phrases, 1);
+        appendRow(s, "correlated phrases", correlatedPhrases, 1);
+        s.append("too many phrases: ").append(getTooManyPhrasesCount()).append(System.lineSeparator());
+        s.append(String.format("degraded: %d (%.2f%%)", getDegradedCount(), 100 * getDegradedRate()));
+        for (QueryTrace.Stage stage : QueryTrace.Stage.values())
+            if (getDegradedCount(stage) > 0)
+                s.append(", ").append(stage.name().toLowerCase()).append(' ').append(getDegradedCount(stage));
+        s.append(System.lineSeparator());
+        s.append("cancelled: ").append(getCancelledCount()).append(System.lineSeparator());
+        s.append("slow queries (> ").append(getSlowQueryThresholdMillis()).append(" ms): ").append(getSlowQueryCount()).append(System.lineSeparator());
+        return s.toString();
+    }
+
+    private static void appendRow(StringBuilder s, String name, Histogram h, long unit) {
+        s.append(String.format("%-24s %10d %10.1f %10d %10d %10d %10d%n", name, h.count(), h.mean() / unit,
+                h.percentile(50) / unit, h.percentile(99) / unit, h.percentile(99.9) / unit, h.max() / unit));
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram h : stages)
+            h.reset();
+        completions.reset();
+        selectedCompletions.reset();
+        phrases.reset();
+        correlatedPhrases.reset();
+        tooManyPhrases.reset();
+        slowQueries.reset();
+        degradedQueries.reset();
+        for (LongAdder a : degradedStages)
+            a.reset();
+        cancelledQueries.reset();
+    }
+}
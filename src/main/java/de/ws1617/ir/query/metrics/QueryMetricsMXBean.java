@@ -0,0 +1,27 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+/**
+ * The JMX view of QueryMetrics.
+ */
+public interface QueryMetricsMXBean {
+    long getQueryCount();
+    long getSlowQueryCount();
+    long getTooManyPhrasesCount();
+    long getDegradedCount();
+    double getDegradedRate();
+    long getCancelledCount();
+    double getMeanMillis();
+    double getP50Millis();
+    double getP99Millis();
+    double getP999Millis();
+    double getMaxMillis();
+    long getSlowQueryThresholdMillis();
+    void setSlowQueryThresholdMillis(long threshold);
+    String getReport();
+    void reset();
+}
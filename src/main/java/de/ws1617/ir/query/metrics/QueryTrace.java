@@ -0,0 +1,235 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.metrics;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Records the time spent in each stage of a single query and the number
+ * of candidates considered along the way. A trace is only used by the
+ * thread executing the query and reported to QueryMetrics at its end.
+ *
+ * The stages are timed with laps, i.e. each call of lap() attributes the
+ * time since the previous one to a stage. Intersections happen within the
+ * completion ranking and phrase gathering stages, so their time is recorded
+ * separately with add() and is included in the time of those stages.
+ *
+ * While a flight recording enables QueryEvent, each trace also records
+ * that event, which is committed at the end of the trace.
+ */
+public class QueryTrace {
+
+    /**
+     * The stages of a query.
+     */
+    public enum Stage {
+        TRIE_LOOKUP, COMPLETION_RANKING, PHRASE_GATHERING, INTERSECTION, TOP_K, TRANSLATION, TOTAL
+    }
+
+    /**
+     * A trace that does not record anything, used if metrics are disabled.
+     */
+    public static final QueryTrace DISABLED = new QueryTrace(null, null, null, false);
+
+    // whether this trace records anything
+    private final boolean enabled;
+    // the kind of query, its context and its last term
+    private final String kind;
+    private final String context;
+    private final String term;
+
+    // the time at which the query started
+    private final long start;
+    // the flight recorder event of the query, null unless it is recorded
+    private final QueryEvent event;
+    // the time spent in each stage in ns
+    private final long[] nanos;
+
+    // the number of completions matching the prefix
+    private int completions;
+    // the number of completions selected for phrase gathering
+    private int selectedCompletions;
+    // the number of candidate phrases
+    private int phrases;
+    // the number of phrases correlated with the context
+    private int correlatedPhrases;
+    // whether the completions themselves were used as phrases
+    private boolean tooManyPhrases;
+    // whether the suggestions were taken from the precomputed table
+    private boolean precomputed;
+    // the stages that returned degraded results to meet a deadline
+    private Set<Stage> degraded;
+
+
+    /**
+     * Starts a new trace.
+     * @param kind the kind of query, e.g. partial or complete
+     * @param context the context of the query
+     * @param term the last term of the query
+     */
+    public QueryTrace(String kind, String context, String term) {
+        this(kind, context, term, true);
+    }
+
+    private QueryTrace(String kind, String context, String term, boolean enabled) {
+        this.enabled = enabled;
+        this.kind = kind;
+        this.context = context;
+        this.term = term;
+        this.nanos = new long[Stage.values().length];
+        this.degraded = Collections.emptySet();
+        this.event = (enabled && QueryEvent.isRecorded()) ? new QueryEvent() : null;
+        if (event != null)
+            event.begin();
+        this.start = now();
+    }
+
+    /**
+     * @return the current time in ns, or 0 if this trace is disabled
+     */
+    public long now() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Attributes the time since the last lap to a stage.
+     * @param stage the stage
+     * @param since the time returned by the last call of now() or lap()
+     * @return the current time, to be passed to the next lap
+     */
+    public long lap(Stage stage, long since) {
+        if (!enabled) return 0;
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - since;
+        return now;
+    }
+
+    /**
+     * Adds the time since a given point to a stage without starting a
+     * new lap, e.g. for intersections within other stages.
+     * @param stage the stage
+     * @param since the time returned by now() before the operation
+     */
+    public void add(Stage stage, long since) {
+        if (enabled)
+            nanos[stage.ordinal()] += System.nanoTime() - since;
+    }
+
+    /**
+     * Marks the end of the query and commits its flight recorder event.
+     */
+    public void finish() {
+        if (enabled)
+            nanos[Stage.TOTAL.ordinal()] = System.nanoTime() - start;
+        if (event != null)
+            event.commit(this);
+    }
+
+    public void setCompletions(int completions) {
+        this.completions = completions;
+    }
+
+    public void setSelectedCompletions(int selectedCompletions) {
+        this.selectedCompletions = selectedCompletions;
+    }
+
+    public void setPhrases(int phrases) {
+        this.phrases = phrases;
+    }
+
+    public void addCorrelatedPhrases(int correlatedPhrases) {
+        this.correlatedPhrases += correlatedPhrases;
+    }
+
+    public void setTooManyPhrases(boolean tooManyPhrases) {
+        this.tooManyPhrases = tooManyPhrases;
+    }
+
+    public void setPrecomputed(boolean precomputed) {
+        this.precomputed = precomputed;
+    }
+
+    public void setDegraded(Set<Stage> degraded) {
+        this.degraded = degraded;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    /**
+     * @param stage a stage
+     * @return the time spent in that stage in ns
+     */
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    public int getCompletions() {
+        return completions;
+    }
+
+    public int getSelectedCompletions() {
+        return selectedCompletions;
+    }
+
+    public int getPhrases() {
+        return phrases;
+    }
+
+    public int getCorrelatedPhrases() {
+        return correlatedPhrases;
+    }
+
+    public boolean isTooManyPhrases() {
+        return tooManyPhrases;
+    }
+
+    public boolean isPrecomputed() {
+        return precomputed;
+    }
+
+    public boolean isDegraded() {
+        return !degraded.isEmpty();
+    }
+
+    public Set<Stage> getDegradedStages() {
+        return degraded;
+    }
+
+    /**
+     * @return the query and the time spent in each stage
+     */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append(kind).append(" \"").append(context).append("\" \"").append(term).append('"');
+        for (Stage stage : Stage.values())
+            s.append(' ').append(stage.name().toLowerCase()).append('=').append(nanos[stage.ordinal()] / 1000).append("us");
+        s.append(" completions=").append(completions).append('/').append(selectedCompletions);
+        s.append(" phrases=").append(phrases);
+        s.append(" correlatedPhrases=").append(correlatedPhrases);
+        s.append(" tooManyPhrases=").append(tooManyPhrases);
+        if (precomputed)
+            s.append(" precomputed=true");
+        if (!degraded.isEmpty())
+            s.append(" degraded=").append(degraded.toString().toLowerCase());
+        return s.toString();
+    }
+}
@@ -6,8 +6,7 @@
 package de.ws1617.ir.query.preproc;
 
 import com.google.common.base.Splitter;
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
+import com.google.common.primitives.Ints;
 import org.apache.commons.io.LineIterator;
 
 import java.io.*;
@@ -28,20 +27,64 @@ public class CompletionExtractor implements NGramExtractor {
 
     // the set of stopwords
     private final Set<String> stopwords;
-    // the unigrams with frequencies
-    private HashMap<String, Frequency> freqs;
+    // the unigrams with frequencies and docsets
+    private DocSetAccumulator freqs;
     // the current number of documents recorded
     private int D;
+    // whether words were recorded before the first document boundary,
+    // i.e. in document D of the extractor's start
+    private boolean leading;
+    // whether a document boundary was reached
+    private boolean started;
 
 
     public CompletionExtractor(Set<String> stopwords) {
-        this.freqs = new HashMap<>();
+        this(stopwords, 0);
+    }
+
+    /**
+     * Creates an extractor that continues numbering documents after an
+     * already existing collection of D documents, i.e. the first document
+     * extracted by this extractor will have the id D+1.
+     * @param stopwords the set of stopwords
+     * @param D the number of documents recorded previously
+     */
+    public CompletionExtractor(Set<String> stopwords, int D) {
+        this.freqs = new DocSetAccumulator();
         this.stopwords = stopwords;
-        D = 0;
+        this.D = D;
 
         this.c = CLEANUP_INCREASE;
     }
 
+    /**
+     * Adds previously recorded counts for a unigram, e.g. from an existing
+     * index. Has to be called before any new documents are extracted, so
+     * that the docsets remain sorted.
+     * @param word the unigram
+     * @param tf its raw term frequency
+     * @param docs the sorted ids of the documents it occurs in
+     */
+    public void addCounts(String word, int tf, int[] docs) {
+        freqs.add(word, tf, docs);
+    }
+
+    /**
+     * @return the number of documents recorded so far
+     */
+    public int getDocCount() {
+        return D;
+    }
+
+    /**
+     * Words preceding the first &lt;newdoc&gt; are recorded in the document
+     * the ids continue from, which is not counted by getDocCount().
+     * @return whether words were recorded before the first document boundary
+     */
+    public boolean hasLeadingDocument() {
+        return leading;
+    }
+
     /**
      * Extracts unigrams and docsets from a file.
      * @param input a reader over a corpus file
@@ -67,14 +110,14 @@ public class CompletionExtractor implements NGramExtractor {
 
             for (String word : split.split(line)) {
                 // increase doc counter at document boundaries
-                if (word.equals("<newdoc>"))
+                if (word.equals("<newdoc>")) {
                     D++;
+                    started = true;
+                }
                 // record unigram only if it is not a stop word, number or single character
                 else if (!stopwords.contains(word) && !isNumber(word) && word.length() > 1) {
-                    if (freqs.containsKey(word))
-                        freqs.get(word).count(D);
-                    else
-                        freqs.put(word, new Frequency(D));
+                    freqs.count(word, D);
+                    leading |= !started;
                 }
 
                 // if 75% of available memory are used, perform a cleanup
@@ -115,7 +158,7 @@ public class CompletionExtractor implements NGramExtractor {
      * @param threshold frequency threshold
      */
     private void cleanup(int threshold) {
-        freqs.entrySet().removeIf(term -> term.getValue().tf <= threshold);
+        freqs.removeBelow(threshold);
         System.gc();
     }
 
@@ -137,54 +180,56 @@ public class CompletionExtractor implements NGramExtractor {
         return new CompletionIterator();
     }
 
-
     /**
-     * Stores a set of documents in which a term occurs and its term frequency.
+     * @return an iterator over the extracted unigrams and docsets in
+     * lexicographic order of the unigrams
      */
-    private class Frequency {
-
-        private TIntList docs;
-        private int tf;
-
-        public Frequency(int docID) {
-            docs = new TIntArrayList();
-            docs.add(docID);
-            tf = 1;
-        }
-
-        public void count(int docID) {
-            tf++;
-            if (docID != docs.get(docs.size()-1))
-                docs.add(docID);
-        }
+    @Override
+    public CompletionIterator sortedIterator() {
+        Integer[] order = new Integer[freqs.size()];
+        for (int id = 0; id < order.length; id++)
+            order[id] = id;
+        Arrays.sort(order, (id1, id2) -> freqs.getWord(id1).compareTo(freqs.getWord(id2)));
+        return new CompletionIterator(Ints.toArray(Arrays.asList(order)));
     }
 
 
     /**
      * An iterator over the extracted unigrams and docsets.
      */
-    public class CompletionIterator implements NGramIterator {
+    public class CompletionIterator implements DocSetIterator {
 
-        Iterator<Map.Entry<String, Frequency>> iter;
-        Map.Entry<String, Frequency> current;
+        // the order in which to visit the unigram ids, null for id order
+        int[] order;
+        // the index of the current unigram
+        int i;
+        // the id of the current unigram in the accumulator
+        int current;
 
         private CompletionIterator() {
-            this.iter = freqs.entrySet().iterator();
+            this(null);
+        }
+
+        private CompletionIterator(int[] order) {
+            this.order = order;
+            this.i = -1;
+            this.current = -1;
         }
 
         @Override
         public boolean hasNext() {
-            return iter.hasNext();
+            return i < freqs.size()-1;
         }
 
         @Override
         public void advance() {
-            current = iter.next();
+            i++;
+            current = (order == null) ? i : order[i];
         }
 
         @Override
         public String getNGram() {
-            return current.getKey();
+            return freqs.getWord(current);
         }
 
         /**
@@ -192,12 +237,25 @@ public class CompletionExtractor implements NGramExtractor {
          */
         @Override
         public double getWeightedFrequency() {
-            Frequency freq = current.getValue();
-            return freq.tf*Math.log(D/freq.docs.size());
+            return freqs.getFrequency(current)*Math.log(D/freqs.getDocCount(current));
         }
 
-        public TIntList getDocSets() {
-            return current.getValue().docs;
+        /**
+         * @return the raw term frequency of the current unigram
+         */
+        @Override
+        public int getFrequency() {
+            return freqs.getFrequency(current);
+        }
+
+        @Override
+        public int getDocCount() {
+            return freqs.getDocCount(current);
+        }
+
+        @Override
+        public int getDoc(int i) {
+            return freqs.getDoc(current, i);
         }
     }
 }
@@ -14,6 +14,7 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -65,6 +66,27 @@ public class DataCompressor {
         }
     }
 
+    /**
+     * Iterates over the n-grams in an NGramExtractor and prints them to a
+     * file in the same format as printNGramsToFile(), except that the raw
+     * frequency of each n-gram is printed instead of its weighted frequency.
+     * Such files can be read with nGramIterator() and allow to merge new
+     * counts into an existing index.
+     * @param iter an iterator over the n-grams
+     * @param out the output stream
+     * @throws IOException
+     */
+    public void printRawCountsToFile(NGramExtractor.NGramIterator iter, DataOutputStream out) throws IOException {
+        while (iter.hasNext()) {
+            iter.advance();
+            for (Iterator<String> words = splitter.split(iter.getNGram()).iterator(); words.hasNext(); )
+                out.writeInt(convert(words.next()));
+            out.writeInt(-1);
+            out.writeDouble(iter.getFrequency());
+            out.flush();
+        }
+    }
+
     /**
      * Iterates over the docsets in a CompletionExtractor, converts each
      * unigram into a unique integer id, and prints this integer id together
@@ -81,18 +103,50 @@ public class DataCompressor {
      * @param out the output stream
      * @throws IOException
      */
-    public void printDocSetsToFile(CompletionExtractor.CompletionIterator iter, DataOutputStream out) throws IOException {
+    public void printDocSetsToFile(NGramExtractor.DocSetIterator iter, DataOutputStream out) throws IOException {
         while (iter.hasNext()) {
             iter.advance();
             out.writeInt(convert(iter.getNGram()));
-            TIntList docs = iter.getDocSets();
-            for (int i = 0; i < docs.size(); i++)
-                out.writeInt(docs.get(i));
+            int size = iter.getDocCount();
+            for (int i = 0; i < size; i++)
+                out.writeInt(iter.getDoc(i));
             out.writeInt(-1);
             out.flush();
         }
     }
 
+    /**
+     * Prints an n-gram of word ids and its frequency to a file in the
+     * format of printNGramsToFile(), e.g. to write a modified copy of an
+     * index read with nGramIterator().
+     * @param ngram the word ids of the n-gram
+     * @param freq its frequency
+     * @param out the output stream
+     * @throws IOException
+     */
+    public static void printNGram(int[] ngram, double freq, DataOutputStream out) throws IOException {
+        for (int word : ngram)
+            out.writeInt(word);
+        out.writeInt(-1);
+        out.writeDouble(freq);
+    }
+
+    /**
+     * Prints the docset of a unigram id to a file in the format of
+     * printDocSetsToFile(), e.g. to write a modified copy of an index read
+     * with docSetIterator().
+     * @param term the unigram id
+     * @param docs the ids of the documents in which it occurs
+     * @param out the output stream
+     * @throws IOException
+     */
+    public static void printDocSet(int term, int[] docs, DataOutputStream out) throws IOException {
+        out.writeInt(term);
+        for (int doc : docs)
+            out.writeInt(doc);
+        out.writeInt(-1);
+    }
+
     /**
      * Prints the word to id mappings to a file. In order to save disk space,
      * the mappings are first sorted according to ids. Since there are no
@@ -103,14 +157,22 @@ public class DataCompressor {
      * @throws IOException
      */
     public void printMappingsToFile(PrintWriter out) throws IOException {
+        for (String word : getWordList()) {
+            out.println(word);
+        }
+    }
+
+    /**
+     * @return the words known to this DataCompressor, with the list index
+     * corresponding to the word's id
+     */
+    public List<String> getWordList() {
         String[] mappings = new String[wordIDs.size()];
         for (TObjectIntIterator<String> iter = wordIDs.iterator(); iter.hasNext(); ) {
             iter.advance();
             mappings[iter.value()] = iter.key();
         }
-        for (int id = 0; id < mappings.length; id++) {
-            out.println(mappings[id]);
-        }
+        return new ArrayList<>(Arrays.asList(mappings));
     }
 
     /**
@@ -0,0 +1,342 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.preproc;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class collects term frequencies and docsets of words in a compact,
+ * primitive format. Words are interned to consecutive integer ids, and each
+ * new occurrence of a word in a document is appended as a (word id, doc id)
+ * pair to large int chunks, i.e. it takes 8 bytes per posting and no objects
+ * per word besides the word itself. Before the docsets are read, the pairs
+ * are grouped by word with a counting sort into a single array of doc ids
+ * (4 bytes per posting) with an offset for each word, and each docset is
+ * sorted and freed of duplicates.
+ *
+ * Documents may be added in any order, e.g. when the docsets of an existing
+ * index or of several shards are added, but if they are added in ascending
+ * order of their ids, as while extracting, each docset is already sorted
+ * and only checked.
+ */
+public class DocSetAccumulator {
+
+    // the number of (word id, doc id) pairs per chunk
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // a map from words to their ids
+    private TObjectIntMap<String> wordIDs;
+    // a mapping from ids to words
+    private List<String> words;
+    // the term frequency of each word
+    private TIntArrayList tfs;
+    // the last document recorded for each word, so that repeated
+    // occurrences in a document are not appended again
+    private TIntArrayList lastDocs;
+
+    // the chunks of (word id, doc id) pairs
+    private List<int[]> chunks;
+    // the number of ints used in the last chunk
+    private int pos;
+
+    // the grouped docsets: the docs of word i are stored in
+    // docs[offsets[i]] to docs[offsets[i+1]-1]; null while accumulating
+    private int[] offsets;
+    private int[] docs;
+
+
+    public DocSetAccumulator() {
+        this.wordIDs = new TObjectIntHashMap<>(10, 0.5f, -1);
+        this.words = new ArrayList<>();
+        this.tfs = new TIntArrayList();
+        this.lastDocs = new TIntArrayList();
+        this.chunks = new ArrayList<>();
+        this.pos = 0;
+    }
+
+    /**
+     * Records an occurrence of a word in a document.
+     * @param word the word
+     * @param doc the id of the document
+     */
+    public void count(String word, int doc) {
+        int id = intern(word);
+        tfs.set(id, tfs.get(id) + 1);
+        addDoc(id, doc);
+    }
+
+    /**
+     * Adds previously recorded counts for a word.
+     * @param word the word
+     * @param tf the term frequency to add
+     * @param wordDocs the sorted ids of the documents the word occurs in
+     */
+    public void add(String word, int tf, int[] wordDocs) {
+        int id = intern(word);
+        tfs.set(id, tfs.get(id) + tf);
+        for (int doc : wordDocs)
+            addDoc(id, doc);
+    }
+
+    /**
+     * @return the number of words recorded
+     */
+    public int size() {
+        return words.size();
+    }
+
+    /**
+     * @param id a word id
+     * @return the word with that id
+     */
+    public String getWord(int id) {
+        return words.get(id);
+    }
+
+    /**
+     * @param id a word id
+     * @return the term frequency of the word with that id
+     */
+    public int getFrequency(int id) {
+        return tfs.get(id);
+    }
+
+    /**
+     * @param id a word id
+     * @return the number of documents the word with that id occurs in
+     */
+    public int getDocCount(int id) {
+        group();
+        return offsets[id+1] - offsets[id];
+    }
+
+    /**
+     * @param id a word id
+     * @param i the index of the document
+     * @return the i-th document the word with that id occurs in
+     */
+    public int getDoc(int id, int i) {
+        group();
+        return docs[offsets[id] + i];
+    }
+
+    /**
+     * Removes all words with a term frequency lower or equal to a given
+     * threshold. The ids of the remaining words are reassigned to be
+     * consecutive again.
+     * @param threshold frequency threshold
+     */
+    public void removeBelow(int threshold) {
+        // compute new ids
+        int[] newIDs = new int[words.size()];
+        int n = 0;
+        for (int id = 0; id < newIDs.length; id++) {
+            if (tfs.get(id) > threshold) {
+                newIDs[id] = n;
+                words.set(n, words.get(id));
+                tfs.set(n, tfs.get(id));
+                lastDocs.set(n, lastDocs.get(id));
+                n++;
+            }
+            else {
+                newIDs[id] = -1;
+                wordIDs.remove(words.get(id));
+            }
+        }
+        if (n == newIDs.length)
+            return;
+        for (int id = 0; id < n; id++)
+            wordIDs.put(words.get(id), id);
+        words.subList(n, words.size()).clear();
+        tfs.remove(n, tfs.size() - n);
+        lastDocs.remove(n, lastDocs.size() - n);
+
+        if (offsets != null)
+            removeFromGroups(newIDs, n);
+        else
+            removeFromChunks(newIDs);
+    }
+
+    /**
+     * Retrieves the id of a word or assigns a new one.
+     * @param word the word
+     * @return its id
+     */
+    private int intern(String word) {
+        int id = wordIDs.get(word);
+        if (id < 0) {
+            if (offsets != null)
+                ungroup();
+            id = words.size();
+            wordIDs.put(word, id);
+            words.add(word);
+            tfs.add(0);
+            lastDocs.add(-1);
+        }
+        return id;
+    }
+
+    /**
+     * Appends a (word id, doc id) pair unless the document has already been
+     * recorded for this word.
+     * @param id the word id
+     * @param doc the document id
+     */
+    private void addDoc(int id, int doc) {
+        if (lastDocs.get(id) == doc)
+            return;
+        lastDocs.set(id, doc);
+        if (offsets != null)
+            ungroup();
+        if (chunks.isEmpty() || pos == CHUNK_SIZE*2) {
+            chunks.add(new int[CHUNK_SIZE*2]);
+            pos = 0;
+        }
+        int[] chunk = chunks.get(chunks.size()-1);
+        chunk[pos++] = id;
+        chunk[pos++] = doc;
+    }
+
+    /**
+     * Groups the recorded pairs into docsets with a counting sort
+     * on the word ids, frees the chunks and sorts and deduplicates
+     * the docsets.
+     */
+    private void group() {
+        if (offsets != null)
+            return;
+        // count the documents of each word
+        int[] counts = new int[words.size()+1];
+        for (int c = 0; c < chunks.size(); c++) {
+            int[] chunk = chunks.get(c);
+            int end = (c == chunks.size()-1) ? pos : chunk.length;
+            for (int i = 0; i < end; i += 2)
+                counts[chunk[i]+1]++;
+        }
+        // compute offsets
+        for (int id = 1; id < counts.length; id++)
+            counts[id] += counts[id-1];
+        offsets = counts.clone();
+        // place the documents, freeing each chunk once it has been read;
+        // the sort is stable, so the docsets remain in insertion order
+        docs = new int[offsets[offsets.length-1]];
+        for (int c = 0; c < chunks.size(); c++) {
+            int[] chunk = chunks.get(c);
+            int end = (c == chunks.size()-1) ? pos : chunk.length;
+            for (int i = 0; i < end; i += 2)
+                docs[counts[chunk[i]]++] = chunk[i+1];
+            chunks.set(c, null);
+        }
+        chunks.clear();
+        pos = 0;
+        sortGroups();
+    }
+
+    /**
+     * Sorts the grouped docsets that are not in ascending order and
+     * removes duplicate documents, moving the docsets together.
+     */
+    private void sortGroups() {
+        int w = 0;
+        int start = 0;
+        for (int id = 0; id < offsets.length-1; id++) {
+            int end = offsets[id+1];
+            boolean sorted = true;
+            for (int i = start+1; i < end && sorted; i++)
+                sorted = docs[i-1] < docs[i];
+            if (!sorted)
+                Arrays.sort(docs, start, end);
+            offsets[id] = w;
+            for (int i = start; i < end; i++)
+                if (i == start || docs[i] != docs[i-1])
+                    docs[w++] = docs[i];
+            start = end;
+        }
+        offsets[offsets.length-1] = w;
+        if (w < docs.length)
+            docs = Arrays.copyOf(docs, w);
+    }
+
+    /**
+     * Converts the grouped docsets back into pairs so that new
+     * documents can be appended.
+     */
+    private void ungroup() {
+        int[] oldOffsets = offsets;
+        int[] oldDocs = docs;
+        offsets = null;
+        docs = null;
+        for (int id = 0; id < oldOffsets.length-1; id++) {
+            for (int i = oldOffsets[id]; i < oldOffsets[id+1]; i++) {
+                if (chunks.isEmpty() || pos == CHUNK_SIZE*2) {
+                    chunks.add(new int[CHUNK_SIZE*2]);
+                    pos = 0;
+                }
+                int[] chunk = chunks.get(chunks.size()-1);
+                chunk[pos++] = id;
+                chunk[pos++] = oldDocs[i];
+            }
+        }
+    }
+
+    /**
+     * Removes the pairs of deleted words from the chunks and maps the
+     * remaining ones to their new ids.
+     * @param newIDs the new id of each word, -1 if it was removed
+     */
+    private void removeFromChunks(int[] newIDs) {
+        int w = 0;
+        int wc = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            int[] chunk = chunks.get(c);
+            int end = (c == chunks.size()-1) ? pos : chunk.length;
+            for (int i = 0; i < end; i += 2) {
+                int id = newIDs[chunk[i]];
+                if (id >= 0) {
+                    if (w == CHUNK_SIZE*2) {
+                        wc++;
+                        w = 0;
+                    }
+                    int[] target = chunks.get(wc);
+                    target[w++] = id;
+                    target[w++] = chunk[i+1];
+                }
+            }
+        }
+        // drop the chunks that are no longer needed
+        chunks.subList(Math.min(wc+1, chunks.size()), chunks.size()).clear();
+        pos = w;
+    }
+
+    /**
+     * Removes the docsets of deleted words from the grouped docsets.
+     * @param newIDs the new id of each word, -1 if it was removed
+     * @param n the number of remaining words
+     */
+    private void removeFromGroups(int[] newIDs, int n) {
+        int[] newOffsets = new int[n+1];
+        int w = 0;
+        for (int id = 0; id < newIDs.length; id++) {
+            if (newIDs[id] >= 0) {
+                for (int i = offsets[id]; i < offsets[id+1]; i++)
+                    docs[w++] = docs[i];
+                newOffsets[newIDs[id]+1] = w;
+            }
+        }
+        offsets = newOffsets;
+        if (w < docs.length) {
+            int[] newDocs = new int[w];
+            System.arraycopy(docs, 0, newDocs, 0, w);
+            docs = newDocs;
+        }
+    }
+}
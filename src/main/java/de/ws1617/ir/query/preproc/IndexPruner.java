@@ -0,0 +1,437 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.preproc;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.load.Keystrokes;
+import de.ws1617.ir.query.metrics.HeapPredictor;
+import de.ws1617.ir.query.sugg.DocSketch;
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * This class writes a smaller copy of an index that fits into a heap
+ * budget, by dropping the n-grams and documents that are least likely to
+ * change the suggestions:
+ *
+ * - n-grams without a unigram that can be suggested, which are never
+ *   loaded anyway;
+ * - n-grams that are not among the most frequent n-grams of any of their
+ *   unigrams, i.e. that have a low term to phrase probability for all of
+ *   them. The sums of the frequencies of all n-grams of the unigrams that
+ *   lose n-grams are written to the file phrasesums, so that the remaining
+ *   n-grams keep their term to phrase probabilities;
+ * - documents of the docsets of the most frequent words, keeping those
+ *   with the smallest hashes (see DocSketch), so that the documents kept
+ *   in several docsets are a sample of their intersection.
+ *
+ * The n-grams are cut first, down to the number of phrases a top 10 list
+ * draws per term, and only then the docsets. The pruned index is predicted
+ * to fit with HeapPredictor. Afterwards, synthesized keystrokes (see
+ * Keystrokes) are replayed against both indexes to report how many top 10
+ * lists change. The raw counts are not copied, so the pruned index cannot
+ * be updated with Trainer -update. The suggestions for short prefixes are
+ * precomputed anew for the pruned index (see PrefixPrecomputer); the heap
+ * budget does not include them. It accepts input of the form:
+ *
+ * -data <data folder> -out <out folder> -budget <MB> -phrases <n> -docs <n>
+ * -queries <n> -seed <n>
+ *
+ * With -phrases or -docs, the number of n-grams per unigram or documents
+ * per docset is capped at that number instead of searching for the
+ * largest caps that fit into the budget.
+ */
+public class IndexPruner {
+
+    // the number of suggestions compared
+    private static final int NO_OF_RESULTS = 10;
+    // the smallest number of n-grams kept per unigram, the number of
+    // phrases a list of NO_OF_RESULTS suggestions draws per term
+    private static final int MIN_PHRASES = (int) (NO_OF_RESULTS * 1.5);
+    // the smallest number of documents kept per docset
+    private static final int MIN_DOCS = 100;
+
+    // the data folder of the index
+    private final String dataDir;
+    // the orders of the n-gram files
+    private final List<Integer> orders;
+    // the n-grams of each order, in the order of their files
+    private final List<List<int[]>> ngrams;
+    // their frequencies
+    private final List<TDoubleList> freqs;
+    // the lowest rank of each n-gram in the frequency ranking of its
+    // unigrams, Integer.MAX_VALUE if it contains none
+    private final List<TIntList> ranks;
+    // the number of n-grams of each unigram
+    private final TIntIntMap listSizes;
+    // the sum of the frequencies of the n-grams of each unigram, summed
+    // in the order in which QuerySuggestor sums them
+    private final TIntDoubleMap phraseSums;
+    // the unigrams with a docset, in the order of the file
+    private final TIntList terms;
+    // their docsets
+    private final List<int[]> docSets;
+
+
+    /**
+     * Reads the n-grams and docsets of an index.
+     * @param dataDir the data folder of the index
+     * @throws IOException
+     */
+    public IndexPruner(String dataDir) throws IOException {
+        this.dataDir = dataDir;
+        this.orders = Main.nGramOrders(dataDir);
+        this.ngrams = new ArrayList<>();
+        this.freqs = new ArrayList<>();
+        this.ranks = new ArrayList<>();
+        this.listSizes = new TIntIntHashMap();
+        this.phraseSums = new TIntDoubleHashMap();
+        this.terms = new TIntArrayList();
+        this.docSets = new ArrayList<>();
+
+        TIntSet unigrams = new TIntHashSet();
+        try (DataInputStream in = openInput(dataDir + "ngrams-1")) {
+            DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+            while (iter.advance())
+                unigrams.add(iter.getNGram()[0]);
+        }
+        // the n-grams of each unigram as pairs of order and position
+        TIntObjectMap<List<long[]>> lists = new TIntObjectHashMap<>();
+        for (int o = 0; o < orders.size(); o++) {
+            List<int[]> order = new ArrayList<>();
+            TDoubleList orderFreqs = new TDoubleArrayList();
+            try (DataInputStream in = openInput(dataDir + "ngrams-" + orders.get(o))) {
+                DataCompressor.NGramFileIterator iter = DataCompressor.nGramIterator(in);
+                while (iter.advance()) {
+                    TIntSet contained = new TIntHashSet();
+                    for (int word : iter.getNGram()) {
+                        if (!unigrams.contains(word)) continue;
+                        // a word occurring twice refers to the n-gram twice
+                        listSizes.adjustOrPutValue(word, 1, 1);
+                        phraseSums.adjustOrPutValue(word, iter.getFrequency(), iter.getFrequency());
+                        if (contained.add(word)) {
+                            if (!lists.containsKey(word))
+                                lists.put(word, new ArrayList<>());
+                            lists.get(word).add(new long[]{o, order.size()});
+                        }
+                    }
+                    order.add(iter.getNGram());
+                    orderFreqs.add(iter.getFrequency());
+                }
+            }
+            ngrams.add(order);
+            freqs.add(orderFreqs);
+            TIntList orderRanks = new TIntArrayList(order.size());
+            orderRanks.fill(0, order.size(), Integer.MAX_VALUE);
+            ranks.add(orderRanks);
+        }
+        // rank the n-grams of each unigram by frequency, i.e. by their
+        // term to phrase probability
+        for (List<long[]> list : lists.valueCollection()) {
+            list.sort((n1, n2) -> Double.compare(freqs.get((int) n2[0]).get((int) n2[1]), freqs.get((int) n1[0]).get((int) n1[1])));
+            for (int rank = 0; rank < list.size(); rank++) {
+                TIntList orderRanks = ranks.get((int) list.get(rank)[0]);
+                int pos = (int) list.get(rank)[1];
+                orderRanks.set(pos, Math.min(orderRanks.get(pos), rank));
+            }
+        }
+
+        try (DataInputStream in = openInput(dataDir + "docsets")) {
+            DataCompressor.DocSetFileIterator iter = DataCompressor.docSetIterator(in);
+            while (iter.advance()) {
+                terms.add(iter.getTerm());
+                docSets.add(iter.getDocs());
+            }
+        }
+    }
+
+    /**
+     * @return the smallest number of n-grams per unigram that keeps all
+     * n-grams containing a unigram
+     */
+    public int getMaxPhrases() {
+        int max = 0;
+        for (TIntList orderRanks : ranks)
+            for (int i = 0; i < orderRanks.size(); i++)
+                if (orderRanks.get(i) != Integer.MAX_VALUE)
+                    max = Math.max(max, orderRanks.get(i) + 1);
+        return max;
+    }
+
+    /**
+     * @return the largest number of documents of a docset
+     */
+    public int getMaxDocs() {
+        int max = 0;
+        for (int[] docs : docSets)
+            max = Math.max(max, docs.length);
+        return max;
+    }
+
+    /**
+     * Writes the pruned index to a folder.
+     * @param out the output folder
+     * @param phrases the number of most frequent n-grams kept per unigram
+     * @param docs the number of documents kept per docset
+     * @return the predicted heap usage of the pruned index in bytes
+     * @throws IOException
+     */
+    public long write(String out, int phrases, int docs) throws IOException {
+        copy("wordIDs", out);
+        copy("ngrams-1", out);
+        if (new File(dataDir + "stats").exists())
+            copy("stats", out);
+        for (int o = 0; o < orders.size(); o++) {
+            try (DataOutputStream writ = openOutput(out + "ngrams-" + orders.get(o))) {
+                List<int[]> order = ngrams.get(o);
+                for (int i = 0; i < order.size(); i++)
+                    if (ranks.get(o).get(i) < phrases)
+                        DataCompressor.printNGram(order.get(i), freqs.get(o).get(i), writ);
+            }
+        }
+        try (DataOutputStream writ = openOutput(out + "phrasesums")) {
+            for (TIntDoubleIterator iter = phraseSums.iterator(); iter.hasNext(); ) {
+                iter.advance();
+                if (listSizes.get(iter.key()) > phrases)
+                    DataCompressor.printNGram(new int[]{iter.key()}, iter.value(), writ);
+            }
+        }
+        try (DataOutputStream writ = openOutput(out + "docsets")) {
+            for (int i = 0; i < terms.size(); i++)
+                DataCompressor.printDocSet(terms.get(i), sample(docSets.get(i), docs), writ);
+        }
+        return HeapPredictor.predict(out).getTotalBytes();
+    }
+
+    /**
+     * Samples the documents with the smallest hashes of a docset.
+     * @param docs the sorted docset
+     * @param max the number of documents to keep
+     * @return the sorted sample, the docset itself if it has at most max
+     * documents
+     */
+    static int[] sample(int[] docs, int max) {
+        if (docs.length <= max)
+            return docs;
+        int[] hashes = new int[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            hashes[i] = DocSketch.hash(docs[i]);
+        int[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        int threshold = sorted[max - 1];
+        int[] sample = new int[max];
+        int k = 0;
+        for (int i = 0; i < docs.length && k < max; i++)
+            if (hashes[i] <= threshold)
+                sample[k++] = docs[i];
+        return Arrays.copyOf(sample, k);
+    }
+
+    /**
+     * Finds the largest caps whose pruned index fits into a budget, cutting
+     * n-grams before documents. The folder is used to write the candidate
+     * indexes, so the index with the caps found has to be written again.
+     * @param out the output folder
+     * @param budget the heap budget in bytes
+     * @return the caps of n-grams per unigram and documents per docset;
+     * the smallest caps if not even they fit
+     * @throws IOException
+     */
+    public int[] fit(String out, long budget) throws IOException {
+        int phrases = Math.max(MIN_PHRASES, getMaxPhrases());
+        int docs = Math.max(MIN_DOCS, getMaxDocs());
+        int maxDocs = docs;
+        if (write(out, phrases, docs) > budget) {
+            phrases = largestFitting(MIN_PHRASES, phrases, budget, p -> write(out, p, maxDocs));
+            if (write(out, phrases, docs) > budget)
+                docs = largestFitting(MIN_DOCS, docs, budget, d -> write(out, MIN_PHRASES, d));
+        }
+        return new int[]{phrases, docs};
+    }
+
+    /**
+     * Searches for the largest cap whose pruned index fits into a budget,
+     * given that the heap grows with the cap.
+     * @param min the smallest cap, returned if none fits
+     * @param max a cap that does not fit
+     * @param budget the heap budget in bytes
+     * @param size writes the index pruned to a cap and predicts its heap usage
+     * @return the largest cap that fits
+     * @throws IOException
+     */
+    private static int largestFitting(int min, int max, long budget, Size size) throws IOException {
+        int low = min;
+        int high = max;
+        while (low < high - 1) {
+            int mid = (low + high) >>> 1;
+            if (size.bytes(mid) <= budget)
+                low = mid;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void copy(String file, String out) throws IOException {
+        Files.copy(Paths.get(dataDir + file), Paths.get(out + file), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static DataInputStream openInput(String file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    private static DataOutputStream openOutput(String file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Replays keystrokes against an index.
+     * @param q the index
+     * @param queries the queries
+     * @return the suggestions for each query
+     */
+    private static List<List<String>> suggestAll(QuerySuggestor q, List<Query> queries) {
+        List<List<String>> suggestions = new ArrayList<>();
+        for (Query query : queries)
+            suggestions.add(query.suggest(q, NO_OF_RESULTS));
+        return suggestions;
+    }
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        String out = null;
+        long budget = 0;
+        int phrases = 0;
+        int docs = 0;
+        int queries = 1000;
+        long seed = 42;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-out": out = args[++i]; break;
+                case "-budget": budget = (long) (Double.parseDouble(args[++i]) * 1048576); break;
+                case "-phrases": phrases = Integer.parseInt(args[++i]); break;
+                case "-docs": docs = Integer.parseInt(args[++i]); break;
+                case "-queries": queries = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+
+        // check if all obligatory information was provided
+        if (out == null || (budget <= 0 && phrases <= 0 && docs <= 0)) {
+            System.err.println("Please specify an output folder and a budget or caps.");
+            printParameters();
+            System.exit(1);
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+        if (!out.endsWith(File.separator))
+            out += File.separator;
+        if (new File(data).getAbsoluteFile().equals(new File(out).getAbsoluteFile())) {
+            System.err.println("The output folder has to differ from the data folder.");
+            System.exit(1);
+        }
+
+        try {
+            new File(out).mkdirs();
+            long before = HeapPredictor.predict(data).getTotalBytes();
+            IndexPruner pruner = new IndexPruner(data);
+            if (phrases > 0 || docs > 0) {
+                phrases = (phrases > 0) ? phrases : pruner.getMaxPhrases();
+                docs = (docs > 0) ? docs : pruner.getMaxDocs();
+            }
+            else {
+                int[] caps = pruner.fit(out, budget);
+                phrases = caps[0];
+                docs = caps[1];
+            }
+            long after = pruner.write(out, phrases, docs);
+            System.out.printf("Kept at most %d n-grams per unigram and %d documents per docset: predicted heap %.1f MB -> %.1f MB%n",
+                    phrases, docs, before / 1048576.0, after / 1048576.0);
+            if (budget > 0 && after > budget)
+                System.out.printf("The budget of %.1f MB cannot be met by pruning.%n", budget / 1048576.0);
+            // the suggestions for short prefixes change with the pruned n-grams
+            PrefixPrecomputer.refresh(out);
+
+            // compare the suggestions, loading one index at a time
+            List<Query> sample = new ArrayList<>();
+            for (String keystroke : Keystrokes.synthesize(data, queries, seed))
+                sample.add(Query.parse(keystroke));
+            List<List<String>> expected = suggestAll(Main.read(data), sample);
+            List<List<String>> actual = suggestAll(Main.read(out), sample);
+            int differ = 0;
+            int differWithContext = 0;
+            int withContext = 0;
+            double overlap = 0;
+            for (int i = 0; i < sample.size(); i++) {
+                boolean context = !sample.get(i).getContext().isEmpty();
+                if (context)
+                    withContext++;
+                if (!expected.get(i).equals(actual.get(i))) {
+                    differ++;
+                    if (context)
+                        differWithContext++;
+                }
+                Set<String> shared = new HashSet<>(expected.get(i));
+                shared.retainAll(actual.get(i));
+                overlap += expected.get(i).isEmpty() ? 1 : shared.size() / (double) expected.get(i).size();
+            }
+            System.out.printf("%d of %d queries changed (%d of %d with a context), mean overlap of the top %d %.3f%n",
+                    differ, sample.size(), differWithContext, withContext, NO_OF_RESULTS, overlap / Math.max(1, sample.size()));
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-out: Folder to write the pruned index to");
+        System.err.println("\t-budget: Heap budget of the pruned index in MB");
+        System.err.println("\t-phrases: Number of most frequent n-grams kept per unigram, instead of a budget");
+        System.err.println("\t-docs: Number of documents kept per docset, instead of a budget");
+        System.err.println("\t-queries: Number of synthesized queries to compare, each replayed keystroke by keystroke (optional, default: 1000)");
+        System.err.println("\t-seed: Seed of the query synthesis (optional, default: 42)");
+    }
+
+
+    /**
+     * Writes an index pruned to a cap and predicts its heap usage.
+     */
+    private interface Size {
+        long bytes(int cap) throws IOException;
+    }
+}
@@ -13,11 +13,18 @@ public interface NGramExtractor {
     void extract(Iterator<String> input);
     NGramIterator iterator();
     NGramIterator iterator(int threshold);
+    NGramIterator sortedIterator();
 
     interface NGramIterator {
         boolean hasNext();
         void advance();
         String getNGram();
         double getWeightedFrequency();
+        int getFrequency();
+    }
+
+    interface DocSetIterator extends NGramIterator {
+        int getDocCount();
+        int getDoc(int i);
     }
 }
@@ -12,6 +12,7 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 import org.apache.commons.io.LineIterator;
 
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -47,6 +48,24 @@ public class PhraseExtractor implements NGramExtractor {
         this.c = CLEANUP_INCREASE;
     }
 
+    /**
+     * Adds a previously recorded count for an n-gram, e.g. from an
+     * existing index.
+     * @param ngram the n-gram, words separated by single spaces
+     * @param count its raw frequency
+     */
+    public void addCount(String ngram, int count) {
+        freqs.adjustOrPutValue(ngram, count, count);
+        fsum += count;
+    }
+
+    /**
+     * @return the sum of the frequencies of all n-grams recorded so far
+     */
+    public long getFrequencySum() {
+        return fsum;
+    }
+
     /**
      * Extracts n-grams from a file.
      * @param input a reader over a corpus file
@@ -188,6 +207,16 @@ public class PhraseExtractor implements NGramExtractor {
         return new PhraseIterator();
     }
 
+    /**
+     * @return an iterator over the extracted n-grams in lexicographic order
+     */
+    @Override
+    public PhraseIterator sortedIterator() {
+        String[] keys = freqs.keys(new String[freqs.size()]);
+        Arrays.sort(keys);
+        return new PhraseIterator(keys);
+    }
+
 
     /**
      * An iterator over the extracted n-grams.
@@ -196,25 +225,37 @@ public class PhraseExtractor implements NGramExtractor {
 
         TObjectIntIterator<String> iter;
         double logAvg;
+        // the n-grams in the order to visit them, null for map order
+        String[] keys;
+        int i;
 
         private PhraseIterator() {
             this.iter = freqs.iterator();
             this.logAvg = Math.log(((double) fsum) / freqs.size());
         }
 
+        private PhraseIterator(String[] keys) {
+            this.keys = keys;
+            this.i = -1;
+            this.logAvg = Math.log(((double) fsum) / freqs.size());
+        }
+
         @Override
         public boolean hasNext() {
-            return iter.hasNext();
+            return (keys == null) ? iter.hasNext() : i < keys.length-1;
         }
 
         @Override
         public void advance() {
-            iter.advance();
+            if (keys == null)
+                iter.advance();
+            else
+                i++;
         }
 
         @Override
         public String getNGram() {
-            return iter.key();
+            return (keys == null) ? iter.key() : keys[i];
         }
 
         /**
@@ -222,7 +263,15 @@ public class PhraseExtractor implements NGramExtractor {
          */
         @Override
         public double getWeightedFrequency() {
-            return iter.value() / logAvg;
+            return getFrequency() / logAvg;
+        }
+
+        /**
+         * @return the raw frequency of the current n-gram
+         */
+        @Override
+        public int getFrequency() {
+            return (keys == null) ? iter.value() : freqs.get(keys[i]);
         }
     }
 
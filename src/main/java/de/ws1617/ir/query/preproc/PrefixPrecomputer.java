@@ -0,0 +1,120 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.preproc;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.sugg.PrefixTable;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.*;
+
+/**
+ * This class precomputes the suggestions for the short partial query
+ * terms without a context of an index, i.e. the first keystrokes of most
+ * queries, and stores them in the file PrefixTable.FILE of the index,
+ * from which Main.read() loads them. Trainer, ShardedTrainer and
+ * IndexPruner run it on each index they write, so that the table is
+ * refreshed whenever the index is rebuilt. It accepts input of the form:
+ *
+ * -data <data folder> -length <n> -max <n> -n <n>
+ *
+ * The suggestions of all prefixes up to -length characters of the unigrams
+ * are computed, or only of the -max prefixes with the highest sums of the
+ * tf-idfs of their completions. With -length 0, the table is removed.
+ */
+public class PrefixPrecomputer {
+
+    // the default maximum length of the precomputed prefixes
+    public static final int DEFAULT_LENGTH = 2;
+    // the default number of suggestions per prefix, as requested by default
+    public static final int DEFAULT_N = 10;
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        int length = DEFAULT_LENGTH;
+        int max = 0;
+        int n = DEFAULT_N;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-length": length = Integer.parseInt(args[++i]); break;
+                case "-max": max = Integer.parseInt(args[++i]); break;
+                case "-n": n = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+
+        try {
+            refresh(data, length, max, n);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Precomputes the suggestions for the short prefixes of an index with
+     * the default settings and replaces its table.
+     * @param dataDir the index folder
+     * @throws IOException if the index cannot be read or the table cannot
+     * be written
+     */
+    public static void refresh(String dataDir) throws IOException {
+        refresh(dataDir, DEFAULT_LENGTH, 0, DEFAULT_N);
+    }
+
+    /**
+     * Precomputes the suggestions for the short prefixes of an index and
+     * replaces its table.
+     * @param dataDir the index folder
+     * @param length the maximum length of the prefixes, 0 to remove the table
+     * @param max the maximum number of prefixes, 0 for all
+     * @param n the number of suggestions per prefix
+     * @throws IOException if the index cannot be read or the table cannot
+     * be written
+     */
+    public static void refresh(String dataDir, int length, int max, int n) throws IOException {
+        File file = new File(dataDir + PrefixTable.FILE);
+        // a table of an earlier version of the index must not be used
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not delete " + file);
+        if (length <= 0)
+            return;
+
+        // the table of the index is not loaded with a filter
+        QuerySuggestor q = Main.read(dataDir, unigram -> true);
+        long start = System.currentTimeMillis();
+        PrefixTable table = q.buildPrefixTable(length, max, n);
+        File tmp = new File(dataDir + PrefixTable.FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            table.write(out);
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        System.out.println("Precomputed the top " + n + " suggestions for " + table.size() + " prefixes in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-length: Maximum length of the precomputed prefixes, 0 to remove the table (optional, default: " + DEFAULT_LENGTH + ")");
+        System.err.println("\t-max: Maximum number of prefixes, those with the most frequent completions (optional, default: all)");
+        System.err.println("\t-n: Number of suggestions per prefix; other numbers are computed as usual (optional, default: " + DEFAULT_N + ")");
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.preproc;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * This class merges the raw outputs of several Trainers run with -shard
+ * into a single index. Each shard numbers its documents starting from 1,
+ * so the documents of each shard are shifted past those of all preceding
+ * shards. Words preceding the first document boundary of a shard are
+ * recorded in its document 0, which is shifted to a document of its own
+ * and counted as such, except for that of the first shard, which keeps
+ * the id 0 as in a single Trainer run. Shards without the information
+ * whether they have such words are assumed to have them. Since the raw outputs of each shard are sorted lexicographically
+ * by n-gram, they can be merged with a k-way merge that only keeps one
+ * entry per shard in memory. The word ids of all shards are reconciled
+ * through a single DataCompressor.
+ *
+ * The merged index contains the same files as that of a Trainer run with
+ * -raw, so it can be extended with -update later on.
+ */
+public class ShardMerger {
+
+    // the shard folders
+    private final String[] shardDirs;
+    // the id to word mappings of the shards
+    private final List<List<String>> shardWords;
+    // the number of documents preceding each shard
+    private final int[] docOffsets;
+    // the stats of the shards
+    private final Properties[] shardStats;
+    // the overall number of documents
+    private final int D;
+
+
+    /**
+     * Reads the stats and word ids of the given shards.
+     * @param shardDirs the output folders of the shards, in the order in
+     *                  which their documents should be numbered
+     * @throws IOException
+     */
+    public ShardMerger(String[] shardDirs) throws IOException {
+        this.shardDirs = shardDirs;
+        this.shardWords = new ArrayList<>();
+        this.docOffsets = new int[shardDirs.length];
+        this.shardStats = new Properties[shardDirs.length];
+
+        int docs = 0;
+        for (int i = 0; i < shardDirs.length; i++) {
+            shardStats[i] = Trainer.readStats(shardDirs[i]);
+            // document 0 of the shard must not share an id with the last
+            // document of the preceding shards
+            if (i > 0 && Boolean.parseBoolean(shardStats[i].getProperty(Trainer.LEADING_KEY, "true")))
+                docs++;
+            docOffsets[i] = docs;
+            docs += Integer.parseInt(shardStats[i].getProperty(Trainer.DOCS_KEY, "0"));
+            try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(shardDirs[i] + "wordIDs"), "UTF-8"))) {
+                shardWords.add(DataCompressor.readWordIDsToList(read));
+            }
+        }
+        this.D = docs;
+    }
+
+    /**
+     * Merges the shards and writes the merged index to a folder.
+     * @param out the output folder
+     * @throws IOException
+     */
+    public void merge(String out) throws IOException {
+        int from = Integer.parseInt(shardStats[0].getProperty(Trainer.FROM_KEY));
+        int to = Integer.parseInt(shardStats[0].getProperty(Trainer.TO_KEY));
+
+        DataCompressor conv = new DataCompressor();
+        Properties stats = new Properties();
+        stats.setProperty(Trainer.FROM_KEY, Integer.toString(from));
+        stats.setProperty(Trainer.TO_KEY, Integer.toString(to));
+        stats.setProperty(Trainer.DOCS_KEY, Integer.toString(D));
+        stats.setProperty(Trainer.LEADING_KEY, shardStats[0].getProperty(Trainer.LEADING_KEY, "true"));
+
+        if (from == 1) {
+            // unigrams and docsets
+            try (MergedIterator iter = new MergedIterator(1, Trainer.UNI_THRESHOLD, 0);
+                 DataOutputStream writ = openOutput(out + "ngrams-1")) {
+                conv.printNGramsToFile(iter, writ);
+            }
+            try (MergedIterator iter = new MergedIterator(1, Trainer.UNI_THRESHOLD, 0);
+                 DataOutputStream writ = openOutput(out + "docsets")) {
+                conv.printDocSetsToFile(iter, writ);
+            }
+            // raw counts and docsets
+            try (MergedIterator iter = new MergedIterator(1, 0, 0);
+                 DataOutputStream writ = openOutput(out + "counts-1")) {
+                conv.printRawCountsToFile(iter, writ);
+            }
+            try (MergedIterator iter = new MergedIterator(1, 0, 0);
+                 DataOutputStream writ = openOutput(out + "rawdocsets")) {
+                conv.printDocSetsToFile(iter, writ);
+            }
+            from++;
+        }
+
+        for (int n = from; n <= to; n++) {
+            // compute the frequency sum and number of n-grams above the
+            // threshold for the normalization
+            long fsum = 0;
+            int size = 0;
+            try (MergedIterator iter = new MergedIterator(n, Trainer.GENERAL_THRESHOLD, 0)) {
+                while (iter.hasNext()) {
+                    iter.advance();
+                    fsum += iter.getFrequency();
+                    size++;
+                }
+            }
+            double logAvg = Math.log(((double) fsum) / size);
+
+            try (MergedIterator iter = new MergedIterator(n, Trainer.GENERAL_THRESHOLD, logAvg);
+                 DataOutputStream writ = openOutput(out + "ngrams-" + n)) {
+                conv.printNGramsToFile(iter, writ);
+            }
+            try (MergedIterator iter = new MergedIterator(n, 0, 0);
+                 DataOutputStream writ = openOutput(out + "counts-" + n)) {
+                conv.printRawCountsToFile(iter, writ);
+            }
+
+            long rawsum = 0;
+            for (Properties shard : shardStats)
+                rawsum += Long.parseLong(shard.getProperty(Trainer.FSUM_KEY + n, "0"));
+            stats.setProperty(Trainer.FSUM_KEY + n, Long.toString(rawsum));
+        }
+
+        try (PrintWriter writ = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out + "wordIDs"), Charset.forName("UTF-8")))) {
+            conv.printMappingsToFile(writ);
+        }
+        try (Writer writ = new OutputStreamWriter(new FileOutputStream(out + "stats"), Charset.forName("UTF-8"))) {
+            stats.store(writ, "Trainer stats");
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return a buffered data stream to that file
+     * @throws IOException
+     */
+    private static DataOutputStream openOutput(String file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+
+    /**
+     * The current entry of the raw outputs of a single shard.
+     */
+    private class Cursor {
+
+        private final int shard;
+        private final DataInputStream countsIn;
+        private final DataInputStream docsIn;
+        private final DataCompressor.NGramFileIterator counts;
+        private final DataCompressor.DocSetFileIterator docs;
+        private final StringBuilder s;
+
+        private String key;
+        private int count;
+        private int[] docSet;
+
+        private Cursor(int shard, int n) throws IOException {
+            this.shard = shard;
+            this.countsIn = new DataInputStream(new BufferedInputStream(new FileInputStream(shardDirs[shard] + "counts-" + n)));
+            this.counts = DataCompressor.nGramIterator(countsIn);
+            // docsets are written in the same order as the unigram counts
+            this.docsIn = (n == 1) ? new DataInputStream(new BufferedInputStream(new FileInputStream(shardDirs[shard] + "rawdocsets"))) : null;
+            this.docs = (n == 1) ? DataCompressor.docSetIterator(docsIn) : null;
+            this.s = new StringBuilder();
+        }
+
+        /**
+         * Reads the next entry of this shard.
+         * @return true if there was one, false at the end of the shard
+         */
+        private boolean advance() {
+            if (!counts.advance())
+                return false;
+            List<String> words = shardWords.get(shard);
+            s.setLength(0);
+            for (int word : counts.getNGram())
+                s.append(words.get(word)).append(' ');
+            key = s.deleteCharAt(s.length()-1).toString();
+            count = (int) counts.getFrequency();
+            if (docs != null) {
+                docs.advance();
+                docSet = docs.getDocs();
+            }
+            return true;
+        }
+
+        private void close() throws IOException {
+            countsIn.close();
+            if (docsIn != null)
+                docsIn.close();
+        }
+    }
+
+
+    /**
+     * An iterator over the merged n-grams of all shards with a frequency
+     * above a given threshold.
+     */
+    private class MergedIterator implements NGramExtractor.DocSetIterator, Closeable {
+
+        private final List<Cursor> cursors;
+        private final PriorityQueue<Cursor> queue;
+        private final int n;
+        private final int threshold;
+        private final double logAvg;
+
+        // the next entry above the threshold, prefetched by hasNext()
+        private boolean fetched;
+        private String nextKey;
+        private int nextCount;
+        private int[] nextDocs;
+
+        // the current entry
+        private String key;
+        private int count;
+        private int[] docs;
+
+        /**
+         * @param n the length of the n-grams
+         * @param threshold frequency threshold below (or at) which entries are skipped
+         * @param logAvg the normalization of >1-gram frequencies (ignored for unigrams)
+         * @throws IOException
+         */
+        private MergedIterator(int n, int threshold, double logAvg) throws IOException {
+            this.cursors = new ArrayList<>();
+            this.queue = new PriorityQueue<>((c1, c2) -> {
+                int cmp = c1.key.compareTo(c2.key);
+                return (cmp != 0) ? cmp : Integer.compare(c1.shard, c2.shard);
+            });
+            this.n = n;
+            this.threshold = threshold;
+            this.logAvg = logAvg;
+            for (int i = 0; i < shardDirs.length; i++) {
+                Cursor cursor = new Cursor(i, n);
+                cursors.add(cursor);
+                if (cursor.advance())
+                    queue.add(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!fetched && !queue.isEmpty()) {
+                // collect the entries of all shards with the smallest key;
+                // the queue returns them in shard order
+                nextKey = queue.peek().key;
+                nextCount = 0;
+                List<int[]> docSets = new ArrayList<>();
+                List<Integer> shards = new ArrayList<>();
+                while (!queue.isEmpty() && queue.peek().key.equals(nextKey)) {
+                    Cursor cursor = queue.poll();
+                    nextCount += cursor.count;
+                    if (cursor.docSet != null) {
+                        docSets.add(cursor.docSet);
+                        shards.add(cursor.shard);
+                    }
+                    if (cursor.advance())
+                        queue.add(cursor);
+                }
+                // concatenate the docsets, shifting the document ids
+                int size = 0;
+                for (int[] docSet : docSets)
+                    size += docSet.length;
+                nextDocs = new int[size];
+                int pos = 0;
+                for (int i = 0; i < docSets.size(); i++) {
+                    int offset = docOffsets[shards.get(i)];
+                    for (int doc : docSets.get(i))
+                        nextDocs[pos++] = doc + offset;
+                }
+                fetched = nextCount > threshold;
+            }
+            return fetched;
+        }
+
+        @Override
+        public void advance() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            key = nextKey;
+            count = nextCount;
+            docs = nextDocs;
+            fetched = false;
+        }
+
+        @Override
+        public String getNGram() {
+            return key;
+        }
+
+        /**
+         * @return the tf-idf of the current unigram or the normalized
+         * frequency of the current n-gram
+         */
+        @Override
+        public double getWeightedFrequency() {
+            return (n == 1) ? count*Math.log(D/docs.length) : count / logAvg;
+        }
+
+        @Override
+        public int getFrequency() {
+            return count;
+        }
+
+        @Override
+        public int getDocCount() {
+            return docs.length;
+        }
+
+        @Override
+        public int getDoc(int i) {
+            return docs[i];
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Cursor cursor : cursors)
+                cursor.close();
+        }
+    }
+}
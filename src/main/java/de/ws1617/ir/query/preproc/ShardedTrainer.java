@@ -0,0 +1,197 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.preproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class trains an index with several Trainer processes in parallel.
+ * It splits the corpus files into shards of roughly equal size, starts a
+ * separate JVM running Trainer -shard on each of them and finally merges
+ * the shard outputs with a ShardMerger. It accepts input of the form:
+ *
+ * -in <infile(s)> -out <outfolder> -from <n> -to <n> -shards <n>
+ * -stop <optional stopword list> -heap <optional max heap per shard>
+ *
+ * Unless -heap is given, each shard gets the maximum heap of this JVM
+ * divided by the number of shards, e.g. -Xmx8g for 8 shards gives each 1g.
+ *
+ * The shard outputs are placed in the folders shard-0, shard-1, ... within
+ * the output folder and deleted after a successful merge unless -keepshards
+ * is given. With -merge, no Trainers are started and the existing shard
+ * folders are merged, e.g. after they have been trained on different
+ * machines sharing the output folder. The suggestions for short prefixes
+ * of the merged index are precomputed as by Trainer (-prefixes <n>).
+ */
+public class ShardedTrainer {
+
+    public static void main(String[] args) {
+        String in = null;
+        String out = null;
+        int from = 0;
+        int to = 0;
+        int shards = Runtime.getRuntime().availableProcessors();
+        String stopfile = null;
+        String heap = null;
+        boolean mergeOnly = false;
+        boolean keepShards = false;
+        int prefixes = PrefixPrecomputer.DEFAULT_LENGTH;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-in": in = args[++i]; break;
+                case "-out": out = args[++i]; break;
+                case "-from": from = Integer.parseInt(args[++i]); break;
+                case "-to": to = Integer.parseInt(args[++i]); break;
+                case "-shards": shards = Integer.parseInt(args[++i]); break;
+                case "-stop": stopfile = args[++i]; break;
+                case "-heap": heap = args[++i]; break;
+                case "-merge": mergeOnly = true; break;
+                case "-keepshards": keepShards = true; break;
+                case "-prefixes": prefixes = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+
+        // check if all obligatory information was provided
+        if (out == null || !new File(out).isDirectory() || shards < 1
+                || (!mergeOnly && (in == null || from == 0 || to == 0))) {
+            System.err.println("Please specify all obligatory parameters.");
+            printParameters();
+            System.exit(1);
+        }
+
+        // do not create empty shards; when only merging, use all existing ones
+        File[] infiles = mergeOnly ? null : Trainer.listInputFiles(in);
+        if (!mergeOnly)
+            shards = Math.min(shards, infiles.length);
+        else
+            for (shards = 0; new File(out + "shard-" + shards).isDirectory(); shards++);
+
+        String[] shardDirs = new String[shards];
+        for (int i = 0; i < shards; i++)
+            shardDirs[i] = out + "shard-" + i + File.separator;
+
+        if (!mergeOnly) {
+            // share this JVM's maximum heap among the shards unless given,
+            // since each JVM would otherwise take its default share of the memory
+            if (heap == null)
+                heap = Math.max(64, Runtime.getRuntime().maxMemory() / shards >> 20) + "m";
+            List<List<File>> split = split(infiles, shards);
+            List<Process> workers = new ArrayList<>();
+            try {
+                // start one Trainer per shard
+                for (int i = 0; i < shards; i++) {
+                    new File(shardDirs[i]).mkdirs();
+                    List<String> command = new ArrayList<>();
+                    command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                    command.add("-Xmx" + heap);
+                    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Trainer.class.getName(),
+                            "-in", join(split.get(i)), "-out", shardDirs[i],
+                            "-from", Integer.toString(from), "-to", Integer.toString(to), "-shard"));
+                    if (stopfile != null)
+                        command.addAll(Arrays.asList("-stop", stopfile));
+                    workers.add(new ProcessBuilder(command).inheritIO().start());
+                }
+                // wait for all of them to finish
+                for (int i = 0; i < shards; i++) {
+                    if (workers.get(i).waitFor() != 0) {
+                        System.err.println("Training of shard " + i + " failed.");
+                        System.exit(1);
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+                for (Process worker : workers)
+                    worker.destroy();
+                System.exit(1);
+            }
+        }
+
+        // merge the shard outputs
+        try {
+            new ShardMerger(shardDirs).merge(out);
+            // the shards only store raw counts, so the suggestions for short
+            // prefixes are precomputed on the merged index
+            if (new File(out + "ngrams-1").exists() && new File(out + "docsets").exists())
+                PrefixPrecomputer.refresh(out, prefixes, 0, PrefixPrecomputer.DEFAULT_N);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        if (!keepShards) {
+            for (String shardDir : shardDirs) {
+                File dir = new File(shardDir);
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Distributes files into shards of roughly equal size by always adding
+     * the largest remaining file to the smallest shard.
+     * @param files the files
+     * @param shards the number of shards
+     * @return the files of each shard
+     */
+    private static List<List<File>> split(File[] files, int shards) {
+        File[] sorted = files.clone();
+        Arrays.sort(sorted, (f1, f2) -> Long.compare(f2.length(), f1.length()));
+        List<List<File>> split = new ArrayList<>();
+        long[] sizes = new long[shards];
+        for (int i = 0; i < shards; i++)
+            split.add(new ArrayList<>());
+        for (File file : sorted) {
+            int smallest = 0;
+            for (int i = 1; i < shards; i++)
+                if (sizes[i] < sizes[smallest]) smallest = i;
+            split.get(smallest).add(file);
+            sizes[smallest] += file.length();
+        }
+        return split;
+    }
+
+    /**
+     * @param files a list of files
+     * @return the paths of the files separated by the system's path separator
+     */
+    private static String join(List<File> files) {
+        StringBuilder s = new StringBuilder();
+        for (File file : files)
+            s.append(file.getPath()).append(File.pathSeparator);
+        return (s.length() == 0) ? "" : s.deleteCharAt(s.length()-1).toString();
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-in: Training data file(s) or folder(s) (obligatory unless -merge)");
+        System.err.println("\t-out: Output folder (obligatory)");
+        System.err.println("\t-from: Smallest n (>0) (obligatory unless -merge)");
+        System.err.println("\t-to: Largest n (>0) (inclusive!) (obligatory unless -merge)");
+        System.err.println("\t-shards: Number of shards (optional, default: number of cores, ignored with -merge)");
+        System.err.println("\t-stop: Stopword file (optional)");
+        System.err.println("\t-heap: Maximum heap size of each shard, e.g. 4g (optional, default: the maximum heap of this JVM divided by the number of shards)");
+        System.err.println("\t-merge: Only merge existing shard folders (optional)");
+        System.err.println("\t-keepshards: Do not delete the shard folders after merging (optional)");
+        System.err.println("\t-prefixes: Maximum length of the prefixes to precompute suggestions for, 0 for none (optional, default: " + PrefixPrecomputer.DEFAULT_LENGTH + ")");
+    }
+
+}
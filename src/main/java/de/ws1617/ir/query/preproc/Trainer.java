@@ -5,9 +5,15 @@
 
 package de.ws1617.ir.query.preproc;
 
+import gnu.trove.map.TObjectIntMap;
+
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
 import java.util.Set;
 
 /**
@@ -18,13 +24,37 @@ import java.util.Set;
  *
  * The -to parameter is inclusive, i.e. -from 1 -to 3 generates n-grams with
  * n = 1, 2 and 3.
+ *
+ * With -raw, the raw counts of all n-grams (counts-n), the docsets of all
+ * unigrams (rawdocsets) and the number of documents and frequency sums
+ * (stats) are stored next to the weighted outputs, before any frequency
+ * thresholds are applied. An index trained this way can later be extended
+ * with new corpus files using -update <index folder> instead of -from and -to: only the new
+ * files are extracted, their document ids are shifted past those of the
+ * existing index, and the merged counts are used to recompute all weights.
+ *
+ * With -shard, only the raw outputs are stored, sorted lexicographically by
+ * n-gram, so that ShardedTrainer can merge the outputs of several Trainers.
+ * Several input files or folders can be given to -in, separated by the
+ * system's path separator.
+ *
+ * Unless -shard is given, the suggestions for all partial query terms of
+ * up to -prefixes <n> characters without a context are precomputed once
+ * the index is complete (see PrefixPrecomputer); -prefixes 0 disables this.
  */
 public class Trainer {
 
     // Minimum frequency of unigrams
-    private static final int UNI_THRESHOLD = 5;
+    static final int UNI_THRESHOLD = 5;
     // Minimum frequency of >1-grams
-    private static final int GENERAL_THRESHOLD = 5;
+    static final int GENERAL_THRESHOLD = 5;
+
+    // keys in the stats file
+    static final String DOCS_KEY = "docs";
+    static final String FROM_KEY = "from";
+    static final String TO_KEY = "to";
+    static final String FSUM_KEY = "fsum-";
+    static final String LEADING_KEY = "leading";
 
 
     public static void main(String[] args) {
@@ -33,14 +63,22 @@ public class Trainer {
         int from = 0;
         int to = 0;
         String stopfile = null;
+        boolean raw = false;
+        boolean shard = false;
+        String update = null;
+        int prefixes = PrefixPrecomputer.DEFAULT_LENGTH;
         // read provided arguments
-        for (int i = 0; i < args.length-1; i++) {
+        for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "-in": in = args[++i]; break;
                 case "-out": out = args[++i]; break;
                 case "-from": from = Integer.parseInt(args[++i]); break;
                 case "-to": to = Integer.parseInt(args[++i]); break;
                 case "-stop": stopfile = args[++i]; break;
+                case "-raw": raw = true; break;
+                case "-update": update = args[++i]; break;
+                case "-shard": shard = true; raw = true; break;
+                case "-prefixes": prefixes = Integer.parseInt(args[++i]); break;
                 default:
                     System.err.println("Unknown parameter " + args[i] + ".");
                     printParameters();
@@ -48,6 +86,15 @@ public class Trainer {
             }
         }
 
+        // read the stats of the index to update and train the same n-grams
+        Properties stats = null;
+        if (update != null) {
+            stats = readStats(update);
+            from = Integer.parseInt(stats.getProperty(FROM_KEY));
+            to = Integer.parseInt(stats.getProperty(TO_KEY));
+            raw = true;
+        }
+
         // check if all obligatory information was provided
         if (in == null || out == null || !new File(out).isDirectory() || from == 0 || to == 0) {
             System.err.println("Please specify all obligatory parameters.");
@@ -55,8 +102,7 @@ public class Trainer {
         }
 
         // get input file(s)
-        File infile = new File(in);
-        File[] infiles = (infile.isDirectory()) ? infile.listFiles() : new File[]{infile};
+        File[] infiles = listInputFiles(in);
 
         // read stopwords if existent
         Set<String> stopwords = new HashSet<>();
@@ -70,24 +116,56 @@ public class Trainer {
             }
         }
 
-        // DataCompressor to write the generated data
-        DataCompressor conv = new DataCompressor();
+        // DataCompressor to write the generated data; when updating, it
+        // continues the word ids of the existing index
+        DataCompressor conv = (update == null) ? new DataCompressor() : new DataCompressor(readWordIDs(update));
+        List<String> IDToWord = (update == null) ? null : conv.getWordList();
+
+        // the stats to store next to the raw counts
+        Properties newStats = new Properties();
+        newStats.setProperty(FROM_KEY, Integer.toString(from));
+        newStats.setProperty(TO_KEY, Integer.toString(to));
 
         // extract unigrams if needed and document sets for unigrams if required
         if (from == 1) {
-            CompletionExtractor ex = new CompletionExtractor(stopwords);
+            CompletionExtractor ex;
+            if (update == null)
+                ex = new CompletionExtractor(stopwords);
+            else {
+                // continue after the documents of the existing index
+                ex = new CompletionExtractor(stopwords, Integer.parseInt(stats.getProperty(DOCS_KEY)));
+                readCompletions(ex, update, IDToWord);
+            }
 
-            // unigrams
             extractAll(ex, infiles);
-            printNGrams(ex.iterator(UNI_THRESHOLD), out + "ngrams-1", conv);
 
-            // docsets
-            try (DataOutputStream writ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out + "docsets")))) {
-                conv.printDocSetsToFile(ex.iterator(UNI_THRESHOLD), writ);
+            // raw counts and docsets before applying the threshold, so that
+            // rare unigrams can still reach it after an update
+            if (raw) {
+                printRawCounts(shard ? ex.sortedIterator() : ex.iterator(), out + "counts-1", conv);
+                try (DataOutputStream writ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out + "rawdocsets")))) {
+                    conv.printDocSetsToFile(shard ? ex.sortedIterator() : ex.iterator(), writ);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+                newStats.setProperty(DOCS_KEY, Integer.toString(ex.getDocCount()));
+                newStats.setProperty(LEADING_KEY, Boolean.toString(ex.hasLeadingDocument()));
             }
-            catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
+
+            if (!shard) {
+                // unigrams
+                printNGrams(ex.iterator(UNI_THRESHOLD), out + "ngrams-1", conv);
+
+                // docsets
+                try (DataOutputStream writ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out + "docsets")))) {
+                    conv.printDocSetsToFile(ex.iterator(UNI_THRESHOLD), writ);
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
             }
 
             from++;
@@ -96,10 +174,22 @@ public class Trainer {
         // extract all other n-grams
         for (int n = from; n <= to; n++) {
             PhraseExtractor ex = new PhraseExtractor(n, stopwords);
+            if (update != null)
+                readPhrases(ex, update + "counts-" + n, IDToWord);
             extractAll(ex, infiles);
-            printNGrams(ex.iterator(GENERAL_THRESHOLD), out + "ngrams-" + n, conv);
+            if (raw) {
+                printRawCounts(shard ? ex.sortedIterator() : ex.iterator(), out + "counts-" + n, conv);
+                newStats.setProperty(FSUM_KEY + n, Long.toString(ex.getFrequencySum()));
+            }
+            if (!shard)
+                printNGrams(ex.iterator(GENERAL_THRESHOLD), out + "ngrams-" + n, conv);
         }
 
+        // keep the number of documents of the updated index if no new
+        // docsets were extracted
+        if (raw && !newStats.containsKey(DOCS_KEY))
+            newStats.setProperty(DOCS_KEY, (stats == null) ? "0" : stats.getProperty(DOCS_KEY, "0"));
+
         // save word IDs generated by DataCompressor
         try (PrintWriter writ = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out + "wordIDs"), Charset.forName("UTF-8")))) {
             conv.printMappingsToFile(writ);
@@ -107,6 +197,125 @@ public class Trainer {
             e.printStackTrace();
             System.exit(1);
         }
+
+        // save stats needed to update the raw counts later on
+        if (raw) {
+            try (Writer writ = new OutputStreamWriter(new FileOutputStream(out + "stats"), Charset.forName("UTF-8"))) {
+                newStats.store(writ, "Trainer stats");
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        // precompute the suggestions for short prefixes of a complete index,
+        // replacing those of an earlier index in the same folder
+        if (!shard && new File(out + "ngrams-1").exists() && new File(out + "docsets").exists()) {
+            try {
+                PrefixPrecomputer.refresh(out, prefixes, 0, PrefixPrecomputer.DEFAULT_N);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Collects the corpus files given to -in, i.e. the given files and all
+     * files in the given folders.
+     * @param in one or several files or folders, separated by the system's
+     *           path separator
+     * @return the corpus files
+     */
+    static File[] listInputFiles(String in) {
+        List<File> infiles = new ArrayList<>();
+        for (String path : in.split(File.pathSeparator)) {
+            File infile = new File(path);
+            if (infile.isDirectory())
+                infiles.addAll(Arrays.asList(infile.listFiles()));
+            else
+                infiles.add(infile);
+        }
+        return infiles.toArray(new File[infiles.size()]);
+    }
+
+    /**
+     * Reads the stats file of an index trained with raw counts.
+     * @param dir the index folder
+     * @return the stats
+     */
+    static Properties readStats(String dir) {
+        Properties stats = new Properties();
+        try (Reader read = new InputStreamReader(new FileInputStream(dir + "stats"), "UTF-8")) {
+            stats.load(read);
+        } catch (IOException e) {
+            System.err.println("Could not read stats of " + dir + ". Was it trained with -raw?");
+            System.exit(1);
+        }
+        return stats;
+    }
+
+    /**
+     * Reads the word to id mappings of an existing index.
+     * @param dir the index folder
+     * @return a map from words to ids
+     */
+    private static TObjectIntMap<String> readWordIDs(String dir) {
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(dir + "wordIDs"), "UTF-8"))) {
+            return DataCompressor.readWordIDsToMap(read);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /**
+     * Feeds the raw unigram counts and raw docsets of an existing index
+     * to a CompletionExtractor. Both files are written from the same
+     * iteration over the unigrams, so they are read side by side and only
+     * one docset is in memory at a time.
+     * @param ex the extractor
+     * @param dir the index folder
+     * @param IDToWord a mapping from ids to words
+     */
+    private static void readCompletions(CompletionExtractor ex, String dir, List<String> IDToWord) {
+        try (DataInputStream docsIn = new DataInputStream(new BufferedInputStream(new FileInputStream(dir + "rawdocsets")));
+             DataInputStream countsIn = new DataInputStream(new BufferedInputStream(new FileInputStream(dir + "counts-1")))) {
+            DataCompressor.DocSetFileIterator docs = DataCompressor.docSetIterator(docsIn);
+            DataCompressor.NGramFileIterator counts = DataCompressor.nGramIterator(countsIn);
+            while (counts.advance()) {
+                int word = counts.getNGram()[0];
+                if (!docs.advance() || docs.getTerm() != word)
+                    throw new IOException("The raw counts and docsets in " + dir + " do not match.");
+                ex.addCounts(IDToWord.get(word), (int) counts.getFrequency(), docs.getDocs());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Feeds the raw n-gram counts of an existing index to a PhraseExtractor.
+     * @param ex the extractor
+     * @param file the raw counts file
+     * @param IDToWord a mapping from ids to words
+     */
+    private static void readPhrases(PhraseExtractor ex, String file, List<String> IDToWord) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            DataCompressor.NGramFileIterator counts = DataCompressor.nGramIterator(in);
+            StringBuilder s = new StringBuilder();
+            while (counts.advance()) {
+                s.setLength(0);
+                for (int word : counts.getNGram())
+                    s.append(IDToWord.get(word)).append(' ');
+                ex.addCount(s.deleteCharAt(s.length()-1).toString(), (int) counts.getFrequency());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
     }
 
     /**
@@ -142,16 +351,36 @@ public class Trainer {
         }
     }
 
+    /**
+     * Makes the DataCompressor print the raw counts of the extracted n-grams.
+     * @param iter an iterator over the n-grams
+     * @param outfile the output file
+     * @param conv the DataCompressor
+     */
+    private static void printRawCounts(NGramExtractor.NGramIterator iter, String outfile, DataCompressor conv) {
+        try (DataOutputStream writ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outfile)))) {
+            conv.printRawCountsToFile(iter, writ);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     /**
      * Prints information about this program.
      */
     private static void printParameters() {
         System.err.println("Applicable parameters:");
-        System.err.println("\t-in: Training data file (obligatory)");
+        System.err.println("\t-in: Training data file(s) or folder(s) (obligatory)");
         System.err.println("\t-out: Output file (obligatory)");
         System.err.println("\t-from: Smallest n (>0) (obligatory)");
         System.err.println("\t-to: Largest n (>0) (inclusive!) (obligatory)");
         System.err.println("\t-stop: Stopword file (optional)");
+        System.err.println("\t-raw: Also store raw counts needed for later updates (optional)");
+        System.err.println("\t-update: Folder of an index trained with -raw to add the input to (replaces -from and -to)");
+        System.err.println("\t-shard: Only store sorted raw counts to be merged by ShardedTrainer (optional)");
+        System.err.println("\t-prefixes: Maximum length of the prefixes to precompute suggestions for, 0 for none (optional, default: " + PrefixPrecomputer.DEFAULT_LENGTH + ")");
     }
 
 }
@@ -0,0 +1,152 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.rtrie;
+
+import de.ws1617.ir.query.metrics.MemoryReport;
+import gnu.trove.set.TIntSet;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An index from the folded forms of words (see fold()) to the ids of the
+ * words, which enables prefix searches that ignore accents and case. Only
+ * words whose folded form differs from the word itself are indexed, since
+ * the others are found by searching their own trie for the folded prefix.
+ * The folded forms are stored once in a sorted array, and the ids of the
+ * words of each form in one array of all ids, so that a variant costs an
+ * int instead of a branch of the trie.
+ */
+public class FoldedIndex {
+
+    // the folded forms of the indexed words, sorted and distinct
+    private final String[] keys;
+    // the position of the first id of each folded form in ids, followed by
+    // the number of ids
+    private final int[] offsets;
+    // the ids of the words of each folded form, in the order of the forms
+    private final int[] ids;
+
+
+    /**
+     * Folds the words with the given ids and indexes those whose folded
+     * form differs from the word.
+     * @param IDToWord a mapping from ids to words
+     * @param words the ids of the words to index
+     */
+    public FoldedIndex(List<String> IDToWord, int[] words) {
+        String[] folded = new String[IDToWord.size()];
+        List<Integer> variants = new ArrayList<>();
+        for (int id : words) {
+            folded[id] = fold(IDToWord.get(id));
+            if (!folded[id].equals(IDToWord.get(id)))
+                variants.add(id);
+        }
+        variants.sort((id1, id2) -> {
+            int c = folded[id1].compareTo(folded[id2]);
+            return (c != 0) ? c : Integer.compare(id1, id2);
+        });
+
+        int distinct = 0;
+        for (int i = 0; i < variants.size(); i++)
+            if (i == 0 || !folded[variants.get(i)].equals(folded[variants.get(i - 1)]))
+                distinct++;
+        this.keys = new String[distinct];
+        this.offsets = new int[distinct + 1];
+        this.ids = new int[variants.size()];
+        int key = -1;
+        for (int i = 0; i < variants.size(); i++) {
+            if (i == 0 || !folded[variants.get(i)].equals(folded[variants.get(i - 1)])) {
+                keys[++key] = folded[variants.get(i)];
+                offsets[key] = i;
+            }
+            ids[i] = variants.get(i);
+        }
+        offsets[distinct] = variants.size();
+    }
+
+    /**
+     * Adds the ids of all indexed words whose folded form starts with a
+     * folded prefix.
+     * @param prefix the folded prefix to search for
+     * @param results the set to add the ids to
+     */
+    public void addValuesWithPrefix(String prefix, TIntSet results) {
+        for (int key = firstKey(prefix); key < keys.length && keys[key].startsWith(prefix); key++)
+            for (int i = offsets[key]; i < offsets[key + 1]; i++)
+                results.add(ids[i]);
+    }
+
+    /**
+     * @param word a folded word
+     * @return the ids of the indexed words with that folded form, in
+     * ascending order
+     */
+    public int[] getValues(String word) {
+        int key = firstKey(word);
+        if (key == keys.length || !keys[key].equals(word))
+            return new int[0];
+        return Arrays.copyOfRange(ids, offsets[key], offsets[key + 1]);
+    }
+
+    /**
+     * @param prefix a folded prefix
+     * @return the first folded form that is not smaller than the prefix
+     */
+    private int firstKey(String prefix) {
+        int key = Arrays.binarySearch(keys, prefix);
+        return (key >= 0) ? key : -key - 1;
+    }
+
+    /**
+     * @return the number of indexed words
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the estimated heap used by this index in bytes
+     */
+    public long heapBytes() {
+        long bytes = MemoryReport.objectBytes(0, 3) + MemoryReport.referenceArrayBytes(keys.length)
+                + MemoryReport.arrayBytes(offsets.length, 4) + MemoryReport.arrayBytes(ids.length, 4);
+        for (String key : keys)
+            bytes += MemoryReport.stringBytes(key);
+        return bytes;
+    }
+
+    /**
+     * Folds a word for comparisons that ignore accents and case: it is
+     * decomposed (Unicode NFKD), stripped of combining marks and
+     * lowercased. Words of lowercase ASCII characters are returned as
+     * they are.
+     * @param word a word
+     * @return its folded form
+     */
+    public static String fold(String word) {
+        boolean plain = true;
+        for (int i = 0; i < word.length() && plain; i++) {
+            char c = word.charAt(i);
+            plain = c < 0x80 && (c < 'A' || c > 'Z');
+        }
+        if (plain)
+            return word;
+        String decomposed = Normalizer.normalize(word, Normalizer.Form.NFKD);
+        StringBuilder s = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int type = Character.getType(c);
+            if (type != Character.NON_SPACING_MARK && type != Character.COMBINING_SPACING_MARK
+                    && type != Character.ENCLOSING_MARK)
+                s.append(c);
+        }
+        return s.toString().toLowerCase(Locale.ROOT);
+    }
+}
@@ -8,7 +8,9 @@
 package de.ws1617.ir.query.rtrie;
 
 import gnu.trove.iterator.TObjectIntIterator;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
@@ -73,10 +75,56 @@ public class IntRTrieMap {
         return results;
     }
 
+    /**
+     * Searches for the values of all strings in the trie starting with the specified prefix.
+     * @param prefix the prefix to search for
+     * @return a set of values
+     */
     public TIntSet getValuesWithPrefix(String prefix) {
+        if (root == null || prefix.isEmpty())
+            return new TIntHashSet();
         return root.valueSearch(prefix, 0);
     }
 
+    /**
+     * Searches for the values of all strings in the trie starting with a
+     * prefix that is at most maxEdits edits away from the specified prefix,
+     * e.g. because a character was mistyped. An edit is the insertion,
+     * deletion or substitution of a character or the transposition of two
+     * adjacent characters. As typos in the first character are rare, and
+     * would make the search visit a large part of the trie, the first
+     * character has to match. Strings starting with the prefix itself are
+     * not included (see getValuesWithPrefix()). The trie is walked with one row
+     * of edit distances per node, and subtries are skipped as soon as none
+     * of their strings can be within the bound.
+     * @param prefix the prefix to search for
+     * @param maxEdits the maximum number of edits, at most the length of
+     *                 the prefix minus one
+     * @return a map from values to the smallest number of edits of a
+     * prefix of their string
+     */
+    public TIntIntMap getValuesWithFuzzyPrefix(String prefix, int maxEdits) {
+        TIntIntMap results = new TIntIntHashMap();
+        maxEdits = Math.min(maxEdits, prefix.length() - 1);
+        if (root == null || maxEdits <= 0)
+            return results;
+        // the distances between the prefixes of the prefix and the empty string
+        int[] row = new int[prefix.length() + 1];
+        for (int j = 0; j < row.length; j++)
+            row[j] = j;
+        root.fuzzySearch(prefix, row, null, '\0', Integer.MAX_VALUE, maxEdits, results);
+        return results;
+    }
+
+    /**
+     * Counts the nodes of the trie, i.e. the distinct non-empty prefixes
+     * of all strings in it.
+     * @return the number of nodes
+     */
+    public long nodeCount() {
+        return (root == null) ? 0 : root.nodeCount();
+    }
+
     /**
      * Constructs a trie containing a list of words.
      * @param words the list of words
@@ -239,6 +287,21 @@ public class IntRTrieMap {
             return newNode;
         }
 
+        /**
+         * Counts the nodes of the subtrie starting with the current node.
+         * @return the number of nodes
+         */
+        private long nodeCount() {
+            long count = 1;
+            if (eqkid != null)
+                count += eqkid.nodeCount();
+            if (lokid != null)
+                count += lokid.nodeCount();
+            if (hikid != null)
+                count += hikid.nodeCount();
+            return count;
+        }
+
         /**
          * Rotates with node with lokid.
          * @return the rotated node
@@ -333,13 +396,11 @@ public class IntRTrieMap {
             // if the whole prefix has been matched, collect suffixes of this node,
             // concatenate them with the prefix and place them in the set
             if (start == (prefix.length()-1) && prefix.charAt(start) == splitchar) {
-                if (eqkid != null) {
-                    TIntSet values = eqkid.getValues();
-                    // add value of this node if it is accepting
-                    if (val != NO_ENTRY_VALUE)
-                        values.add(val);
-                    return values;
-                }
+                TIntSet values = (eqkid != null) ? eqkid.getValues() : new TIntHashSet();
+                // add value of this node if it is accepting
+                if (val != NO_ENTRY_VALUE)
+                    values.add(val);
+                return values;
             }
             // else continue matching the prefix
             else {
@@ -356,6 +417,78 @@ public class IntRTrieMap {
             return new TIntHashSet();
         }
 
+        /**
+         * Searches for the values of all strings in the subtrie starting
+         * with the current node that start with a prefix within maxEdits
+         * edits of the specified prefix. The rows hold the edit distances
+         * between the prefixes of the prefix and the characters matched
+         * before the current node (the path).
+         * @param prefix the prefix to search for
+         * @param row the distances to the path
+         * @param previous the distances to the path without its last
+         *                 character, null if the path is empty
+         * @param last the last character of the path
+         * @param best the smallest distance between the prefix and a
+         *             prefix of the path
+         * @param maxEdits the maximum number of edits
+         * @param results the map to place the values and their distances in
+         */
+        private void fuzzySearch(String prefix, int[] row, int[] previous, char last, int best, int maxEdits, TIntIntMap results) {
+            // the siblings continue the same path
+            if (lokid != null)
+                lokid.fuzzySearch(prefix, row, previous, last, best, maxEdits, results);
+            if (hikid != null)
+                hikid.fuzzySearch(prefix, row, previous, last, best, maxEdits, results);
+            // the first character has to match
+            if (previous == null && splitchar != prefix.charAt(0))
+                return;
+
+            // the distances to the path extended by splitchar
+            int m = prefix.length();
+            int[] next = new int[m + 1];
+            next[0] = row[0] + 1;
+            int min = next[0];
+            for (int j = 1; j <= m; j++) {
+                char c = prefix.charAt(j-1);
+                int d = Math.min(Math.min(row[j] + 1, next[j-1] + 1), row[j-1] + ((c == splitchar) ? 0 : 1));
+                if (previous != null && j > 1 && c == last && prefix.charAt(j-2) == splitchar)
+                    d = Math.min(d, previous[j-2] + 1);
+                next[j] = d;
+                min = Math.min(min, d);
+            }
+            // strings starting with the prefix itself are found by valueSearch()
+            if (next[m] == 0)
+                return;
+            int distance = Math.min(best, next[m]);
+            if (val != NO_ENTRY_VALUE && distance <= maxEdits)
+                results.put(val, distance);
+            if (eqkid != null) {
+                // continue as long as a longer path can be within the bound;
+                // otherwise, all strings below match with the path so far
+                if (min <= maxEdits)
+                    eqkid.fuzzySearch(prefix, next, row, splitchar, distance, maxEdits, results);
+                else if (distance <= maxEdits)
+                    eqkid.collectValues(distance, results);
+            }
+        }
+
+        /**
+         * Places the values of all strings in the subtrie starting with
+         * the current node in a map.
+         * @param distance the value to map them to
+         * @param results the map
+         */
+        private void collectValues(int distance, TIntIntMap results) {
+            if (val != NO_ENTRY_VALUE)
+                results.put(val, distance);
+            if (eqkid != null)
+                eqkid.collectValues(distance, results);
+            if (lokid != null)
+                lokid.collectValues(distance, results);
+            if (hikid != null)
+                hikid.collectValues(distance, results);
+        }
+
         /**
          * Collects all values below the current node
          * @return a set of values
@@ -0,0 +1,208 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.rtrie;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * A trie of n-grams of word ids with their frequencies. Each node stands
+ * for the n-gram of the words on the path from the root to it, so that
+ * n-grams with a common prefix, e.g. a bigram and the trigrams starting
+ * with it, share the nodes of that prefix. Nodes are referred to by their
+ * number and stored in parallel arrays of their last word, their parent
+ * and their frequency, which makes a node as small as three numbers.
+ *
+ * The children of the nodes are only indexed while n-grams are added;
+ * trimToSize() drops the index once all n-grams are added, and the next
+ * n-gram added rebuilds it.
+ */
+public class NGramTrie {
+
+    // the node of the empty n-gram
+    public static final int ROOT = 0;
+    // the value returned for nodes that are not contained
+    public static final int NO_ENTRY_VALUE = -1;
+
+    // the last word of the n-gram of each node
+    private TIntArrayList words;
+    // the parent of each node, NO_ENTRY_VALUE for the root
+    private TIntArrayList parents;
+    // the frequency of the n-gram of each node, NaN for nodes that are
+    // only prefixes of n-grams
+    private TDoubleArrayList freqs;
+    // the child of each node with a word, keyed by key(parent, word);
+    // null until the next n-gram is added after trimToSize()
+    private TLongIntHashMap children;
+    // the number of nodes that are n-grams
+    private int ngramCount;
+
+
+    public NGramTrie() {
+        this.words = new TIntArrayList();
+        this.parents = new TIntArrayList();
+        this.freqs = new TDoubleArrayList();
+        this.children = newIndex();
+        words.add(NO_ENTRY_VALUE);
+        parents.add(NO_ENTRY_VALUE);
+        freqs.add(Double.NaN);
+    }
+
+    /**
+     * Adds an n-gram. If it has been added before, the frequencies are
+     * added up.
+     * @param ngram the word ids of the n-gram
+     * @param freq its frequency
+     * @return the node of the n-gram
+     */
+    public int add(int[] ngram, double freq) {
+        if (children == null)
+            rebuildIndex();
+        int node = ROOT;
+        for (int word : ngram) {
+            long key = key(node, word);
+            int child = children.get(key);
+            if (child == NO_ENTRY_VALUE) {
+                child = words.size();
+                words.add(word);
+                parents.add(node);
+                freqs.add(Double.NaN);
+                children.put(key, child);
+            }
+            node = child;
+        }
+        if (Double.isNaN(freqs.get(node))) {
+            freqs.set(node, freq);
+            ngramCount++;
+        }
+        else
+            freqs.set(node, freqs.get(node) + freq);
+        return node;
+    }
+
+    /**
+     * @param node a node
+     * @return whether the node is an n-gram that has been added, rather
+     * than only a prefix of n-grams
+     */
+    public boolean isNGram(int node) {
+        return !Double.isNaN(freqs.get(node));
+    }
+
+    /**
+     * @param node an n-gram that has been added
+     * @return its frequency
+     */
+    public double getFrequency(int node) {
+        return freqs.get(node);
+    }
+
+    /**
+     * @param node a node other than the root
+     * @return the last word of its n-gram
+     */
+    public int getWord(int node) {
+        return words.get(node);
+    }
+
+    /**
+     * @param node a node other than the root
+     * @return the node of the n-gram without the last word
+     */
+    public int getParent(int node) {
+        return parents.get(node);
+    }
+
+    /**
+     * @param node a node
+     * @return the number of words of its n-gram
+     */
+    public int getLength(int node) {
+        int length = 0;
+        for (int n = node; n != ROOT; n = parents.get(n))
+            length++;
+        return length;
+    }
+
+    /**
+     * @param node a node
+     * @return the word ids of its n-gram
+     */
+    public int[] getNGram(int node) {
+        int[] ngram = new int[getLength(node)];
+        for (int n = node, i = ngram.length - 1; n != ROOT; n = parents.get(n), i--)
+            ngram[i] = words.get(n);
+        return ngram;
+    }
+
+    /**
+     * @param ngram the word ids of an n-gram
+     * @return its node, NO_ENTRY_VALUE if it is neither an n-gram nor a
+     * prefix of one
+     */
+    public int get(int[] ngram) {
+        if (children == null)
+            rebuildIndex();
+        int node = ROOT;
+        for (int i = 0; i < ngram.length && node != NO_ENTRY_VALUE; i++)
+            node = children.get(key(node, ngram[i]));
+        return node;
+    }
+
+    /**
+     * @return the number of nodes including the root
+     */
+    public int size() {
+        return words.size();
+    }
+
+    /**
+     * @return the number of n-grams that have been added
+     */
+    public int getNGramCount() {
+        return ngramCount;
+    }
+
+    /**
+     * @return the capacity of the index of the children, 0 if it has been
+     * dropped
+     */
+    public int getIndexCapacity() {
+        return (children == null) ? 0 : children.capacity();
+    }
+
+    /**
+     * Drops the index of the children and trims the arrays of the nodes
+     * to their size, once all n-grams are added.
+     */
+    public void trimToSize() {
+        children = null;
+        words.trimToSize();
+        parents.trimToSize();
+        freqs.trimToSize();
+    }
+
+    private void rebuildIndex() {
+        children = newIndex();
+        for (int node = ROOT + 1; node < words.size(); node++)
+            children.put(key(parents.get(node), words.get(node)), node);
+    }
+
+    private static TLongIntHashMap newIndex() {
+        return new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0, NO_ENTRY_VALUE);
+    }
+
+    /**
+     * @param parent a node
+     * @param word a word id
+     * @return the key of the child of the node with that word
+     */
+    private static long key(int parent, int word) {
+        return ((long) parent << 32) | (word & 0xFFFFFFFFL);
+    }
+}
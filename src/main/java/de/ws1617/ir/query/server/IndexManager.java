@@ -0,0 +1,415 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.metrics.MemoryReport;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the index a server answers requests with, and replaces it with a
+ * new generation without interrupting requests. A new generation is loaded
+ * and validated in the background while the current one keeps answering
+ * requests; it is then swapped in atomically. Requests that are still
+ * running on the old generation finish on it, and the old generation is
+ * released once the last of them is done.
+ *
+ * Generations are subfolders of a root folder, e.g. index/2017-01-31/, and
+ * the newest one is the last in lexicographic order. A watcher can reload
+ * automatically when a new generation appears in the root folder.
+ *
+ * Since both generations are in memory during a swap, the peak heap usage
+ * during each swap is reported.
+ */
+public class IndexManager {
+
+    // the files a generation has to contain, next to the n-gram files of
+    // any higher orders
+    private static final String[] REQUIRED_FILES = { "wordIDs", "docsets", "ngrams-1" };
+    // the number of words used to validate a new generation
+    private static final int PROBES = 20;
+    // the time without changes in the root folder after which a new
+    // generation is considered complete, in ms
+    private static final long QUIET_PERIOD = 2000;
+
+    // the generation requests are answered with
+    private final AtomicReference<Generation> current;
+    // the root folder of the generations, null for a fixed index
+    private final File root;
+    // the thread watching the root folder, if started
+    private Thread watcher;
+    // the report of the last swap
+    private volatile String lastReport;
+    // called after each swap, e.g. to drop caches referring to the old
+    // generation
+    private final List<Runnable> swapListeners = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Creates a manager for a fixed index that is never replaced.
+     * @param q the index
+     */
+    public IndexManager(QuerySuggestor q) {
+        this.root = null;
+        this.current = new AtomicReference<>(new Generation(q, null, 0));
+    }
+
+    /**
+     * Creates a manager for the generations in a root folder and loads
+     * the newest one.
+     * @param root the root folder
+     * @throws IOException if there is no valid generation
+     */
+    public IndexManager(String root) throws IOException {
+        this.root = new File(root);
+        File newest = findNewest();
+        if (newest == null)
+            throw new IOException("No complete index generation in " + root);
+        QuerySuggestor q = Main.read(newest.getPath() + File.separator);
+        validate(q);
+        this.current = new AtomicReference<>(new Generation(q, newest, 1));
+    }
+
+    /**
+     * Adds a listener that is called after each swap, before the old
+     * generation is released. Anything referring to the index of the old
+     * generation has to be dropped by a listener, or the generation cannot
+     * be garbage collected once its requests are done.
+     * @param listener the listener
+     */
+    public void addSwapListener(Runnable listener) {
+        swapListeners.add(listener);
+    }
+
+    /**
+     * Gets the current generation for a request, which has to release it
+     * once it is done. The generation is not freed before that, even if it
+     * is replaced in the meantime.
+     * @return the current generation
+     */
+    public Generation acquire() {
+        while (true) {
+            Generation gen = current.get();
+            if (gen.tryAcquire())
+                return gen;
+            // the generation was replaced and released in the meantime
+        }
+    }
+
+    /**
+     * Loads a generation, validates it and swaps it in. The current
+     * generation keeps answering requests while the new one is loaded.
+     * @param dir the folder of the new generation
+     * @throws IOException if it cannot be loaded or is invalid, in which
+     * case the current generation is kept
+     */
+    public synchronized void reload(File dir) throws IOException {
+        Generation old = current.get();
+        long before = usedHeap();
+        resetPeakHeap();
+        long start = System.currentTimeMillis();
+
+        QuerySuggestor q = Main.read(dir.getPath() + File.separator);
+        validate(q);
+        // keep collecting metrics across generations
+        q.setMetrics(old.q.getMetrics());
+        q.setMaxEdits(old.q.getMaxEdits());
+        q.setFolding(old.q.hasFolding());
+        q.setPairIndex(old.q.hasPairIndex());
+        q.setSketches(old.q.getSketchSize(), old.q.getSketchCutoff());
+
+        Generation gen = new Generation(q, dir, old.number + 1);
+        current.set(gen);
+        long peak = peakHeap();
+        long swapped = usedHeap();
+        for (Runnable listener : swapListeners)
+            listener.run();
+        // requests still running on the old generation keep it until they
+        // are done, otherwise it is unreachable from here on
+        old.release();
+
+        // the heap used after the release only drops once the old
+        // generation has been collected, which is not forced here
+        lastReport = String.format("Swapped in generation %d from %s after %d ms; heap used before %d MB, peak %d MB (both generations), after the swap %d MB, after releasing generation %d %d MB; estimated index size %d MB",
+                gen.number, dir, System.currentTimeMillis() - start, before >> 20, peak >> 20, swapped >> 20, old.number, usedHeap() >> 20, q.memoryReport().getTotalBytes() >> 20);
+        System.out.println(lastReport);
+    }
+
+    /**
+     * Loads the newest generation in the root folder if it is not the
+     * current one.
+     * @return true if a new generation was swapped in
+     * @throws IOException if it cannot be loaded or is invalid
+     */
+    public boolean reloadNewest() throws IOException {
+        File newest = findNewest();
+        if (newest == null || newest.equals(current.get().dir))
+            return false;
+        reload(newest);
+        return true;
+    }
+
+    /**
+     * Starts a thread that loads the newest generation whenever the root
+     * folder has changed and then remained unchanged for a while.
+     * @throws IOException if the root folder cannot be watched
+     */
+    public synchronized void startWatcher() throws IOException {
+        if (root == null || watcher != null)
+            return;
+        WatchService service = FileSystems.getDefault().newWatchService();
+        root.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watcher = new Thread(() -> watch(service), "index-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops the watcher thread.
+     */
+    public synchronized void stopWatcher() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * @return the estimated heap usage of the current generation
+     */
+    public MemoryReport memoryReport() {
+        Generation gen = acquire();
+        try {
+            return gen.q.memoryReport();
+        }
+        finally {
+            gen.release();
+        }
+    }
+
+    /**
+     * @return the report of the last swap, null if there was none
+     */
+    public String getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Waits for changes in the root folder and reloads once they are
+     * complete, i.e. no further changes occur within the quiet period.
+     * New generation folders are watched as well, so that files written
+     * into them delay the reload.
+     * @param service the watch service of the root folder
+     */
+    private void watch(WatchService service) {
+        boolean changed = false;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = service.poll(QUIET_PERIOD, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && key.watchable().equals(root.toPath())) {
+                            Path dir = root.toPath().resolve((Path) event.context());
+                            if (Files.isDirectory(dir))
+                                dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        }
+                        changed = true;
+                    }
+                    if (!key.reset())
+                        key.cancel();
+                }
+                else if (changed) {
+                    changed = false;
+                    try {
+                        reloadNewest();
+                    }
+                    catch (IOException | RuntimeException e) {
+                        System.err.println("Could not load the new index generation, keeping generation " + current.get().number + ".");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            try {
+                service.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the last complete generation folder in lexicographic order,
+     * null if there is none
+     */
+    private File findNewest() {
+        File[] dirs = root.listFiles(File::isDirectory);
+        if (dirs == null)
+            return null;
+        File newest = null;
+        for (File dir : dirs)
+            if (isComplete(dir) && (newest == null || dir.getName().compareTo(newest.getName()) > 0))
+                newest = dir;
+        return newest;
+    }
+
+    /**
+     * @param dir a folder
+     * @return true if it contains all data files of an index, i.e. the
+     * required files and the n-gram files of all orders from 2 up to the
+     * highest one it contains
+     */
+    private static boolean isComplete(File dir) {
+        for (String file : REQUIRED_FILES)
+            if (!new File(dir, file).isFile())
+                return false;
+        List<Integer> orders = Main.nGramOrders(dir.getPath() + File.separator);
+        for (int i = 0; i < orders.size(); i++)
+            if (orders.get(i) != i + 2)
+                return false;
+        return true;
+    }
+
+    /**
+     * Checks that a loaded index can be used to answer requests: it has
+     * to contain unigrams, and queries for some of its words have to
+     * succeed and return suggestions.
+     * @param q the index
+     * @throws IOException if it is invalid
+     */
+    private static void validate(QuerySuggestor q) throws IOException {
+        if (q.getUnigramCount() == 0)
+            throw new IOException("The index does not contain any unigrams.");
+        boolean found = false;
+        int probes = Math.min(PROBES, q.getVocabularySize());
+        try {
+            for (int id = 0; id < probes; id++) {
+                String word = q.getWord(id);
+                found |= !q.queryPartial("", word.substring(0, 1), 10).isEmpty();
+                q.queryComplete("", word, 10);
+            }
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Queries on the index failed.", e);
+        }
+        if (!found)
+            throw new IOException("Queries on the index did not return any suggestions.");
+    }
+
+    /**
+     * @return the heap currently in use in bytes
+     */
+    private static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * Resets the peak usage of all heap memory pools.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    /**
+     * @return the sum of the peak usages of all heap memory pools since
+     * they were reset in bytes, an upper bound of the peak heap usage
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for (MemoryPoolMXBean pool : pools)
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+
+    /**
+     * A loaded index with the number of requests using it. The count
+     * starts at one for the manager's own reference, which is released
+     * when the generation is replaced; once the count drops to zero, the
+     * index is released and cannot be acquired anymore.
+     */
+    public static class Generation {
+
+        // the index, null once released
+        private volatile QuerySuggestor q;
+        // the folder it was loaded from, null for a fixed index
+        private final File dir;
+        // the number of this generation
+        private final int number;
+        // the number of references to this generation
+        private final AtomicInteger references;
+
+        private Generation(QuerySuggestor q, File dir, int number) {
+            this.q = q;
+            this.dir = dir;
+            this.number = number;
+            this.references = new AtomicInteger(1);
+        }
+
+        /**
+         * Adds a reference unless the generation has been released.
+         * @return true if the reference was added
+         */
+        private boolean tryAcquire() {
+            while (true) {
+                int refs = references.get();
+                if (refs == 0)
+                    return false;
+                if (references.compareAndSet(refs, refs + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Removes a reference, releasing the index after the last one.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                q = null;
+                if (dir != null)
+                    System.out.println("Released index generation " + number + " from " + dir + "; heap used " + (usedHeap() >> 20) + " MB.");
+            }
+        }
+
+        /**
+         * @return the index of this generation
+         */
+        public QuerySuggestor getSuggestor() {
+            return q;
+        }
+
+        /**
+         * @return the number of this generation
+         */
+        public int getNumber() {
+            return number;
+        }
+    }
+}
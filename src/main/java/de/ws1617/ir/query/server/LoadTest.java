@@ -0,0 +1,147 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of a SuggestionServer with a single shared
+ * QuerySuggestor for an increasing number of concurrent clients. The
+ * queries are partial and complete queries built from random words of the
+ * vocabulary. It accepts input of the form:
+ *
+ * -data <data folder> -seconds <duration per step> -clients <maximum number of clients>
+ *
+ * The server uses one worker thread per core, so the throughput should
+ * grow with the number of clients until all cores are busy.
+ */
+public class LoadTest {
+
+    // the number of distinct queries
+    private static final int NO_OF_QUERIES = 10000;
+
+
+    public static void main(String[] args) throws Exception {
+        String data = Main.DATA_DIR;
+        int seconds = 10;
+        int maxClients = 2 * Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "-clients": maxClients = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    System.err.println("Applicable parameters: -data <folder> -seconds <n> -clients <n>");
+                    System.exit(1);
+            }
+        }
+
+        SuggestionServer.configure(10);
+        List<String> queries = buildQueries(data);
+        QuerySuggestor q = Main.load(data);
+        int threads = Runtime.getRuntime().availableProcessors();
+        SuggestionServer server = new SuggestionServer(q, 0, threads, threads * 64, 256);
+        server.start();
+        String base = "http://localhost:" + server.getPort() + "/suggest?q=";
+
+        // warm up
+        run(base, queries, threads, seconds);
+
+        System.out.println("clients\treq/s\tavg ms");
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            long[] result = run(base, queries, clients, seconds);
+            System.out.printf("%d\t%.1f\t%.3f%n", clients, result[0] / (double) seconds, result[1] / 1e6 / Math.max(1, result[0]));
+        }
+        server.stop(0);
+    }
+
+    /**
+     * Sends queries from several client threads for a given time.
+     * @param base the URL to which the query is appended
+     * @param queries the queries
+     * @param clients the number of client threads
+     * @param seconds the duration
+     * @return the number of requests and the sum of their latencies in ns
+     */
+    private static long[] run(String base, List<String> queries, int clients, int seconds) throws InterruptedException {
+        AtomicLong requests = new AtomicLong();
+        AtomicLong latency = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int c = 0; c < clients; c++) {
+            Random random = new Random(c);
+            new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        String query = queries.get(random.nextInt(queries.size()));
+                        long start = System.nanoTime();
+                        get(base + URLEncoder.encode(query, "UTF-8"));
+                        latency.addAndGet(System.nanoTime() - start);
+                        requests.incrementAndGet();
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+                finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return new long[]{requests.get(), latency.get()};
+    }
+
+    /**
+     * Sends a request and reads the complete response, so that the
+     * connection is returned to the keep-alive cache.
+     * @param url the URL
+     * @throws IOException
+     */
+    private static void get(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) != -1);
+        }
+    }
+
+    /**
+     * Builds partial and complete queries of one or two words from random
+     * words of the vocabulary.
+     * @param data the data folder
+     * @return the queries
+     */
+    private static List<String> buildQueries(String data) throws IOException {
+        List<String> words;
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(data + "wordIDs"), "UTF-8"))) {
+            words = DataCompressor.readWordIDsToList(read);
+        }
+        Random random = new Random(42);
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < NO_OF_QUERIES; i++) {
+            String word = words.get(random.nextInt(words.size()));
+            String query = random.nextBoolean() ? word + ' ' : word.substring(0, 1 + random.nextInt(word.length()));
+            if (random.nextBoolean())
+                query = words.get(random.nextInt(words.size())) + ' ' + query;
+            queries.add(query);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import de.ws1617.ir.query.metrics.QueryMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers requests to /metrics with the text report of the query metrics.
+ * With /metrics?reset, the metrics are reset after the report.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    // the metrics to report
+    private final QueryMetrics metrics;
+
+
+    public MetricsHandler(QueryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1);
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            byte[] bytes = metrics.getReport().getBytes(StandardCharsets.UTF_8);
+            if (query != null && query.equals("reset"))
+                metrics.reset();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.load.Keystrokes;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+
+/**
+ * Checks that an index generation replaced by IndexManager.reload() can
+ * be garbage collected once its requests are done, i.e. that nothing in
+ * the server, such as the context caches of the sessions, still refers to
+ * it. It starts a SuggestionServer, replays synthesized keystrokes (see
+ * Keystrokes) in several sessions, so that their context caches are
+ * filled, swaps in the same index again and then collects garbage until
+ * the old index is gone. It accepts input of the form:
+ *
+ * -data <data folder> -queries <n> -sessions <n> -seed <n>
+ *
+ * The program exits with status 1 if the old generation stays reachable.
+ */
+public class ReleaseCheck {
+
+    // the maximum number of garbage collections to wait for the old index
+    private static final int MAX_COLLECTIONS = 20;
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        int queries = 200;
+        int sessions = 50;
+        long seed = 42;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-queries": queries = Integer.parseInt(args[++i]); break;
+                case "-sessions": sessions = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+
+        boolean released = false;
+        try {
+            List<String> keystrokes = Keystrokes.synthesize(data, queries, seed);
+            IndexManager index = new IndexManager(Main.read(data));
+            int threads = Runtime.getRuntime().availableProcessors();
+            SuggestionServer server = new SuggestionServer(index, 0, threads, threads * 64, 256, 0);
+            server.start();
+            String base = "http://localhost:" + server.getPort() + "/suggest?session=";
+            replay(base, keystrokes, sessions);
+
+            WeakReference<QuerySuggestor> old = oldSuggestor(index);
+            index.reload(new File(data));
+            int collections = 0;
+            while (old.get() != null && collections < MAX_COLLECTIONS) {
+                System.gc();
+                Thread.sleep(100);
+                collections++;
+            }
+            released = old.get() == null;
+            Runtime r = Runtime.getRuntime();
+            System.out.printf("The old generation was %s after %d garbage collections; heap used %d MB.%n",
+                    released ? "collected" : "still reachable", collections, (r.totalMemory() - r.freeMemory()) >> 20);
+
+            // the new generation has to answer the same sessions
+            replay(base, keystrokes, sessions);
+            server.stop(0);
+        }
+        catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(released ? 0 : 1);
+    }
+
+    /**
+     * @param index the index manager
+     * @return a weak reference to the index of the current generation
+     */
+    private static WeakReference<QuerySuggestor> oldSuggestor(IndexManager index) {
+        IndexManager.Generation gen = index.acquire();
+        try {
+            return new WeakReference<>(gen.getSuggestor());
+        }
+        finally {
+            gen.release();
+        }
+    }
+
+    /**
+     * Sends the keystrokes to the server, distributed over several sessions.
+     * @param base the URL to which the session and the query are appended
+     * @param keystrokes the keystrokes
+     * @param sessions the number of sessions
+     * @throws IOException if a request fails
+     */
+    private static void replay(String base, List<String> keystrokes, int sessions) throws IOException {
+        for (int i = 0; i < keystrokes.size(); i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL(base + (i % sessions) + "&q="
+                    + URLEncoder.encode(keystrokes.get(i), "UTF-8")).openConnection();
+            if (conn.getResponseCode() >= 400)
+                throw new IOException("Request failed with status " + conn.getResponseCode() + ".");
+            try (InputStream in = conn.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1);
+            }
+        }
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-queries: Number of synthesized queries, each replayed keystroke by keystroke (optional, default: 200)");
+        System.err.println("\t-sessions: Number of sessions the keystrokes are distributed over (optional, default: 50)");
+        System.err.println("\t-seed: Seed of the query synthesis (optional, default: 42)");
+    }
+
+}
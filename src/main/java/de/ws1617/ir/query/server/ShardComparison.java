@@ -0,0 +1,207 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.load.Keystrokes;
+import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that a sharded index makes the same suggestions as a single
+ * QuerySuggestor with the whole index. It starts one SuggestionServer
+ * process per shard on this machine, replays synthesized keystrokes (see
+ * Keystrokes) against both, and reports every query with different
+ * suggestions. It accepts input of the form:
+ *
+ * -data <data folder> -shards <n> -queries <n> -seed <n> -pairs -sketches <size>/<cutoff>
+ *
+ * The program exits with status 1 if any suggestions differ.
+ */
+public class ShardComparison {
+
+    // the number of suggestions
+    private static final int NO_OF_RESULTS = 10;
+    // the number of differences printed in full
+    private static final int MAX_PRINTED = 10;
+    // the line a server prints once it accepts requests
+    private static final Pattern LISTENING = Pattern.compile("Listening on port (\\d+)");
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        int shards = 3;
+        int queries = 1000;
+        long seed = 42;
+        boolean pairs = false;
+        String sketches = null;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-shards": shards = Integer.parseInt(args[++i]); break;
+                case "-queries": queries = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-pairs": pairs = true; break;
+                case "-sketches": sketches = args[++i]; break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+
+        List<Process> processes = new ArrayList<>();
+        ShardedSuggestor sharded = null;
+        int differences = 0;
+        try {
+            // start the shards
+            List<String> urls = new ArrayList<>();
+            for (int shard = 0; shard < shards; shard++) {
+                Process process = startShard(data, shard, shards, pairs, sketches);
+                processes.add(process);
+                urls.add("http://localhost:" + awaitPort(process, shard));
+            }
+            List<String> words;
+            try (BufferedReader read = new BufferedReader(new InputStreamReader(new FileInputStream(data + "wordIDs"), "UTF-8"))) {
+                words = DataCompressor.readWordIDsToList(read);
+            }
+            sharded = new ShardedSuggestor(words, urls);
+            QuerySuggestor single = Main.read(data);
+            single.setPairIndex(pairs);
+            if (sketches != null) {
+                String[] split = sketches.split("/");
+                single.setSketches(Integer.parseInt(split[0]), Integer.parseInt(split[1]));
+            }
+
+            List<String> keystrokes = Keystrokes.synthesize(data, queries, seed);
+            long singleNanos = 0;
+            long shardedNanos = 0;
+            for (String keystroke : keystrokes) {
+                Query query = Query.parse(keystroke);
+                long start = System.nanoTime();
+                List<String> expected = query.suggest(single, NO_OF_RESULTS);
+                long middle = System.nanoTime();
+                List<String> actual = sharded.suggest(query, NO_OF_RESULTS);
+                shardedNanos += System.nanoTime() - middle;
+                singleNanos += middle - start;
+                if (!expected.equals(actual)) {
+                    if (differences < MAX_PRINTED)
+                        System.out.println("\"" + keystroke + "\": single " + expected + ", sharded " + actual);
+                    differences++;
+                }
+            }
+
+            System.out.printf("%d of %d queries differ with %d shards%n", differences, keystrokes.size(), shards);
+            System.out.printf("mean latency: single %.3f ms, sharded %.3f ms%n",
+                    singleNanos / 1e6 / Math.max(1, keystrokes.size()), shardedNanos / 1e6 / Math.max(1, keystrokes.size()));
+            long[] memory = sharded.memory();
+            System.out.printf("estimated heap: single %.1f MB", single.memoryReport().getTotalBytes() / 1048576.0);
+            for (int shard = 0; shard < memory.length; shard++)
+                System.out.printf(", shard %d %.1f MB", shard, memory[shard] / 1048576.0);
+            System.out.println();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            differences = -1;
+        }
+        finally {
+            if (sharded != null)
+                sharded.close();
+            for (Process process : processes)
+                process.destroy();
+        }
+        if (differences != 0)
+            System.exit(1);
+    }
+
+    /**
+     * Starts a SuggestionServer for one shard in a new JVM with the class
+     * path of this one.
+     * @param data the data folder
+     * @param shard the number of the shard
+     * @param shards the number of shards
+     * @param pairs whether the shard uses a pair index
+     * @param sketches the size and cutoff of the sketches of the shard,
+     *                 null if it uses none
+     * @return the process
+     * @throws IOException if it cannot be started
+     */
+    private static Process startShard(String data, int shard, int shards, boolean pairs, String sketches) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                SuggestionServer.class.getName(), "-data", data, "-port", "0", "-threads", "2", "-shard", shard + "/" + shards));
+        if (pairs)
+            command.add("-pairs");
+        if (sketches != null)
+            command.addAll(Arrays.asList("-sketches", sketches));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        return builder.start();
+    }
+
+    /**
+     * Waits until a shard accepts requests and keeps forwarding its output
+     * to System.err afterwards, so that it never blocks on a full pipe.
+     * @param process the process of the shard
+     * @param shard the number of the shard
+     * @return the port the shard listens to
+     * @throws IOException if the shard exits before it accepts requests
+     */
+    private static int awaitPort(Process process, int shard) throws IOException {
+        BufferedReader read = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        for (String line = read.readLine(); line != null; line = read.readLine()) {
+            Matcher m = LISTENING.matcher(line);
+            if (m.find()) {
+                Thread forward = new Thread(() -> {
+                    try {
+                        for (String l = read.readLine(); l != null; l = read.readLine())
+                            System.err.println("[shard " + shard + "] " + l);
+                    }
+                    catch (IOException e) {
+                        // the shard was stopped
+                    }
+                });
+                forward.setDaemon(true);
+                forward.start();
+                return Integer.parseInt(m.group(1));
+            }
+        }
+        try {
+            process.waitFor(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new IOException("Shard " + shard + " exited before accepting requests.");
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-shards: Number of shards (optional, default: 3)");
+        System.err.println("\t-queries: Number of synthesized queries, each replayed keystroke by keystroke (optional, default: 1000)");
+        System.err.println("\t-seed: Seed of the query synthesis (optional, default: 42)");
+        System.err.println("\t-pairs: Rank the phrases of a complete term that contain the preceding word first (optional)");
+        System.err.println("\t-sketches: Estimate correlations of docsets with at least <cutoff> documents from sketches of <size> hashes, e.g. 128/1024 (optional)");
+    }
+
+}
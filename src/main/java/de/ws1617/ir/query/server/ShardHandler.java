@@ -0,0 +1,161 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import de.ws1617.ir.query.sugg.ScoredPhrase;
+import de.ws1617.ir.query.sugg.ShardCompletions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the requests of a ShardedSuggestor to a server with one shard of
+ * a sharded index. The responses are plain text with one tab-separated
+ * record per line; scores are written with Double.toString(), so that the
+ * coordinator reads exactly the values computed by the shard.
+ *
+ * /shard/resolve?words=<words separated by spaces>
+ *   one line per word with its id, -1 if it is not a unigram of this shard
+ * /shard/completions?context=<ids>&partial=<term>&max=<n>
+ *   the number of completions, then id, score, tf-idf and number of phrases
+ *   of the best n completions
+ * /shard/phrases?context=<ids>&completions=<ids separated by commas>&csum=<sum>&many=<true|false>&k=<n>
+ *   score, preference and word ids of the k most probable phrases of the
+ *   completions
+ * /shard/extensions?context=<ids>&term=<id>&k=<n>
+ *   score, preference and word ids of the k most probable phrases of a
+ *   complete term; the preference is 1 for phrases ranked above all others
+ *   (see QuerySuggestor.setPairIndex()), 0 otherwise
+ *
+ * The context is given as the ids of the query terms preceding the last
+ * one, separated by commas, with -1 for unknown terms.
+ * /shard/memory
+ *   the estimated heap usage of the shard in bytes
+ */
+public class ShardHandler implements HttpHandler {
+
+    // the shard shared by all requests
+    private final IndexManager index;
+
+
+    /**
+     * @param index the shard shared by all requests
+     */
+    public ShardHandler(IndexManager index) {
+        this.index = index;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1);
+            }
+            Map<String, String> params = SuggestHandler.parseParameters(exchange.getRequestURI().getRawQuery());
+            String path = exchange.getRequestURI().getPath();
+            String command = path.substring(path.lastIndexOf('/') + 1);
+
+            StringBuilder response = new StringBuilder();
+            IndexManager.Generation gen = index.acquire();
+            try {
+                QuerySuggestor q = gen.getSuggestor();
+                switch (command) {
+                    case "resolve":
+                        for (String word : params.get("words").split(" "))
+                            response.append(q.getUnigramID(word)).append('\n');
+                        break;
+                    case "completions":
+                        ShardCompletions completions = q.rankCompletions(parseIDs(params.get("context")),
+                                params.get("partial"), Integer.parseInt(params.get("max")));
+                        response.append(completions.getTotal()).append('\n');
+                        for (int i = 0; i < completions.size(); i++)
+                            response.append(completions.getID(i)).append('\t').append(completions.getScore(i)).append('\t')
+                                    .append(completions.getWeight(i)).append('\t').append(completions.getPhrases(i)).append('\n');
+                        break;
+                    case "phrases":
+                        int[] selected = parseIDs(params.get("completions"));
+                        appendPhrases(response, q.scorePhrases(parseIDs(params.get("context")), selected,
+                                Double.parseDouble(params.get("csum")), Boolean.parseBoolean(params.get("many")),
+                                Integer.parseInt(params.get("k"))));
+                        break;
+                    case "extensions":
+                        appendPhrases(response, q.scoreExtensions(parseIDs(params.get("context")),
+                                Integer.parseInt(params.get("term")), Integer.parseInt(params.get("k"))));
+                        break;
+                    case "memory":
+                        response.append(q.memoryReport().getTotalBytes()).append('\n');
+                        break;
+                    default:
+                        send(exchange, 404, "unknown command " + command + "\n");
+                        return;
+                }
+            }
+            finally {
+                gen.release();
+            }
+            send(exchange, 200, response.toString());
+        }
+        catch (RuntimeException e) {
+            // missing or malformed parameters
+            e.printStackTrace();
+            send(exchange, 400, e + "\n");
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @param ids word ids separated by commas, may be empty
+     * @return the ids
+     */
+    private static int[] parseIDs(String ids) {
+        if (ids.isEmpty())
+            return new int[0];
+        String[] fields = ids.split(",");
+        int[] parsed = new int[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            parsed[i] = Integer.parseInt(fields[i]);
+        return parsed;
+    }
+
+    /**
+     * Appends phrases as lines of a score and the word ids.
+     * @param response the response to append to
+     * @param phrases the phrases
+     */
+    private static void appendPhrases(StringBuilder response, List<ScoredPhrase> phrases) {
+        for (ScoredPhrase phrase : phrases) {
+            response.append(phrase.getScore()).append('\t').append(phrase.isPreferred() ? 1 : 0);
+            for (int word : phrase.getNGram())
+                response.append('\t').append(word);
+            response.append('\n');
+        }
+    }
+
+    /**
+     * Sends a plain text response with a fixed length.
+     * @param exchange the exchange
+     * @param status the HTTP status code
+     * @param text the response body
+     * @throws IOException
+     */
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import de.ws1617.ir.query.sugg.ScoredPhrase;
+import de.ws1617.ir.query.sugg.ShardCompletions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Coordinates the shards of an index partitioned by the ids of the words
+ * that can be suggested: each shard (a SuggestionServer started with
+ * -shard) holds the unigrams with id % shards == shard, their trie and
+ * their phrases, as well as the dictionary and all docsets. The shards are
+ * queried in parallel, and their partial results are merged into the
+ * same suggestions a single QuerySuggestor with the whole index would make.
+ *
+ * For a partial last term, the shards first rank their completions; the
+ * coordinator selects the best completions of all shards, and computes
+ * the sum of their tf-idfs which normalizes the completion probabilities.
+ * The shards then score the phrases of their selected completions with
+ * that sum and return their best phrases, which are merged by probability.
+ * For a complete last term, only the shard the term belongs to is asked
+ * for its phrases. With several context terms, each shard intersects their
+ * docsets itself, since all docsets are loaded in every shard.
+ */
+public class ShardedSuggestor {
+
+    // the maximum number of completions a shard returns, i.e. the
+    // maximum number of completions selected
+    private static final int MAX_COMPLETIONS = 100;
+
+    // the dictionary, used to convert the phrases to strings
+    private final QuerySuggestor dictionary;
+    // the base URLs of the shards, in the order of their numbers
+    private final List<String> shards;
+    // the threads sending requests to the shards
+    private final ExecutorService executor;
+
+
+    /**
+     * @param IDToWord the dictionary of the index
+     * @param shards the base URLs of the shards, e.g. http://localhost:8081,
+     *               in the order of their numbers
+     */
+    public ShardedSuggestor(List<String> IDToWord, List<String> shards) {
+        this.dictionary = new QuerySuggestor(IDToWord);
+        this.shards = new ArrayList<>(shards);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-client");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @param id a word id
+     * @param shards the number of shards
+     * @return the shard the word belongs to
+     */
+    public static int shardOf(int id, int shards) {
+        return id % shards;
+    }
+
+    /**
+     * Retrieves suggestions for a query, as Query.suggest() does.
+     * @param query the query
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions, without the greater context
+     * @throws IOException if a shard cannot be reached
+     */
+    public List<String> suggest(Query query, int n) throws IOException {
+        if (query.getLastTerm().isEmpty())
+            return new ArrayList<>();
+        return query.isComplete()
+                ? queryComplete(query.getContextTerms(), query.getLastTerm(), n)
+                : queryPartial(query.getContextTerms(), query.getLastTerm(), n);
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term.
+     * @param context the query terms preceding the last query term, in order
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     * @throws IOException if a shard cannot be reached
+     */
+    public List<String> queryPartial(List<String> context, String partial, int n) throws IOException {
+        int[] contextIDs = context.isEmpty() ? new int[0] : resolve(context.toArray(new String[0]));
+        String contextIDList = join(contextIDs, contextIDs.length);
+
+        // select the best completions of all shards
+        String request = "completions?context=" + contextIDList + "&partial=" + encode(partial) + "&max=" + MAX_COMPLETIONS;
+        List<List<String>> responses = scatter(allShards(), shard -> request);
+        int total = 0;
+        List<double[]> candidates = new ArrayList<>();
+        for (List<String> response : responses) {
+            total += Integer.parseInt(response.get(0));
+            for (String line : response.subList(1, response.size())) {
+                String[] fields = line.split("\t");
+                candidates.add(new double[]{ Integer.parseInt(fields[0]), Double.parseDouble(fields[1]),
+                        Double.parseDouble(fields[2]), Integer.parseInt(fields[3]) });
+            }
+        }
+        int select = QuerySuggestor.completionsToSelect(total);
+        if (total > select) {
+            // by score, and completions with the same score by id
+            candidates.sort((c1, c2) -> {
+                int c = Double.compare(c2[1], c1[1]);
+                return (c != 0) ? c : Double.compare(c1[0], c2[0]);
+            });
+            candidates = candidates.subList(0, select);
+        }
+        if (candidates.isEmpty())
+            return new ArrayList<>();
+
+        // the global sum of the tf-idfs, summed in the order of the ids
+        // as QuerySuggestor does, and the global number of phrases
+        candidates.sort(Comparator.comparingDouble(c -> c[0]));
+        double csum = 0;
+        long phrases = 0;
+        int[] completions = new int[candidates.size()];
+        for (int i = 0; i < completions.length; i++) {
+            completions[i] = (int) candidates.get(i)[0];
+            csum += candidates.get(i)[2];
+            phrases += (long) candidates.get(i)[3];
+        }
+        boolean tooManyPhrases = phrases > QuerySuggestor.MAX_PHRASES;
+
+        // score the phrases of the selected completions in their shards
+        Map<Integer, StringBuilder> byShard = new TreeMap<>();
+        for (int completion : completions) {
+            StringBuilder ids = byShard.computeIfAbsent(shardOf(completion, shards.size()), s -> new StringBuilder());
+            if (ids.length() > 0) ids.append(',');
+            ids.append(completion);
+        }
+        String common = "phrases?context=" + contextIDList + "&csum=" + csum + "&many=" + tooManyPhrases + "&k=" + (int) (n * 1.5);
+        List<ScoredPhrase> scored = new ArrayList<>();
+        for (List<String> response : scatter(byShard.keySet(), shard -> common + "&completions=" + byShard.get(shard)))
+            scored.addAll(parsePhrases(response));
+
+        int contextID = context.isEmpty() ? -1 : contextIDs[contextIDs.length - 1];
+        return dictionary.mergePartial(lastOf(context), contextID, scored, completions, n);
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a complete last
+     * query term.
+     * @param context the query terms preceding the last query term, in order
+     * @param lastTerm the last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     * @throws IOException if a shard cannot be reached
+     */
+    public List<String> queryComplete(List<String> context, String lastTerm, int n) throws IOException {
+        List<String> words = new ArrayList<>(context);
+        words.add(lastTerm);
+        int[] ids = resolve(words.toArray(new String[0]));
+        int lastTermID = ids[ids.length - 1];
+        if (lastTermID == -1)
+            return new ArrayList<>();
+        int shard = shardOf(lastTermID, shards.size());
+        String request = "extensions?context=" + join(ids, ids.length - 1) + "&term=" + lastTermID + "&k=" + (int) (n * 1.5);
+        List<String> response = scatter(Collections.singleton(shard), s -> request).get(0);
+        return dictionary.mergeComplete(lastOf(context), parsePhrases(response), n);
+    }
+
+    /**
+     * @return the estimated heap usage of each shard in bytes
+     * @throws IOException if a shard cannot be reached
+     */
+    public long[] memory() throws IOException {
+        List<List<String>> responses = scatter(allShards(), shard -> "memory");
+        long[] bytes = new long[responses.size()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = Long.parseLong(responses.get(i).get(0));
+        return bytes;
+    }
+
+    /**
+     * Stops the threads sending requests.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Looks up the ids of words in all shards.
+     * @param words the words
+     * @return their ids, -1 for words that are not unigrams of any shard
+     * @throws IOException if a shard cannot be reached
+     */
+    private int[] resolve(String... words) throws IOException {
+        String request = "resolve?words=" + encode(String.join(" ", words));
+        int[] ids = new int[words.length];
+        Arrays.fill(ids, -1);
+        for (List<String> response : scatter(allShards(), shard -> request))
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = Math.max(ids[i], Integer.parseInt(response.get(i)));
+        return ids;
+    }
+
+    /**
+     * @return the numbers of all shards
+     */
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++)
+            all.add(i);
+        return all;
+    }
+
+    /**
+     * Sends requests to several shards in parallel.
+     * @param targets the numbers of the shards
+     * @param requests builds the request to a shard, relative to /shard/
+     * @return the lines of the responses, in the order of the shards
+     * @throws IOException if a shard cannot be reached
+     */
+    private List<List<String>> scatter(Collection<Integer> targets, RequestBuilder requests) throws IOException {
+        List<Future<List<String>>> futures = new ArrayList<>();
+        for (int shard : targets) {
+            String url = shards.get(shard) + "/shard/" + requests.build(shard);
+            futures.add(executor.submit(() -> get(url)));
+        }
+        List<List<String>> responses = new ArrayList<>();
+        try {
+            for (Future<List<String>> future : futures)
+                responses.add(future.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shards.", e);
+        }
+        catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a request and reads the lines of the response.
+     * @param url the URL
+     * @return the lines
+     * @throws IOException if the request fails
+     */
+    private static List<String> get(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        if (conn.getResponseCode() != 200) {
+            conn.getErrorStream().close();
+            throw new IOException("Shard request " + url + " failed with status " + conn.getResponseCode() + ".");
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader read = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = read.readLine(); line != null; line = read.readLine())
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * @param lines lines of a score, a preference and word ids
+     * @return the phrases
+     */
+    private static List<ScoredPhrase> parsePhrases(List<String> lines) {
+        List<ScoredPhrase> phrases = new ArrayList<>();
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            int[] ngram = new int[fields.length - 2];
+            for (int i = 0; i < ngram.length; i++)
+                ngram[i] = Integer.parseInt(fields[i + 2]);
+            phrases.add(new ScoredPhrase(ngram, Double.parseDouble(fields[0]), fields[1].equals("1")));
+        }
+        return phrases;
+    }
+
+    /**
+     * @param ids word ids
+     * @param length the number of ids to join
+     * @return the first ids, separated by commas
+     */
+    private static String join(int[] ids, int length) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) s.append(',');
+            s.append(ids[i]);
+        }
+        return s.toString();
+    }
+
+    /**
+     * @param context the query terms preceding the last query term
+     * @return the word preceding the last query term, empty if there is none
+     */
+    private static String lastOf(List<String> context) {
+        return context.isEmpty() ? "" : context.get(context.size() - 1);
+    }
+
+    private static String encode(String s) throws IOException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+
+    /**
+     * Builds the request to a shard.
+     */
+    private interface RequestBuilder {
+        String build(int shard);
+    }
+}
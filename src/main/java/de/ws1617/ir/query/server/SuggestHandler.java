@@ -0,0 +1,253 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import de.ws1617.ir.query.sugg.CancellationToken;
+import de.ws1617.ir.query.sugg.Query;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+import de.ws1617.ir.query.sugg.Sessions;
+import de.ws1617.ir.query.sugg.SuggestResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers requests of the form /suggest?q=<query>&n=<number of results>
+ * with a JSON object containing the suggestions for the query. As in Main,
+ * the query is converted to lower case, and a trailing space marks the last
+ * query term as complete. With &budget=<milliseconds> or a default budget,
+ * the suggestions are computed within that time and marked as degraded if
+ * the budget did not suffice for the complete computation. With
+ * &session=<id>, a request cancels the running request of the same
+ * session, e.g. for the previous keystroke, which is answered with no
+ * suggestions and marked as cancelled; the documents shared by the context
+ * terms of the session are cached between its requests.
+ */
+public class SuggestHandler implements HttpHandler {
+
+    // the default number of suggestions
+    private static final int DEFAULT_RESULTS = 10;
+    // the maximum number of suggestions
+    private static final int MAX_RESULTS = 100;
+
+    // the index shared by all requests
+    private final IndexManager index;
+    // the time budget of requests without one in ms, 0 for none
+    private final long defaultBudget;
+    // the running requests of all sessions
+    private final Sessions sessions;
+
+
+    public SuggestHandler(QuerySuggestor q) {
+        this(q, 0);
+    }
+
+    /**
+     * @param q the QuerySuggestor shared by all requests
+     * @param defaultBudget the time budget of requests without one in ms, 0 for none
+     */
+    public SuggestHandler(QuerySuggestor q, long defaultBudget) {
+        this(new IndexManager(q), defaultBudget);
+    }
+
+    /**
+     * @param index the index shared by all requests, which may be replaced
+     *              between requests
+     * @param defaultBudget the time budget of requests without one in ms, 0 for none
+     */
+    public SuggestHandler(IndexManager index, long defaultBudget) {
+        this.index = index;
+        this.defaultBudget = defaultBudget;
+        this.sessions = new Sessions();
+        // the context caches must not keep a replaced generation alive
+        index.addSwapListener(sessions::clearContextCaches);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            // consume the request body so that the connection can be reused
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1);
+            }
+
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, "{\"error\":\"only GET is supported\"}");
+                return;
+            }
+
+            Map<String, String> params;
+            try {
+                params = parseParameters(exchange.getRequestURI().getRawQuery());
+            }
+            catch (IllegalArgumentException e) {
+                send(exchange, 400, "{\"error\":\"malformed query string\"}");
+                return;
+            }
+            String query = params.get("q");
+            if (query == null) {
+                send(exchange, 400, "{\"error\":\"missing parameter q\"}");
+                return;
+            }
+            int n = DEFAULT_RESULTS;
+            if (params.containsKey("n")) {
+                try {
+                    n = Math.max(1, Math.min(MAX_RESULTS, Integer.parseInt(params.get("n"))));
+                }
+                catch (NumberFormatException e) {
+                    send(exchange, 400, "{\"error\":\"invalid parameter n\"}");
+                    return;
+                }
+            }
+
+            long budget = defaultBudget;
+            if (params.containsKey("budget")) {
+                try {
+                    budget = Math.max(0, Long.parseLong(params.get("budget")));
+                }
+                catch (NumberFormatException e) {
+                    send(exchange, 400, "{\"error\":\"invalid parameter budget\"}");
+                    return;
+                }
+            }
+
+            // get query suggestions
+            long start = System.nanoTime();
+            Query parsed = Query.parse(query.toLowerCase());
+            String session = params.get("session");
+            List<String> results;
+            boolean degraded = false;
+            boolean cancelled = false;
+            // the generation is kept until the request is done, even if
+            // it is replaced in the meantime
+            IndexManager.Generation gen = index.acquire();
+            try {
+                QuerySuggestor q = gen.getSuggestor();
+                if (session != null) {
+                    CancellationToken token = sessions.start(session);
+                    try {
+                        SuggestResult result = parsed.suggest(q, n, budget, TimeUnit.MILLISECONDS, token, sessions.getContextCache(session));
+                        results = result.getSuggestions();
+                        degraded = result.isDegraded();
+                    }
+                    catch (CancellationException e) {
+                        // superseded by a later request of the session
+                        results = new ArrayList<>();
+                        cancelled = true;
+                    }
+                    finally {
+                        sessions.finish(session, token);
+                    }
+                }
+                else if (budget > 0) {
+                    SuggestResult result = parsed.suggest(q, n, budget, TimeUnit.MILLISECONDS);
+                    results = result.getSuggestions();
+                    degraded = result.isDegraded();
+                }
+                else
+                    results = parsed.suggest(q, n);
+            }
+            finally {
+                gen.release();
+            }
+            long micros = (System.nanoTime() - start) / 1000;
+
+            // convert to JSON, prepending the greater context as in Main
+            StringBuilder json = new StringBuilder();
+            json.append("{\"query\":");
+            appendString(json, query);
+            json.append(",\"complete\":").append(parsed.isComplete());
+            json.append(",\"suggestions\":[");
+            String prefix = parsed.getGreaterContext().isEmpty() ? "" : parsed.getGreaterContext() + ' ';
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) json.append(',');
+                appendString(json, prefix + results.get(i));
+            }
+            json.append("],\"degraded\":").append(degraded);
+            json.append(",\"cancelled\":").append(cancelled);
+            json.append(",\"micros\":").append(micros).append('}');
+            send(exchange, 200, json.toString());
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+            send(exchange, 500, "{\"error\":\"internal error\"}");
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends a JSON response with a fixed length, which allows the client
+     * to keep the connection alive.
+     * @param exchange the exchange
+     * @param status the HTTP status code
+     * @param json the response body
+     * @throws IOException
+     */
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Splits a raw URL query string into its decoded parameters.
+     * @param rawQuery the raw query string, may be null
+     * @return a map from parameter names to values
+     */
+    static Map<String, String> parseParameters(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq+1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Appends a string as a JSON string literal.
+     * @param json the JSON to append to
+     * @param s the string
+     */
+    static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
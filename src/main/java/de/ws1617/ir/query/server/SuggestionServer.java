@@ -0,0 +1,315 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.server;
+
+import com.sun.net.httpserver.HttpServer;
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.metrics.IndexMemory;
+import de.ws1617.ir.query.metrics.QueryMetrics;
+import de.ws1617.ir.query.sugg.QuerySuggestor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+
+/**
+ * An HTTP server answering suggestion requests with a single shared
+ * QuerySuggestor. It accepts input of the form:
+ *
+ * -data <data folder> -port <port> -threads <n> -queue <n> -backlog <n> -timeout <seconds>
+ * -slow <milliseconds> -budget <milliseconds> -typos <edits> -fold -pairs -sketches <size>/<cutoff> -watch
+ *
+ * Requests are handled by a fixed number of worker threads. Requests that
+ * arrive while all workers are busy wait in a bounded queue; if that queue
+ * is full as well, the thread accepting connections handles the request
+ * itself, so that no new connections are accepted until the load drops and
+ * further clients wait in the (bounded) accept backlog of the socket.
+ * Connections are kept alive between requests; the timeouts for reading a
+ * request, writing a response and idle connections are set through the
+ * system properties of the JDK's HTTP server.
+ *
+ * With -slow, per-stage query metrics are collected, registered with JMX,
+ * served as text at /metrics and queries taking longer than the given
+ * number of milliseconds are logged to System.err. With -budget, requests
+ * without a budget of their own are answered within that many
+ * milliseconds, possibly with degraded results. With -typos, partial
+ * query terms with up to that many mistyped characters still get
+ * suggestions (see QuerySuggestor.setMaxEdits()). With -fold, the last
+ * query term matches unigrams regardless of accents and case (see
+ * QuerySuggestor.setFolding()). With -pairs, the phrases
+ * of a complete last term that contain the word preceding it are ranked
+ * first (see QuerySuggestor.setPairIndex()). With -sketches, the
+ * correlations of docsets with at least cutoff documents are estimated
+ * from sketches of size hashes (see QuerySuggestor.setSketches()).
+ *
+ * With -watch, the data folder is the root folder of several index
+ * generations (see IndexManager). The newest one is loaded at startup, and
+ * new generations are swapped in without a restart as soon as they appear.
+ *
+ * With -shard <i>/<n>, the server only loads the i-th of n shards of the
+ * index and answers the requests of a ShardedSuggestor (see ShardHandler).
+ *
+ * The estimated heap usage of each structure of the current index is
+ * always available through JMX (see IndexMemory).
+ */
+public class SuggestionServer {
+
+    // the default port
+    private static final int DEFAULT_PORT = 8080;
+    // the default size of the queue of waiting requests per worker thread
+    private static final int QUEUE_PER_THREAD = 64;
+    // the default size of the accept backlog
+    private static final int DEFAULT_BACKLOG = 256;
+    // the default request timeout in seconds
+    private static final int DEFAULT_TIMEOUT = 10;
+
+    // the HTTP server
+    private final HttpServer server;
+    // the worker threads
+    private final ThreadPoolExecutor executor;
+    // the index shared by all requests
+    private final IndexManager index;
+
+
+    /**
+     * Creates a server that answers requests at /suggest, and at /metrics
+     * if the QuerySuggestor collects metrics.
+     * @param q the QuerySuggestor shared by all requests
+     * @param port the port to listen to, 0 for any free port
+     * @param threads the number of worker threads
+     * @param queueSize the maximum number of requests waiting for a worker
+     * @param backlog the maximum number of connections waiting to be accepted
+     * @throws IOException if the server cannot be bound to the port
+     */
+    public SuggestionServer(QuerySuggestor q, int port, int threads, int queueSize, int backlog) throws IOException {
+        this(q, port, threads, queueSize, backlog, 0);
+    }
+
+    /**
+     * Creates a server that answers requests at /suggest, and at /metrics
+     * if the QuerySuggestor collects metrics.
+     * @param q the QuerySuggestor shared by all requests
+     * @param port the port to listen to, 0 for any free port
+     * @param threads the number of worker threads
+     * @param queueSize the maximum number of requests waiting for a worker
+     * @param backlog the maximum number of connections waiting to be accepted
+     * @param budget the time budget of requests without one in ms, 0 for none
+     * @throws IOException if the server cannot be bound to the port
+     */
+    public SuggestionServer(QuerySuggestor q, int port, int threads, int queueSize, int backlog, long budget) throws IOException {
+        this(new IndexManager(q), port, threads, queueSize, backlog, budget);
+    }
+
+    /**
+     * Creates a server that answers requests at /suggest with the current
+     * generation of an index, and at /metrics if it collects metrics.
+     * @param index the index shared by all requests
+     * @param port the port to listen to, 0 for any free port
+     * @param threads the number of worker threads
+     * @param queueSize the maximum number of requests waiting for a worker
+     * @param backlog the maximum number of connections waiting to be accepted
+     * @param budget the time budget of requests without one in ms, 0 for none
+     * @throws IOException if the server cannot be bound to the port
+     */
+    public SuggestionServer(IndexManager index, int port, int threads, int queueSize, int backlog, long budget) throws IOException {
+        AtomicInteger threadNo = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "suggest-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.index = index;
+        this.server = HttpServer.create(new InetSocketAddress(port), backlog);
+        server.createContext("/suggest", new SuggestHandler(index, budget));
+        // the metrics are passed on to new generations
+        IndexManager.Generation gen = index.acquire();
+        QueryMetrics metrics = gen.getSuggestor().getMetrics();
+        gen.release();
+        if (metrics != null)
+            server.createContext("/metrics", new MetricsHandler(metrics));
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Answers the requests of a ShardedSuggestor at /shard/ instead of
+     * suggestion requests, for an index that only contains one shard.
+     */
+    public void serveShard() {
+        server.removeContext("/suggest");
+        server.createContext("/shard/", new ShardHandler(index));
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server after waiting for open requests to finish.
+     * @param delay the maximum time to wait in seconds
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        executor.shutdown();
+    }
+
+    /**
+     * @return the port the server listens to
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Sets the timeouts of the JDK's HTTP server unless they have already
+     * been set on the command line. Also disables Nagle's algorithm, which
+     * would otherwise delay small responses on kept-alive connections. Has
+     * to be called before the first server is created, and applies to all
+     * servers in this JVM.
+     * @param timeout the timeout in seconds
+     */
+    public static void configure(int timeout) {
+        setPropertyIfAbsent("sun.net.httpserver.nodelay", "true");
+        String t = Integer.toString(timeout);
+        // time to read a request and to write a response
+        setPropertyIfAbsent("sun.net.httpserver.maxReqTime", t);
+        setPropertyIfAbsent("sun.net.httpserver.maxRspTime", t);
+        // time an idle keep-alive connection is kept open
+        setPropertyIfAbsent("sun.net.httpserver.idleInterval", t);
+    }
+
+    private static void setPropertyIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null)
+            System.setProperty(key, value);
+    }
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = -1;
+        int backlog = DEFAULT_BACKLOG;
+        int timeout = DEFAULT_TIMEOUT;
+        long slow = -1;
+        long budget = 0;
+        int typos = 0;
+        boolean fold = false;
+        boolean pairs = false;
+        int sketchSize = 0;
+        int sketchCutoff = 0;
+        boolean watch = false;
+        int shard = -1;
+        int shards = 0;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-queue": queue = Integer.parseInt(args[++i]); break;
+                case "-backlog": backlog = Integer.parseInt(args[++i]); break;
+                case "-timeout": timeout = Integer.parseInt(args[++i]); break;
+                case "-slow": slow = Long.parseLong(args[++i]); break;
+                case "-budget": budget = Long.parseLong(args[++i]); break;
+                case "-typos": typos = Integer.parseInt(args[++i]); break;
+                case "-fold": fold = true; break;
+                case "-pairs": pairs = true; break;
+                case "-sketches":
+                    String[] sketches = args[++i].split("/");
+                    sketchSize = Integer.parseInt(sketches[0]);
+                    sketchCutoff = Integer.parseInt(sketches[1]);
+                    break;
+                case "-watch": watch = true; break;
+                case "-shard":
+                    String[] split = args[++i].split("/");
+                    shard = Integer.parseInt(split[0]);
+                    shards = Integer.parseInt(split[1]);
+                    break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (queue < 0)
+            queue = threads * QUEUE_PER_THREAD;
+        if (shards > 0 && (watch || shard < 0 || shard >= shards)) {
+            System.err.println("Please specify a shard between 0 and the number of shards - 1, without -watch.");
+            printParameters();
+            System.exit(1);
+        }
+
+        configure(timeout);
+        try {
+            IndexManager index;
+            if (watch)
+                index = new IndexManager(data);
+            else if (shards > 0) {
+                int s = shard;
+                int n = shards;
+                index = new IndexManager(Main.read(data, id -> ShardedSuggestor.shardOf(id, n) == s));
+            }
+            else
+                index = new IndexManager(Main.load(data));
+            IndexManager.Generation gen = index.acquire();
+            if (slow >= 0) {
+                QueryMetrics metrics = new QueryMetrics(slow);
+                metrics.register();
+                gen.getSuggestor().setMetrics(metrics);
+            }
+            gen.getSuggestor().setMaxEdits(typos);
+            gen.getSuggestor().setFolding(fold);
+            gen.getSuggestor().setPairIndex(pairs);
+            gen.getSuggestor().setSketches(sketchSize, sketchCutoff);
+            gen.release();
+            new IndexMemory(index::memoryReport).register();
+            SuggestionServer server = new SuggestionServer(index, port, threads, queue, backlog, budget);
+            if (shards > 0)
+                server.serveShard();
+            server.start();
+            if (watch)
+                index.startWatcher();
+            System.out.println("Listening on port " + server.getPort() + " with " + threads + " threads.");
+        }
+        catch (IOException | JMException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files, or with generations of them with -watch (optional, default: src/main/resources/)");
+        System.err.println("\t-port: Port to listen to (optional, default: " + DEFAULT_PORT + ")");
+        System.err.println("\t-threads: Number of worker threads (optional, default: number of cores)");
+        System.err.println("\t-queue: Maximum number of waiting requests (optional, default: " + QUEUE_PER_THREAD + " per thread)");
+        System.err.println("\t-backlog: Maximum number of connections waiting to be accepted (optional, default: " + DEFAULT_BACKLOG + ")");
+        System.err.println("\t-timeout: Request and idle connection timeout in seconds (optional, default: " + DEFAULT_TIMEOUT + ")");
+        System.err.println("\t-slow: Collect query metrics and log queries slower than this many milliseconds (optional)");
+        System.err.println("\t-shard: Serve shard <i>/<n> of the index to a ShardedSuggestor instead of suggestions (optional)");
+        System.err.println("\t-watch: Treat the data folder as a folder of index generations and load new ones automatically (optional)");
+        System.err.println("\t-budget: Default time budget of a request in milliseconds (optional, default: none)");
+        System.err.println("\t-typos: Maximum number of mistyped characters in a partial query term, 0 to 2 (optional, default: 0)");
+        System.err.println("\t-fold: Match the last query term regardless of accents and case (optional)");
+        System.err.println("\t-pairs: Rank the phrases of a complete term that contain the preceding word first (optional)");
+        System.err.println("\t-sketches: Estimate correlations of docsets with at least <cutoff> documents from sketches of <size> hashes, e.g. 128/1024 (optional)");
+    }
+
+}
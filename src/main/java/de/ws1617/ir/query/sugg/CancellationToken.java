@@ -0,0 +1,33 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+/**
+ * Signals a running query that its result is no longer needed, e.g.
+ * because the user has typed another character. The QuerySuggestor checks
+ * the token between stages and inside its loops over completions, phrases
+ * and intersections, and stops the query with a CancellationException.
+ */
+public class CancellationToken {
+
+    // whether the query has been cancelled
+    private volatile boolean cancelled;
+
+
+    /**
+     * Cancels the query. Has no effect if it has already finished.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return true if the query has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The documents shared by the context terms of the queries of one session,
+ * i.e. the intersection of their docsets, which completions and phrases
+ * are correlated with. The intersection after each term is kept, so that
+ * when the user types another character or adds another term, only the
+ * new terms have to be intersected, and removing terms costs nothing.
+ *
+ * Terms without a docset are skipped. If a term shares no document with
+ * the terms before it, the intersection starts over with that term, so
+ * that the terms closest to the last query term take precedence.
+ *
+ * The cache only refers weakly to the index the intersections were
+ * computed in, so that the caches of idle sessions do not keep an index
+ * alive after it has been replaced (see IndexManager); the intersections
+ * themselves are dropped with clear() or by the next call with another
+ * index.
+ */
+public class ContextCache {
+
+    // the index the intersections were computed in
+    private WeakReference<QuerySuggestor> index;
+    // the ids of the context terms, -1 for unknown terms
+    private final TIntList terms;
+    // the intersection after each term, null while no term had a docset
+    private final List<int[]> docs;
+    // the number of terms whose intersection was reused
+    private long reused;
+    // the number of terms whose intersection was computed
+    private long computed;
+
+
+    public ContextCache() {
+        this.terms = new TIntArrayList();
+        this.docs = new ArrayList<>();
+        this.index = new WeakReference<>(null);
+    }
+
+    /**
+     * Gets the documents shared by some context terms, reusing the
+     * intersection of the longest common prefix with the terms of the
+     * previous call.
+     * @param q the index
+     * @param ids the ids of the context terms in order, -1 for unknown terms
+     * @return the sorted ids of the shared documents, null if none of the
+     * terms has a docset
+     */
+    synchronized int[] intersect(QuerySuggestor q, int[] ids) {
+        // the intersections are only valid for the index they were computed in
+        if (q != index.get()) {
+            clear();
+            index = new WeakReference<>(q);
+        }
+        int common = 0;
+        while (common < terms.size() && common < ids.length && terms.get(common) == ids[common])
+            common++;
+        reused += common;
+        terms.remove(common, terms.size() - common);
+        docs.subList(common, docs.size()).clear();
+
+        int[] current = (common == 0) ? null : docs.get(common - 1);
+        for (int i = common; i < ids.length; i++) {
+            int[] termDocs = (ids[i] == -1) ? null : q.getDocSet(ids[i]);
+            if (termDocs != null) {
+                if (current == null)
+                    current = termDocs;
+                else {
+                    int[] shared = intersect(current, termDocs);
+                    current = (shared.length == 0) ? termDocs : shared;
+                }
+            }
+            terms.add(ids[i]);
+            docs.add(current);
+            computed++;
+        }
+        return current;
+    }
+
+    /**
+     * Drops all intersections, e.g. because the index they were computed
+     * in has been replaced.
+     */
+    public synchronized void clear() {
+        terms.clear();
+        docs.clear();
+        index = new WeakReference<>(null);
+    }
+
+    /**
+     * @return the number of context terms whose intersection was reused
+     */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    /**
+     * @return the number of context terms that had to be intersected
+     */
+    public synchronized long getComputedCount() {
+        return computed;
+    }
+
+    /**
+     * Intersects two sorted arrays.
+     * @param a sorted integer array
+     * @param b sorted integer array
+     * @return the sorted elements contained in both arrays
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] shared = new int[Math.min(a.length, b.length)];
+        int k = 0;
+        int i = 0;
+        int j = 0;
+        while (i != a.length && j != b.length) {
+            if (a[i] == b[j]) {
+                shared[k++] = a[i];
+                i++;
+                j++;
+            }
+            else if (a[i] < b[j])
+                i++;
+            else
+                j++;
+        }
+        return Arrays.copyOf(shared, k);
+    }
+}
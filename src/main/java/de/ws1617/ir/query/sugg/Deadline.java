@@ -0,0 +1,129 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import de.ws1617.ir.query.metrics.QueryTrace;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time budget of a single query. The QuerySuggestor checks it before
+ * expensive stages and between them, and records in which stages it had to
+ * take a cheaper strategy or stop early to meet the deadline. It also
+ * carries the cancellation token of the query, if any, since it is
+ * checked at the same places.
+ */
+class Deadline {
+
+    /**
+     * A deadline that never expires, used for queries without a budget.
+     */
+    static final Deadline NONE = new Deadline();
+
+    // the time at which the budget is used up, in ns
+    private final long end;
+    // whether this deadline can expire
+    private final boolean set;
+    // the stages in which results were degraded
+    private final Set<QueryTrace.Stage> degraded;
+    // the cancellation token of the query, null if it cannot be cancelled
+    private final CancellationToken token;
+
+
+    /**
+     * Starts a deadline.
+     * @param budget the time budget of the query
+     * @param unit the unit of the budget
+     */
+    Deadline(long budget, TimeUnit unit) {
+        this(budget, unit, null);
+    }
+
+    /**
+     * Starts a deadline for a query that can be cancelled.
+     * @param budget the time budget of the query
+     * @param unit the unit of the budget
+     * @param token the cancellation token of the query
+     */
+    Deadline(long budget, TimeUnit unit, CancellationToken token) {
+        this.end = System.nanoTime() + unit.toNanos(budget);
+        this.set = true;
+        this.degraded = EnumSet.noneOf(QueryTrace.Stage.class);
+        this.token = token;
+    }
+
+    /**
+     * Creates a deadline that never expires for a query that can be
+     * cancelled.
+     * @param token the cancellation token of the query
+     */
+    Deadline(CancellationToken token) {
+        this.end = Long.MAX_VALUE;
+        this.set = false;
+        this.degraded = EnumSet.noneOf(QueryTrace.Stage.class);
+        this.token = token;
+    }
+
+    private Deadline() {
+        this(null);
+    }
+
+    /**
+     * @return true if this deadline can expire
+     */
+    boolean isSet() {
+        return set;
+    }
+
+    /**
+     * @return the remaining time in ns, Long.MAX_VALUE if not set
+     */
+    long remaining() {
+        return set ? end - System.nanoTime() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the budget is used up
+     */
+    boolean expired() {
+        return set && System.nanoTime() >= end;
+    }
+
+    /**
+     * Stops the query if it has been cancelled.
+     * @throws CancellationException if it has been cancelled
+     */
+    void checkCancelled() {
+        if (token != null && token.isCancelled())
+            throw new CancellationException();
+    }
+
+    /**
+     * Records that a stage returned degraded results to meet the deadline.
+     * @param stage the stage
+     */
+    void degrade(QueryTrace.Stage stage) {
+        if (set)
+            degraded.add(stage);
+    }
+
+    /**
+     * @return true if any stage returned degraded results
+     */
+    boolean isDegraded() {
+        return !degraded.isEmpty();
+    }
+
+    /**
+     * @return the stages that returned degraded results
+     */
+    Set<QueryTrace.Stage> getDegradedStages() {
+        return degraded;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bottom-k MinHash sketch of a docset: the k smallest hashes of its
+ * documents. The documents of a set whose hashes are at most the largest
+ * hash of the sketch, its threshold, are a random sample of the set, and
+ * they are all in the sketch. Hence the documents shared by several sets
+ * with hashes up to the lowest threshold of their sketches are a random
+ * sample of their intersection, which can be found in time linear in the
+ * size of the sketches instead of the sets.
+ *
+ * A sketch of a set with at most k documents contains all of them, so
+ * that estimates from such sketches only are exact.
+ */
+public class DocSketch {
+
+    // the number of distinct hashes
+    private static final double HASHES = 1L << 31;
+
+    // the smallest hashes of the documents, sorted
+    private final int[] hashes;
+    // whether the sketch contains the hashes of all documents
+    private final boolean complete;
+
+
+    /**
+     * @param docs the docset
+     * @param size the maximum number of hashes to keep
+     */
+    public DocSketch(int[] docs, int size) {
+        int[] all = new int[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            all[i] = hash(docs[i]);
+        Arrays.sort(all);
+        this.complete = docs.length <= size;
+        this.hashes = complete ? all : Arrays.copyOf(all, size);
+    }
+
+    /**
+     * @return the number of hashes in this sketch
+     */
+    public int size() {
+        return hashes.length;
+    }
+
+    /**
+     * @return the largest hash of a document that is certainly in this
+     * sketch if it is in the set
+     */
+    private int threshold() {
+        return complete ? Integer.MAX_VALUE : hashes[hashes.length - 1];
+    }
+
+    /**
+     * @param hash a hash at most the threshold
+     * @return whether the document with that hash is in the set
+     */
+    private boolean contains(int hash) {
+        return Arrays.binarySearch(hashes, hash) >= 0;
+    }
+
+    /**
+     * Estimates the share of the documents shared by several sets that
+     * are also in the context.
+     * @param context the sketch of the context
+     * @param sets the sketches of the sets, at least one
+     * @return the estimated share, NaN if the sample of the intersection
+     * of the sets is empty
+     */
+    public static double correlation(DocSketch context, List<DocSketch> sets) {
+        int threshold = context.threshold();
+        for (DocSketch set : sets)
+            threshold = Math.min(threshold, set.threshold());
+        int sample = 0;
+        int shared = 0;
+        for (int hash : sets.get(0).hashes) {
+            if (hash > threshold) break;
+            if (containedInAll(hash, sets)) {
+                sample++;
+                if (context.contains(hash)) shared++;
+            }
+        }
+        return (sample == 0) ? Double.NaN : shared / (double) sample;
+    }
+
+    /**
+     * Estimates the number of documents shared by several sets.
+     * @param sets the sketches of the sets, at least one
+     * @return the estimated size of their intersection
+     */
+    public static double intersectionSize(List<DocSketch> sets) {
+        int threshold = Integer.MAX_VALUE;
+        for (DocSketch set : sets)
+            threshold = Math.min(threshold, set.threshold());
+        int sample = 0;
+        for (int hash : sets.get(0).hashes) {
+            if (hash > threshold) break;
+            if (containedInAll(hash, sets)) sample++;
+        }
+        // the share of all hashes that is sampled
+        double rate = (threshold + 1.0) / HASHES;
+        return sample / rate;
+    }
+
+    private static boolean containedInAll(int hash, List<DocSketch> sets) {
+        for (int i = 1; i < sets.size(); i++)
+            if (!sets.get(i).contains(hash))
+                return false;
+        return true;
+    }
+
+    /**
+     * Hashes a document id with the finalizer of MurmurHash3, so that the
+     * smallest hashes are a random sample of the documents.
+     * @param doc a document id
+     * @return a hash between 0 and Integer.MAX_VALUE
+     */
+    public static int hash(int doc) {
+        int h = doc;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h >>> 1;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import de.ws1617.ir.query.metrics.MemoryReport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * The precomputed suggestions for short partial query terms without a
+ * context, which are the most frequent and, with the most completions,
+ * the most expensive queries. The table is stored in the file FILE of an
+ * index (see PrefixPrecomputer) and answers these queries without any
+ * scoring. The prefixes are kept in a sorted array, and the word ids and
+ * scores of all their suggestions in one array each.
+ */
+public class PrefixTable {
+
+    // the name of the file of the table in an index folder
+    public static final String FILE = "prefixes";
+
+    // the number of suggestions the table was computed for
+    private final int n;
+    // the prefixes, sorted
+    private final String[] prefixes;
+    // the position of the first suggestion of each prefix, followed by the
+    // number of suggestions
+    private final int[] firstSuggestion;
+    // the position of the first word of each suggestion in words, followed
+    // by the number of words
+    private final int[] firstWord;
+    // the word ids of all suggestions
+    private final int[] words;
+    // the score of each suggestion
+    private final double[] scores;
+
+
+    /**
+     * @param n the number of suggestions the table is computed for
+     * @param results the suggestions for each prefix, without a context
+     */
+    public PrefixTable(int n, SortedMap<String, List<Suggestion>> results) {
+        this.n = n;
+        this.prefixes = results.keySet().toArray(new String[results.size()]);
+        this.firstSuggestion = new int[prefixes.length + 1];
+        int suggestions = 0;
+        int length = 0;
+        for (List<Suggestion> list : results.values()) {
+            suggestions += list.size();
+            for (Suggestion suggestion : list)
+                length += suggestion.getNGram().length;
+        }
+        this.firstWord = new int[suggestions + 1];
+        this.words = new int[length];
+        this.scores = new double[suggestions];
+        int p = 0;
+        int s = 0;
+        int w = 0;
+        for (List<Suggestion> list : results.values()) {
+            firstSuggestion[p++] = s;
+            for (Suggestion suggestion : list) {
+                firstWord[s] = w;
+                scores[s++] = suggestion.getScore();
+                for (int id : suggestion.getNGram())
+                    words[w++] = id;
+            }
+        }
+        firstSuggestion[p] = s;
+        firstWord[s] = w;
+    }
+
+    private PrefixTable(int n, String[] prefixes, int[] firstSuggestion, int[] firstWord, int[] words, double[] scores) {
+        this.n = n;
+        this.prefixes = prefixes;
+        this.firstSuggestion = firstSuggestion;
+        this.firstWord = firstWord;
+        this.words = words;
+        this.scores = scores;
+    }
+
+    /**
+     * @return the number of suggestions the table was computed for
+     */
+    public int getN() {
+        return n;
+    }
+
+    /**
+     * @return the number of prefixes
+     */
+    public int size() {
+        return prefixes.length;
+    }
+
+    /**
+     * @param prefix a partial query term
+     * @param IDToWord the dictionary to look up the text of the
+     *                 suggestions in
+     * @return the top n suggestions for the prefix without a context,
+     * null if it is not in the table
+     */
+    public List<Suggestion> get(String prefix, List<String> IDToWord) {
+        int p = Arrays.binarySearch(prefixes, prefix);
+        if (p < 0) return null;
+        List<Suggestion> results = new ArrayList<>(firstSuggestion[p + 1] - firstSuggestion[p]);
+        for (int s = firstSuggestion[p]; s < firstSuggestion[p + 1]; s++) {
+            int[] ngram = Arrays.copyOfRange(words, firstWord[s], firstWord[s + 1]);
+            results.add(new Suggestion(ngram, scores[s], "", Suggestion.NO_PREFIX, false, IDToWord));
+        }
+        return results;
+    }
+
+    /**
+     * @return the estimated heap used by this table in bytes
+     */
+    public long heapBytes() {
+        long bytes = MemoryReport.objectBytes(4, 5) + MemoryReport.referenceArrayBytes(prefixes.length)
+                + MemoryReport.arrayBytes(firstSuggestion.length, 4) + MemoryReport.arrayBytes(firstWord.length, 4)
+                + MemoryReport.arrayBytes(words.length, 4) + MemoryReport.arrayBytes(scores.length, 8);
+        for (String prefix : prefixes)
+            bytes += MemoryReport.stringBytes(prefix);
+        return bytes;
+    }
+
+    /**
+     * Writes the table: the number of suggestions it was computed for and
+     * the number of prefixes, then each prefix with the number of its
+     * suggestions, followed by the score, the number of words and the word
+     * ids of each suggestion.
+     * @param out the stream to write to
+     * @throws IOException if the table cannot be written
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(n);
+        out.writeInt(prefixes.length);
+        for (int p = 0; p < prefixes.length; p++) {
+            out.writeUTF(prefixes[p]);
+            out.writeInt(firstSuggestion[p + 1] - firstSuggestion[p]);
+            for (int s = firstSuggestion[p]; s < firstSuggestion[p + 1]; s++) {
+                out.writeDouble(scores[s]);
+                out.writeInt(firstWord[s + 1] - firstWord[s]);
+                for (int w = firstWord[s]; w < firstWord[s + 1]; w++)
+                    out.writeInt(words[w]);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by write().
+     * @param in the stream to read from
+     * @return the table
+     * @throws IOException if the table cannot be read
+     */
+    public static PrefixTable read(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        String[] prefixes = new String[in.readInt()];
+        int[] firstSuggestion = new int[prefixes.length + 1];
+        List<int[]> ngrams = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        int length = 0;
+        for (int p = 0; p < prefixes.length; p++) {
+            prefixes[p] = in.readUTF();
+            firstSuggestion[p] = ngrams.size();
+            int suggestions = in.readInt();
+            for (int s = 0; s < suggestions; s++) {
+                scores.add(in.readDouble());
+                int[] ngram = new int[in.readInt()];
+                for (int w = 0; w < ngram.length; w++)
+                    ngram[w] = in.readInt();
+                ngrams.add(ngram);
+                length += ngram.length;
+            }
+        }
+        firstSuggestion[prefixes.length] = ngrams.size();
+        int[] firstWord = new int[ngrams.size() + 1];
+        int[] words = new int[length];
+        double[] scoreArray = new double[ngrams.size()];
+        int w = 0;
+        for (int s = 0; s < ngrams.size(); s++) {
+            firstWord[s] = w;
+            scoreArray[s] = scores.get(s);
+            for (int id : ngrams.get(s))
+                words[w++] = id;
+        }
+        firstWord[ngrams.size()] = w;
+        return new PrefixTable(n, prefixes, firstSuggestion, firstWord, words, scoreArray);
+    }
+}
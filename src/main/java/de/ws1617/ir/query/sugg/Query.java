@@ -0,0 +1,161 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A user query split into the parts relevant for generating suggestions:
+ * the last (partial or complete) query term, the term preceding it (the
+ * context) and all other terms entered before (the greater context).
+ * Suggestions are correlated with the documents shared by the context and
+ * all terms of the greater context.
+ */
+public class Query {
+
+    // the last query term
+    private final String lastTerm;
+    // the query term preceding the last term
+    private final String context;
+    // all other query terms entered so far
+    private final String greaterContext;
+    // whether the last term is complete, i.e. followed by a space
+    private final boolean complete;
+
+
+    public Query(String lastTerm, String context, String greaterContext, boolean complete) {
+        this.lastTerm = lastTerm;
+        this.context = context;
+        this.greaterContext = greaterContext;
+        this.complete = complete;
+    }
+
+    /**
+     * Splits a query into its last term, context and greater context. The
+     * query is expected to be in lower case; a trailing space marks the last
+     * term as complete.
+     * @param query the query
+     * @return the split query
+     */
+    public static Query parse(String query) {
+        if (query.isEmpty())
+            return new Query("", "", "", false);
+        // checks whether the last word is a partial or complete term
+        boolean complete = query.charAt(query.length()-1) == ' ';
+        // end index of the query
+        int end = (complete) ? query.length()-1 : query.length();
+        // start index of last term
+        int split1 = query.lastIndexOf(' ', end-1);
+        // the last term
+        String qWord = query.substring(split1+1, end);
+        // the query term preceding the last term
+        String context = "";
+        // all other query terms entered so far
+        String greaterContext = "";
+        // get context if available
+        if (split1 > 0) {
+            int split2 = query.lastIndexOf(' ', split1-1);
+            context = query.substring(split2+1, split1);
+            // get greater context if available
+            if (split2 > 0) {
+                greaterContext = query.substring(0, split2);
+            }
+        }
+        return new Query(qWord, context, greaterContext, complete);
+    }
+
+    /**
+     * Retrieves suggestions for this query.
+     * @param q the QuerySuggestor
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions, without the greater context
+     */
+    public List<String> suggest(QuerySuggestor q, int n) {
+        if (lastTerm.isEmpty())
+            return new ArrayList<>();
+        return (complete)
+                ? q.queryComplete(getContextTerms(), lastTerm, n)
+                : q.queryPartial(getContextTerms(), lastTerm, n);
+    }
+
+    /**
+     * Retrieves suggestions for this query as word ids, whose texts are
+     * only looked up when they are asked for.
+     * @param q the QuerySuggestor
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions, without the greater context
+     */
+    public List<Suggestion> suggestions(QuerySuggestor q, int n) {
+        if (lastTerm.isEmpty())
+            return new ArrayList<>();
+        return (complete)
+                ? q.suggestComplete(getContextTerms(), lastTerm, n)
+                : q.suggestPartial(getContextTerms(), lastTerm, n);
+    }
+
+    /**
+     * Retrieves suggestions for this query within a time budget.
+     * @param q the QuerySuggestor
+     * @param n the number of suggestions to make
+     * @param budget the time budget
+     * @param unit the unit of the budget
+     * @return the top n suggestions found within the budget, without the
+     * greater context
+     */
+    public SuggestResult suggest(QuerySuggestor q, int n, long budget, TimeUnit unit) {
+        return suggest(q, n, budget, unit, null, null);
+    }
+
+    /**
+     * Retrieves suggestions for this query of a session unless it is
+     * cancelled.
+     * @param q the QuerySuggestor
+     * @param n the number of suggestions to make
+     * @param budget the time budget, 0 for none
+     * @param unit the unit of the budget
+     * @param token the cancellation token of the query, null for none
+     * @param cache the context cache of the session, null for none
+     * @return the top n suggestions, without the greater context
+     * @throws java.util.concurrent.CancellationException if the query was
+     * cancelled before it finished
+     */
+    public SuggestResult suggest(QuerySuggestor q, int n, long budget, TimeUnit unit, CancellationToken token, ContextCache cache) {
+        if (lastTerm.isEmpty())
+            return new SuggestResult(new ArrayList<>(), false);
+        return q.suggest(SuggestRequest.of(this, n), cache, budget, unit, token);
+    }
+
+    public String getLastTerm() {
+        return lastTerm;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getGreaterContext() {
+        return greaterContext;
+    }
+
+    /**
+     * @return the terms of the greater context and the context, in order
+     */
+    public List<String> getContextTerms() {
+        List<String> terms = new ArrayList<>();
+        for (String term : greaterContext.split(" "))
+            if (!term.isEmpty())
+                terms.add(term);
+        if (!context.isEmpty())
+            terms.add(context);
+        return terms;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+}
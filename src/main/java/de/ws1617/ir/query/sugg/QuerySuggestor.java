@@ -6,23 +6,43 @@
 package de.ws1617.ir.query.sugg;
 
 import com.google.common.primitives.Ints;
+import gnu.trove.TCollections;
+import gnu.trove.impl.hash.THash;
+import gnu.trove.iterator.TIntDoubleIterator;
 import gnu.trove.iterator.TIntIterator;
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
+import de.ws1617.ir.query.metrics.MemoryReport;
+import de.ws1617.ir.query.metrics.QueryEvent;
+import de.ws1617.ir.query.metrics.QueryMetrics;
+import de.ws1617.ir.query.metrics.QueryTrace;
 import de.ws1617.ir.query.preproc.DataCompressor;
+import de.ws1617.ir.query.rtrie.FoldedIndex;
 import de.ws1617.ir.query.rtrie.IntRTrieMap;
+import de.ws1617.ir.query.rtrie.NGramTrie;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
 
 /**
  * This class generates suggestions for possible queries given a
@@ -30,18 +50,76 @@ import java.util.*;
  */
 public class QuerySuggestor {
 
+    // the initial estimate of the time per posting visited in intersections in ns
+    private static final double INITIAL_NANOS_PER_POSTING = 2;
+    // the minimum number of postings of an intersection to update the estimate
+    private static final long MIN_CALIBRATION_POSTINGS = 100000;
+    // the share of the remaining budget the completion ranking may use,
+    // the rest is left for the phrases
+    private static final double RANKING_SHARE = 0.5;
+    // the number of candidate phrases above which the completions
+    // themselves are selected as results
+    public static final int MAX_PHRASES = 10000;
+    // the factor by which the weight of a completion of a mistyped prefix
+    // is lowered per edit
+    private static final double EDIT_PENALTY = 0.1;
+    // the maximum number of completions of mistyped prefixes per query
+    private static final int MAX_FUZZY_COMPLETIONS = 100;
+    // the number of edits of the completions of an exactly typed prefix
+    private static final TIntIntMap NO_EDITS = TCollections.unmodifiableMap(new TIntIntHashMap());
+
     // a mapping from IDs to words
     private List<String> IDToWord;
     // a mapping from unigrams to IDs
     private IntRTrieMap unigramToID;
+    // a mapping from the forms of unigrams without accents and case to
+    // their IDs, for the unigrams whose form differs; null unless enabled
+    // with setFolding()
+    private volatile FoldedIndex foldedIndex;
 
     // unigrams and their frequencies
     private TIntDoubleMap unigrams;
-    // a mapping from unigrams to all n-grams that contain them
-    // and their respective frequencies
-    private TIntObjectMap<List<NGram>> ngrams;
+    // all n-grams with their frequencies
+    private NGramTrie ngramTrie;
+    // a mapping from unigrams to the nodes of all n-grams that contain them
+    private TIntObjectMap<TIntList> ngrams;
+    // the term to phrase probabilities of the n-grams in the list of each
+    // unigram, in the order of the list, which is sorted by them; lists
+    // changed since sortNGrams() have none and are in insertion order
+    private TIntObjectMap<double[]> phraseProbabilities;
+    // the sums of the frequencies of all n-grams of the unigrams whose
+    // lists were pruned (see IndexPruner), which normalize their term to
+    // phrase probabilities instead of the sums of their lists
+    private TIntDoubleMap phraseSums;
+    // the positions of the n-grams containing a word before a unigram in
+    // the sorted list of the unigram, keyed by pairKey(word, unigram);
+    // null unless enabled with setPairIndex()
+    private volatile TLongObjectMap<int[]> pairIndex;
     // a mapping from unigrams to the set of documents they occur in
     private TIntObjectMap<int[]> docSets;
+    // the sketches of the docsets with at least sketchCutoff documents;
+    // null unless enabled with setSketches()
+    private volatile TIntObjectMap<DocSketch> sketches;
+    // the number of hashes per sketch
+    private volatile int sketchSize;
+    // the minimum number of documents of the docsets whose correlations
+    // are estimated from their sketches
+    private volatile int sketchCutoff;
+    // the precomputed suggestions for short partial terms without a
+    // context; null unless set with setPrefixTable()
+    private volatile PrefixTable prefixTable;
+
+    // the maximum number of edits by which the prefix of a completion may
+    // differ from a partial query term, 0 if typos are not tolerated
+    private volatile int maxEdits;
+    // whether all phrases are correlated with the context, even those
+    // that cannot be among the top phrases
+    private volatile boolean exhaustive;
+    // the metrics all queries are reported to, null if disabled
+    private volatile QueryMetrics metrics;
+    // the measured time per posting visited in intersections in ns, used to
+    // estimate the cost of queries with a time budget
+    private volatile double nanosPerPosting;
 
 
     public QuerySuggestor(List<String> IDToWord) {
@@ -49,63 +127,691 @@ public class QuerySuggestor {
         this.unigramToID = new IntRTrieMap();
 
         this.unigrams = new TIntDoubleHashMap();
+        this.ngramTrie = new NGramTrie();
         this.ngrams = new TIntObjectHashMap<>();
+        this.phraseProbabilities = new TIntObjectHashMap<>();
+        this.phraseSums = new TIntDoubleHashMap();
         this.docSets = new TIntObjectHashMap<>();
+        this.nanosPerPosting = INITIAL_NANOS_PER_POSTING;
     }
 
     /**
      * Adds a collection of unigrams with frequencies to the data pool.
      * @param iter an iterator over unigrams and their frequencies
+     * @return the number of unigrams read
+     */
+    public int addUnigrams(DataCompressor.NGramFileIterator iter) {
+        return addUnigrams(iter, unigram -> true);
+    }
+
+    /**
+     * Adds the unigrams accepted by a filter to the data pool, e.g. those
+     * of one shard. Only n-grams containing one of them are added later.
+     * @param iter an iterator over unigrams and their frequencies
+     * @param filter accepts the ids of the unigrams to add
+     * @return the number of unigrams read, including those not accepted
      */
-    public void addUnigrams(DataCompressor.NGramFileIterator iter) {
+    public int addUnigrams(DataCompressor.NGramFileIterator iter, IntPredicate filter) {
+        int read = 0;
         while (iter.advance()) {
+            read++;
             int unigram = iter.getNGram()[0];
+            if (!filter.test(unigram)) continue;
             unigrams.put(unigram, iter.getFrequency());
             unigramToID.insert(IDToWord.get(unigram), unigram);
         }
+        if (foldedIndex != null)
+            foldedIndex = new FoldedIndex(IDToWord, unigrams.keys());
+        return read;
     }
 
     /**
      * Adds a collection of n-grams with frequencies to the data pool.
      * @param iter an iterator over n-grams and their frequencies
+     * @return the number of n-grams read, including those not added
      */
-    public void addNGrams(DataCompressor.NGramFileIterator iter) {
-        while (iter.advance())
+    public int addNGrams(DataCompressor.NGramFileIterator iter) {
+        int read = 0;
+        while (iter.advance()) {
             addNGram(iter.getNGram(), iter.getFrequency());
+            read++;
+        }
+        return read;
     }
 
     /**
-     * Adds a single n-gram with frequency to the data pool.
+     * Adds a single n-gram with frequency to the data pool. Only n-grams
+     * containing a unigram are added; an n-gram added again gets the sum
+     * of its frequencies.
      * @param ngram n-gram as an array of word IDs
      * @param freq the n-gram's frequency
      */
     public void addNGram(int[] ngram, double freq) {
-        addNGram(new NGram(ngram, freq));
+        boolean suggestable = false;
+        for (int word : ngram)
+            suggestable |= unigrams.containsKey(word);
+        if (!suggestable) return;
+        int count = ngramTrie.getNGramCount();
+        int node = ngramTrie.add(ngram, freq);
+        boolean added = ngramTrie.getNGramCount() > count;
+        // a word occurring twice refers to the n-gram twice
+        for (int word : ngram) {
+            if (unigrams.containsKey(word)) {
+                if (added) {
+                    if (!ngrams.containsKey(word))
+                        ngrams.put(word, new TIntArrayList());
+                    ngrams.get(word).add(node);
+                }
+                if (phraseSums.containsKey(word))
+                    phraseSums.adjustValue(word, freq);
+                phraseProbabilities.remove(word);
+            }
+        }
     }
 
     /**
-     * Adds a single n-gram with frequency to the data pool.
-     * @param ngram the n-gram with its frequency
+     * Adds the sums of the frequencies of all n-grams of the unigrams
+     * whose lists were pruned, as written by IndexPruner. Sums of unigrams
+     * that are not in the data pool are skipped.
+     * @param iter an iterator over unigrams and their sums
+     * @return the number of sums read, including those skipped
      */
-    private void addNGram(NGram ngram) {
-        for (int word : ngram.ngram) {
-            if (unigrams.containsKey(word)) {
-                if (!ngrams.containsKey(word))
-                    ngrams.put(word, new ArrayList<>());
-                ngrams.get(word).add(ngram);
+    public int addPhraseSums(DataCompressor.NGramFileIterator iter) {
+        int read = 0;
+        while (iter.advance()) {
+            read++;
+            int unigram = iter.getNGram()[0];
+            if (unigrams.containsKey(unigram)) {
+                phraseSums.put(unigram, iter.getFrequency());
+                phraseProbabilities.remove(unigram);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Computes the term to phrase probability of each n-gram in the list
+     * of each unigram, i.e. its frequency normalized by the sum of the
+     * frequencies in the list, and sorts the lists by descending
+     * probability, so that queries can stop scoring the phrases of a
+     * completion once the rest cannot be among the top phrases. Called
+     * once all n-grams are added, it also trims the lists and the n-gram
+     * trie to their size; the lists of n-grams added later are sorted by
+     * each query until it is called again.
+     */
+    public void sortNGrams() {
+        for (TIntObjectIterator<TIntList> iter = ngrams.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (!phraseProbabilities.containsKey(iter.key()))
+                phraseProbabilities.put(iter.key(), sortByProbability(iter.key(), iter.value()));
+            ((TIntArrayList) iter.value()).trimToSize();
+        }
+        ngramTrie.trimToSize();
+        // the positions in the lists have changed
+        if (pairIndex != null)
+            pairIndex = buildPairIndex();
+    }
+
+    /**
+     * Enables or disables ranking the phrases of a complete last query
+     * term that contain the word preceding it, before the term, above all
+     * other phrases. These phrases are looked up in an index of ordered
+     * word pairs instead of being correlated with the context, and only
+     * if there are fewer than needed, the other phrases are correlated as
+     * before. The index is built when enabled and takes about as much heap
+     * as the n-gram lists.
+     * @param enabled whether to use the pair index
+     */
+    public synchronized void setPairIndex(boolean enabled) {
+        if (!enabled)
+            pairIndex = null;
+        else if (pairIndex == null) {
+            sortNGrams();
+            pairIndex = buildPairIndex();
+        }
+    }
+
+    /**
+     * @return whether the phrases of a complete last query term that
+     * contain the word preceding it are ranked first
+     */
+    public boolean hasPairIndex() {
+        return pairIndex != null;
+    }
+
+    /**
+     * Enables or disables ignoring accents and case in the last query
+     * term, e.g. completing "cafe" with "Café". The unigrams are folded
+     * once when enabled (see FoldedIndex.fold()), and those whose folded
+     * form differs from the unigram are indexed by it. The completions of
+     * a partial term are then those of the term, of its folded form and
+     * of the indexed forms starting with it, all weighted as if typed
+     * exactly. A complete term that is no unigram stands for the most
+     * frequent unigram with the same folded form. Folding is not
+     * supported by the shard methods.
+     * @param enabled whether to fold query terms
+     */
+    public synchronized void setFolding(boolean enabled) {
+        if (!enabled)
+            foldedIndex = null;
+        else if (foldedIndex == null)
+            foldedIndex = new FoldedIndex(IDToWord, unigrams.keys());
+    }
+
+    /**
+     * @return whether accents and case are ignored in the last query term
+     */
+    public boolean hasFolding() {
+        return foldedIndex != null;
+    }
+
+    /**
+     * Sets the precomputed suggestions for short partial terms without a
+     * context. A query is answered from the table if it asks for as many
+     * suggestions as the table was computed for and its term is in the
+     * table, unless accents and case are ignored or typos are tolerated
+     * for a term that long, which the table does not account for. The
+     * table has to be computed from this index (see buildPrefixTable()).
+     * @param table the table, null to compute all suggestions
+     */
+    public void setPrefixTable(PrefixTable table) {
+        this.prefixTable = table;
+    }
+
+    public PrefixTable getPrefixTable() {
+        return prefixTable;
+    }
+
+    /**
+     * Computes the suggestions for all prefixes of the unigrams up to a
+     * length without a context, or only for the prefixes with the highest
+     * sums of the tf-idfs of their completions. They are computed without
+     * the prefix table, folding and typo tolerance, which stay in effect
+     * for the queries answered meanwhile.
+     * @param maxLength the maximum length of the prefixes
+     * @param maxPrefixes the maximum number of prefixes, 0 for all
+     * @param n the number of suggestions per prefix
+     * @return the table of the suggestions
+     */
+    public PrefixTable buildPrefixTable(int maxLength, int maxPrefixes, int n) {
+        // the sum of the tf-idfs of the completions of each prefix
+        Map<String, Double> mass = new HashMap<>();
+        for (TIntDoubleIterator iter = unigrams.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            String word = IDToWord.get(iter.key());
+            for (int length = 1; length <= Math.min(maxLength, word.length()); length++)
+                mass.merge(word.substring(0, length), iter.value(), Double::sum);
+        }
+        List<String> prefixes = new ArrayList<>(mass.keySet());
+        if (maxPrefixes > 0 && prefixes.size() > maxPrefixes) {
+            prefixes.sort((p1, p2) -> Double.compare(mass.get(p2), mass.get(p1)));
+            prefixes = prefixes.subList(0, maxPrefixes);
+        }
+
+        SortedMap<String, List<Suggestion>> results = new TreeMap<>();
+        Context ctx = new Context("");
+        for (String prefix : prefixes)
+            results.put(prefix, queryPartial(ctx, prefix, n, null, null, 0, QueryTrace.DISABLED, Deadline.NONE));
+        return new PrefixTable(n, results);
+    }
+
+    /**
+     * Indexes the n-grams in the sorted list of each unigram by the words
+     * preceding the unigram in them.
+     * @return the positions of the n-grams in the lists, keyed by
+     * pairKey(word, unigram)
+     */
+    private TLongObjectMap<int[]> buildPairIndex() {
+        TLongObjectMap<TIntList> pairs = new TLongObjectHashMap<>();
+        TIntSet preceding = new TIntHashSet();
+        for (TIntObjectIterator<TIntList> iter = ngrams.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            int unigram = iter.key();
+            TIntList list = iter.value();
+            for (int pos = 0; pos < list.size(); pos++) {
+                // an n-gram containing the unigram twice is in the list twice
+                if (pos > 0 && list.get(pos) == list.get(pos - 1)) continue;
+                int[] ngram = ngramTrie.getNGram(list.get(pos));
+                preceding.clear();
+                int last = ngram.length - 1;
+                while (ngram[last] != unigram)
+                    last--;
+                for (int i = 0; i < last; i++)
+                    preceding.add(ngram[i]);
+                for (TIntIterator words = preceding.iterator(); words.hasNext(); ) {
+                    long key = pairKey(words.next(), unigram);
+                    if (!pairs.containsKey(key))
+                        pairs.put(key, new TIntArrayList(1));
+                    pairs.get(key).add(pos);
+                }
             }
         }
+        TLongObjectMap<int[]> index = new TLongObjectHashMap<>(pairs.size());
+        for (TLongObjectIterator<TIntList> iter = pairs.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            index.put(iter.key(), iter.value().toArray());
+        }
+        return index;
+    }
+
+    /**
+     * @param word a word id
+     * @param unigram the id of a unigram
+     * @return the key of the n-grams containing the word before the unigram
+     */
+    private static long pairKey(int word, int unigram) {
+        return ((long) word << 32) | (unigram & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Sorts the n-grams of a list by descending term to phrase probability,
+     * and n-grams with the same probability by their word ids.
+     * @param unigram the unigram
+     * @param extensions the nodes of the n-grams containing the unigram,
+     *                   in insertion order
+     * @return their term to phrase probabilities in the sorted order
+     */
+    private double[] sortByProbability(int unigram, TIntList extensions) {
+        // get sum of the normalized frequencies of all phrases, in
+        // insertion order, unless the list was pruned
+        double psum = 0;
+        if (phraseSums.containsKey(unigram))
+            psum = phraseSums.get(unigram);
+        else
+            for (int i = 0; i < extensions.size(); i++)
+                psum += ngramTrie.getFrequency(extensions.get(i));
+        List<Integer> sorted = new ArrayList<>(Ints.asList(extensions.toArray()));
+        sorted.sort((p1, p2) -> {
+            int c = Double.compare(ngramTrie.getFrequency(p2), ngramTrie.getFrequency(p1));
+            return (c != 0) ? c : compareIDs(ngramTrie.getNGram(p1), ngramTrie.getNGram(p2));
+        });
+        double[] probabilities = new double[extensions.size()];
+        for (int i = 0; i < probabilities.length; i++) {
+            extensions.set(i, sorted.get(i));
+            probabilities[i] = ngramTrie.getFrequency(sorted.get(i)) / psum;
+        }
+        return probabilities;
     }
 
     /**
      * Adds a collection of unigrams with docsets to the data pool.
      * @param iter an iterator over unigrams and their docsets
+     * @return the number of docsets read
      */
-    public void addDocSets(DataCompressor.DocSetFileIterator iter) {
-        while (iter.advance())
+    public int addDocSets(DataCompressor.DocSetFileIterator iter) {
+        TIntObjectMap<DocSketch> sketched = sketches;
+        int read = 0;
+        while (iter.advance()) {
+            read++;
             docSets.put(iter.getTerm(), iter.getDocs());
+            if (sketched != null && iter.getDocs().length >= sketchCutoff)
+                sketched.put(iter.getTerm(), new DocSketch(iter.getDocs(), sketchSize));
+        }
+        return read;
+    }
+
+    /**
+     * Enables or disables estimating the correlations of large docsets
+     * with the context from bottom-k MinHash sketches (see DocSketch)
+     * instead of intersecting them. A correlation is estimated if the
+     * context and the docsets of the completion or of all words of the
+     * phrase have at least cutoff documents, and computed exactly
+     * otherwise, or if the sample of the intersection is empty. The
+     * sketches are built when enabled, and by addDocSets() afterwards.
+     * @param size the number of hashes per sketch, 0 to disable
+     * @param cutoff the minimum number of documents of the docsets whose
+     *               correlations are estimated
+     */
+    public synchronized void setSketches(int size, int cutoff) {
+        if (size <= 0) {
+            sketches = null;
+            sketchSize = 0;
+            return;
+        }
+        if (sketches != null && size == sketchSize && cutoff == sketchCutoff)
+            return;
+        TIntObjectMap<DocSketch> sketched = new TIntObjectHashMap<>();
+        for (TIntObjectIterator<int[]> iter = docSets.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            if (iter.value().length >= cutoff)
+                sketched.put(iter.key(), new DocSketch(iter.value(), size));
+        }
+        sketchSize = size;
+        sketchCutoff = cutoff;
+        sketches = sketched;
+    }
+
+    /**
+     * @return the number of hashes per sketch, 0 if correlations are
+     * not estimated from sketches
+     */
+    public int getSketchSize() {
+        return (sketches == null) ? 0 : sketchSize;
+    }
+
+    /**
+     * @return the minimum number of documents of the docsets whose
+     * correlations are estimated from their sketches
+     */
+    public int getSketchCutoff() {
+        return sketchCutoff;
+    }
+
+    /**
+     * @param word a word id
+     * @return the sketch of its docset, null if it has none
+     */
+    private DocSketch getSketch(int word) {
+        TIntObjectMap<DocSketch> sketched = sketches;
+        return (sketched == null) ? null : sketched.get(word);
+    }
+
+
+    /**
+     * @return the number of words with an id
+     */
+    public int getVocabularySize() {
+        return IDToWord.size();
+    }
+
+    /**
+     * @param id a word id
+     * @return the word with that id
+     */
+    public String getWord(int id) {
+        return IDToWord.get(id);
     }
 
+    /**
+     * @return the number of unigrams that can be suggested
+     */
+    public int getUnigramCount() {
+        return unigrams.size();
+    }
+
+    /**
+     * Estimates the heap used by each structure of the index: the
+     * dictionary of words, the trie of unigrams, the unigram frequencies,
+     * the n-grams and the lists referring to them, and the docsets.
+     * @return the report, computed from the current contents of the index
+     */
+    public MemoryReport memoryReport() {
+        MemoryReport report = new MemoryReport();
+
+        long dictionary = MemoryReport.arrayListBytes(IDToWord.size());
+        for (String word : IDToWord)
+            dictionary += MemoryReport.stringBytes(word);
+        report.add(MemoryReport.DICTIONARY, IDToWord.size(), "words", dictionary);
+
+        // splitchar, value, priority and four references including the map
+        long nodes = unigramToID.nodeCount();
+        report.add(MemoryReport.TRIE, nodes, "nodes", nodes * MemoryReport.objectBytes(10, 4));
+
+        report.add(MemoryReport.UNIGRAMS, unigrams.size(), "unigrams",
+                MemoryReport.troveMapBytes(((THash) unigrams).capacity(), 4, 8));
+
+        report.add(MemoryReport.NGRAMS, ngramTrie.size(), "nodes",
+                MemoryReport.ngramTrieBytes(ngramTrie.size(), ngramTrie.getIndexCapacity()));
+
+        long references = 0;
+        long lists = MemoryReport.troveMapBytes(((THash) ngrams).capacity(), 4, MemoryReport.REFERENCE);
+        for (TIntList list : ngrams.valueCollection()) {
+            references += list.size();
+            lists += MemoryReport.troveListBytes(list.size());
+        }
+        // the term to phrase probability of each reference
+        lists += MemoryReport.troveMapBytes(((THash) phraseProbabilities).capacity(), 4, MemoryReport.REFERENCE);
+        for (double[] probabilities : phraseProbabilities.valueCollection())
+            lists += MemoryReport.arrayBytes(probabilities.length, 8);
+        if (!phraseSums.isEmpty())
+            lists += MemoryReport.troveMapBytes(((THash) phraseSums).capacity(), 4, 8);
+        report.add(MemoryReport.NGRAM_LISTS, references, "references", lists);
+
+        long postings = 0;
+        long postingBytes = 0;
+        for (int[] docs : docSets.valueCollection()) {
+            postings += docs.length;
+            postingBytes += MemoryReport.arrayBytes(docs.length, 4);
+        }
+        report.add(MemoryReport.DOCSET_MAP, docSets.size(), "terms",
+                MemoryReport.troveMapBytes(((THash) docSets).capacity(), 4, MemoryReport.REFERENCE));
+        report.add(MemoryReport.POSTINGS, postings, "postings", postingBytes);
+
+        TLongObjectMap<int[]> pairs = pairIndex;
+        if (pairs != null) {
+            long positions = 0;
+            long pairBytes = MemoryReport.troveMapBytes(((THash) pairs).capacity(), 8, MemoryReport.REFERENCE);
+            for (int[] list : pairs.valueCollection()) {
+                positions += list.length;
+                pairBytes += MemoryReport.arrayBytes(list.length, 4);
+            }
+            report.add(MemoryReport.PAIR_INDEX, positions, "references", pairBytes);
+        }
+
+        TIntObjectMap<DocSketch> sketched = sketches;
+        if (sketched != null) {
+            long hashes = 0;
+            long sketchBytes = MemoryReport.troveMapBytes(((THash) sketched).capacity(), 4, MemoryReport.REFERENCE);
+            for (DocSketch sketch : sketched.valueCollection()) {
+                hashes += sketch.size();
+                // the sketch with its flag and the array of hashes
+                sketchBytes += MemoryReport.objectBytes(1, 1) + MemoryReport.arrayBytes(sketch.size(), 4);
+            }
+            report.add(MemoryReport.SKETCHES, hashes, "hashes", sketchBytes);
+        }
+
+        FoldedIndex folded = foldedIndex;
+        if (folded != null)
+            report.add(MemoryReport.FOLDED_INDEX, folded.size(), "unigrams", folded.heapBytes());
+
+        PrefixTable table = prefixTable;
+        if (table != null)
+            report.add(MemoryReport.PREFIX_TABLE, table.size(), "prefixes", table.heapBytes());
+
+        return report;
+    }
+
+    /**
+     * Disables or enables skipping the phrases that cannot be among the
+     * top phrases, to compare the results and the work done with and
+     * without it.
+     * @param exhaustive whether all phrases are correlated with the context
+     */
+    void setExhaustive(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Enables or disables the collection of per-stage timings and candidate
+     * counts of all queries.
+     * @param metrics the metrics to report all queries to, null to disable
+     */
+    public void setMetrics(QueryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics all queries are reported to, null if disabled
+     */
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables or disables the tolerance of typos in partial query terms.
+     * With typo tolerance, the completions of prefixes within a few edits
+     * of a partial term are considered as well, depending on its length:
+     * none for up to two characters, one edit for up to five characters
+     * and two edits for longer terms, but at most maxEdits. Their weights
+     * are lowered by EDIT_PENALTY per edit. Typo tolerance is not supported
+     * by the shard methods.
+     * @param maxEdits the maximum number of edits, 0 to disable
+     */
+    public void setMaxEdits(int maxEdits) {
+        this.maxEdits = Math.max(0, Math.min(2, maxEdits));
+    }
+
+    /**
+     * @return the maximum number of edits of a partial query term, 0 if
+     * typos are not tolerated
+     */
+    public int getMaxEdits() {
+        return maxEdits;
+    }
+
+    /**
+     * Retrieves suggestions for several queries at once. Queries with the
+     * same context share the lookup of the context and its docset, which
+     * is stored in a bit set for faster intersections if several queries
+     * use it. The groups of queries with different contexts are processed
+     * one after another in the calling thread.
+     * @param requests the queries
+     * @return the suggestions for each query, in the order of the queries,
+     * the same as returned by queryPartial() or queryComplete()
+     */
+    public List<List<String>> querySuggestBatch(List<SuggestRequest> requests) {
+        return querySuggestBatch(requests, Runnable::run);
+    }
+
+    /**
+     * Retrieves suggestions for several queries at once, as
+     * querySuggestBatch() does, but processes the groups of queries with
+     * different contexts on an executor, which bounds their parallelism.
+     * @param requests the queries
+     * @param executor the executor to run the groups on
+     * @return the suggestions for each query, in the order of the queries,
+     * the same as returned by queryPartial() or queryComplete()
+     * @throws RejectedExecutionException if the executor does not accept a group
+     */
+    public List<List<String>> querySuggestBatch(List<SuggestRequest> requests, Executor executor) {
+        // group the requests by context
+        Map<List<String>, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++)
+            groups.computeIfAbsent(requests.get(i).getContextTerms(), c -> new ArrayList<>()).add(i);
+
+        // each group sets the results of its own requests
+        List<List<String>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<Integer> group : groups.values())
+            futures.add(CompletableFuture.runAsync(() -> suggestGroup(requests, group, results), executor));
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Retrieves suggestions for a group of queries of a batch with the
+     * same context.
+     * @param requests the queries of the batch
+     * @param group the positions of the queries of the group
+     * @param results the results of the batch, which those of the group
+     *                are set in
+     */
+    private void suggestGroup(List<SuggestRequest> requests, List<Integer> group, List<List<String>> results) {
+        // resolve the context once per group
+        Context ctx = resolveContext(requests.get(group.get(0)).getContextTerms(), null);
+        if (group.size() > 1)
+            ctx.buildBitSet();
+        for (int i : group) {
+            SuggestRequest request = requests.get(i);
+            QueryTrace trace = startTrace(request.isComplete() ? "complete" : "partial", String.join(" ", request.getContextTerms()), request.getTerm());
+            results.set(i, texts(request.isComplete()
+                    ? queryComplete(ctx, request.getTerm(), request.getN(), trace, Deadline.NONE)
+                    : queryPartial(ctx, request.getTerm(), request.getN(), trace, Deadline.NONE)));
+            finishTrace(trace, Deadline.NONE);
+        }
+    }
+
+    /**
+     * Retrieves suggestions for a query that can be cancelled, e.g.
+     * because the user has typed another character in the meantime. The
+     * token is checked between the stages of the query and inside its
+     * loops over completions and phrases.
+     * @param request the query
+     * @param budget the time budget, 0 for none
+     * @param unit the unit of the budget
+     * @param token the cancellation token of the query
+     * @return the top n suggestions, found within the budget if there is one
+     * @throws CancellationException if the query was cancelled before it finished
+     */
+    public SuggestResult suggest(SuggestRequest request, long budget, TimeUnit unit, CancellationToken token) {
+        return suggest(request, null, budget, unit, token);
+    }
+
+    /**
+     * Retrieves suggestions for a query of a session that can be
+     * cancelled. The documents shared by the context terms are taken from
+     * the cache of the session and only computed for the terms that
+     * changed since its previous query.
+     * @param request the query
+     * @param cache the context cache of the session, null for none
+     * @param budget the time budget, 0 for none
+     * @param unit the unit of the budget
+     * @param token the cancellation token of the query, null for none
+     * @return the top n suggestions, found within the budget if there is one
+     * @throws CancellationException if the query was cancelled before it finished
+     */
+    public SuggestResult suggest(SuggestRequest request, ContextCache cache, long budget, TimeUnit unit, CancellationToken token) {
+        Deadline deadline = (budget > 0) ? new Deadline(budget, unit, token) : new Deadline(token);
+        List<String> results = texts(request.isComplete()
+                ? queryComplete(request.getContextTerms(), cache, request.getTerm(), request.getN(), deadline)
+                : queryPartial(request.getContextTerms(), cache, request.getTerm(), request.getN(), deadline));
+        return new SuggestResult(results, deadline.isDegraded());
+    }
+
+    /**
+     * Retrieves suggestions for a query asynchronously. The returned
+     * future is cancelled if the token is cancelled before the query
+     * finished, and cancelling the future cancels the query. A query that
+     * is cancelled while it is still waiting for the executor is skipped.
+     * @param request the query
+     * @param executor the executor to run the query on
+     * @param token the cancellation token of the query
+     * @return a future with the top n suggestions
+     */
+    public CompletableFuture<List<String>> suggestAsync(SuggestRequest request, Executor executor, CancellationToken token) {
+        return suggestAsync(request, null, executor, token);
+    }
+
+    /**
+     * Retrieves suggestions for a query of a session asynchronously, as
+     * suggestAsync() does, using the context cache of the session.
+     * @param request the query
+     * @param cache the context cache of the session, null for none
+     * @param executor the executor to run the query on
+     * @param token the cancellation token of the query
+     * @return a future with the top n suggestions
+     */
+    public CompletableFuture<List<String>> suggestAsync(SuggestRequest request, ContextCache cache, Executor executor, CancellationToken token) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        future.whenComplete((results, e) -> {
+            if (future.isCancelled())
+                token.cancel();
+        });
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(suggest(request, cache, 0, TimeUnit.MILLISECONDS, token).getSuggestions());
+                }
+                catch (CancellationException e) {
+                    future.cancel(false);
+                }
+                catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
     /**
      * Retrieves suggestions for extending a query with a partial last
@@ -116,28 +822,173 @@ public class QuerySuggestor {
      * @return a list with the top n suggestions
      */
     public List<String> queryPartial(String context, String partial, int n) {
-        // get id of context (will be -1 if there is no corresponding unigram)
-        int contextID = unigramToID.get(context);
-        // retrieve completions
-        TIntSet completions = getCompletions(contextID, partial);
+        return texts(queryPartial(contextTerms(context), null, partial, n, Deadline.NONE));
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term, correlating completions and phrases with the documents
+     * shared by all context terms.
+     * @param context the query terms preceding the last query term, in order
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<String> queryPartial(List<String> context, String partial, int n) {
+        return texts(queryPartial(context, null, partial, n, Deadline.NONE));
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term as queryPartial() does, as word ids whose text is only
+     * looked up when it is asked for.
+     * @param context the query terms preceding the last query term, in order
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<Suggestion> suggestPartial(List<String> context, String partial, int n) {
+        return queryPartial(context, null, partial, n, Deadline.NONE);
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term within a time budget. If the full computation would
+     * exceed the budget, cheaper strategies are used and the best
+     * suggestions found in time are returned as degraded results.
+     * @param context the word preceding the last query term
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @param budget the time budget
+     * @param unit the unit of the budget
+     * @return the top n suggestions found within the budget
+     */
+    public SuggestResult queryPartial(String context, String partial, int n, long budget, TimeUnit unit) {
+        Deadline deadline = new Deadline(budget, unit);
+        List<String> results = texts(queryPartial(contextTerms(context), null, partial, n, deadline));
+        return new SuggestResult(results, deadline.isDegraded());
+    }
+
+    private List<Suggestion> queryPartial(List<String> context, ContextCache cache, String partial, int n, Deadline deadline) {
+        QueryTrace trace = startTrace("partial", String.join(" ", context), partial);
+        try {
+            deadline.checkCancelled();
+            long t = trace.now();
+            Context ctx = resolveContext(context, cache);
+            trace.add(QueryTrace.Stage.TRIE_LOOKUP, t);
+            List<Suggestion> results = queryPartial(ctx, partial, n, trace, deadline);
+            finishTrace(trace, deadline);
+            return results;
+        }
+        catch (CancellationException e) {
+            QueryMetrics m = metrics;
+            if (m != null)
+                m.recordCancelled();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term.
+     * @param ctx the resolved word preceding the last query term
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return a list with the top n suggestions
+     */
+    private List<Suggestion> queryPartial(Context ctx, String partial, int n, QueryTrace trace, Deadline deadline) {
+        return queryPartial(ctx, partial, n, prefixTable, foldedIndex, maxEdits, trace, deadline);
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a partial last
+     * query term with the given settings instead of those of this
+     * QuerySuggestor.
+     * @param ctx the resolved word preceding the last query term
+     * @param partial the partially entered last query term
+     * @param n the number of suggestions to make
+     * @param table the precomputed suggestions, null for none
+     * @param folded the index of the folded unigrams, null to respect
+     *               accents and case
+     * @param maxEdits the maximum number of edits of mistyped prefixes,
+     *                 0 to disable
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return a list with the top n suggestions
+     */
+    private List<Suggestion> queryPartial(Context ctx, String partial, int n, PrefixTable table, FoldedIndex folded, int maxEdits,
+                                          QueryTrace trace, Deadline deadline) {
+        String context = ctx.word;
+        int contextID = ctx.id;
+        // answer short terms without a context from the precomputed table
+        if (table != null && context.isEmpty() && !ctx.known && n == table.getN() && folded == null
+                && (maxEdits == 0 || partial.length() <= 2)) {
+            long t = trace.now();
+            List<Suggestion> results = table.get(partial, IDToWord);
+            if (results != null) {
+                trace.setPrecomputed(true);
+                trace.lap(QueryTrace.Stage.TRIE_LOOKUP, t);
+                return results;
+            }
+        }
+        // retrieve completions, and the number of edits of those of
+        // mistyped prefixes
+        TIntIntMap edits = (maxEdits > 0) ? new TIntIntHashMap() : NO_EDITS;
+        TIntSet completions = getCompletions(ctx, partial, edits, folded, maxEdits, trace, deadline);
         if (completions.isEmpty()) return new ArrayList<>();
-        // retrieve phrases containing these completions
-        TObjectDoubleMap<int[]> phrases = getPhrases(completions, contextID);
+        deadline.checkCancelled();
+        // retrieve phrases containing these completions; if the budget is
+        // already used up, only suggest the completions
+        long t = trace.now();
+        TObjectDoubleMap<int[]> phrases;
+        if (deadline.expired()) {
+            phrases = new TObjectDoubleHashMap<>();
+            for (TIntIterator iter = completions.iterator(); iter.hasNext(); ) {
+                int unigram = iter.next();
+                phrases.put(new int[]{unigram}, weight(unigram, edits));
+            }
+            deadline.degrade(QueryTrace.Stage.PHRASE_GATHERING);
+        }
+        else
+            phrases = getPhrases(completions, edits, (int)(n*1.5), ctx, trace, deadline);
+        deadline.checkCancelled();
+        t = trace.lap(QueryTrace.Stage.PHRASE_GATHERING, t);
+        return finishPartial(context, contextID, phrases, completions, n, trace, t);
+    }
+
+    /**
+     * Selects the top phrases for a partial last query term and converts
+     * them to suggestions.
+     * @param context the word preceding the last query term
+     * @param contextID its id, -1 if there is no corresponding unigram
+     * @param phrases the phrases with their probabilities
+     * @param completions the completions the phrases were gathered for
+     * @param n the number of suggestions to make
+     * @param trace the trace of this query
+     * @param t the time the last stage ended
+     * @return a list with the top n suggestions
+     */
+    private List<Suggestion> finishPartial(String context, int contextID, TObjectDoubleMap<int[]> phrases, TIntSet completions, int n, QueryTrace trace, long t) {
         // only keep top phrases; get more than n in case there will be duplicates
         // after appending the context
         int[][] topPhrases = getTopN(phrases, (int)(n*1.5));
-        // convert results to strings
-        List<String> results = translateNGrams(topPhrases, context);
         // get the most frequent completion to return with the results
-        String topCompletion = IDToWord.get(getMostFrequentCompletion(topPhrases, completions));
-        // prepend context to completion
-        if (contextID >= 0) topCompletion = context + ' ' + topCompletion;
-        // add completion to results
-        results.add(0, topCompletion);
-        // remove duplicates and return top n results
-        removeDuplicates(results);
-        if (results.size() <= n) return results;
-        return removeDuplicates(results).subList(0, n);
+        int topCompletionID = getMostFrequentCompletion(topPhrases, completions);
+        t = trace.lap(QueryTrace.Stage.TOP_K, t);
+        // add completion to results first, with the context prepended if
+        // it is a unigram, and with the score of the top phrase
+        List<Suggestion> results = new ArrayList<>();
+        double topScore = (topPhrases.length == 0) ? 0 : phrases.get(topPhrases[0]);
+        results.add((contextID >= 0)
+                ? new Suggestion(new int[]{topCompletionID}, topScore, context, contextID, false, IDToWord)
+                : new Suggestion(new int[]{topCompletionID}, topScore, "", Suggestion.NO_PREFIX, false, IDToWord));
+        // add phrases unless a suggestion with the same words is already
+        // contained, until there are n
+        addDistinct(results, topPhrases, phrases, context, contextID, n);
+        trace.lap(QueryTrace.Stage.TRANSLATION, t);
+        return (results.size() <= n) ? results : results.subList(0, n);
     }
 
     /**
@@ -149,75 +1000,617 @@ public class QuerySuggestor {
      * @return a list with the top n suggestions
      */
     public List<String> queryComplete(String context, String lastTerm, int n) {
+        return texts(queryComplete(contextTerms(context), null, lastTerm, n, Deadline.NONE));
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a complete last
+     * query term, correlating phrases with the documents shared by all
+     * context terms.
+     * @param context the query terms preceding the last query term, in order
+     * @param lastTerm the last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<String> queryComplete(List<String> context, String lastTerm, int n) {
+        return texts(queryComplete(context, null, lastTerm, n, Deadline.NONE));
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a complete last
+     * query term as queryComplete() does, as word ids whose text is only
+     * looked up when it is asked for.
+     * @param context the query terms preceding the last query term, in order
+     * @param lastTerm the last query term
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<Suggestion> suggestComplete(List<String> context, String lastTerm, int n) {
+        return queryComplete(context, null, lastTerm, n, Deadline.NONE);
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a complete last
+     * query term within a time budget. If the full computation would
+     * exceed the budget, only the most frequent phrases are considered
+     * and returned as degraded results.
+     * @param context the word preceding the last query term
+     * @param lastTerm the last query term
+     * @param n the number of suggestions to make
+     * @param budget the time budget
+     * @param unit the unit of the budget
+     * @return the top n suggestions found within the budget
+     */
+    public SuggestResult queryComplete(String context, String lastTerm, int n, long budget, TimeUnit unit) {
+        Deadline deadline = new Deadline(budget, unit);
+        List<String> results = texts(queryComplete(contextTerms(context), null, lastTerm, n, deadline));
+        return new SuggestResult(results, deadline.isDegraded());
+    }
+
+    private List<Suggestion> queryComplete(List<String> context, ContextCache cache, String lastTerm, int n, Deadline deadline) {
+        QueryTrace trace = startTrace("complete", String.join(" ", context), lastTerm);
+        try {
+            deadline.checkCancelled();
+            long t = trace.now();
+            Context ctx = resolveContext(context, cache);
+            trace.add(QueryTrace.Stage.TRIE_LOOKUP, t);
+            List<Suggestion> results = queryComplete(ctx, lastTerm, n, trace, deadline);
+            finishTrace(trace, deadline);
+            return results;
+        }
+        catch (CancellationException e) {
+            QueryMetrics m = metrics;
+            if (m != null)
+                m.recordCancelled();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves suggestions for extending a query with a complete last
+     * query term.
+     * @param ctx the resolved word preceding the last query term
+     * @param lastTerm the last query term
+     * @param n the number of suggestions to make
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return a list with the top n suggestions
+     */
+    private List<Suggestion> queryComplete(Context ctx, String lastTerm, int n, QueryTrace trace, Deadline deadline) {
+        long t = trace.now();
+        int lastTermID = getTermID(lastTerm);
+        t = trace.lap(QueryTrace.Stage.TRIE_LOOKUP, t);
         // if the last term is unknown, return nothing
-        if (unigramToID.get(lastTerm) == -1) return new ArrayList<>();
+        if (lastTermID == -1) return new ArrayList<>();
+        deadline.checkCancelled();
         // get phrases containing the last term
-        TObjectDoubleMap<int[]> phrases = getPhrasesforCompletion(unigramToID.get(lastTerm), 1, unigramToID.get(context));
-        // get top 1.5n phrases, convert to strings, remove duplicates and return top n
-        return removeDuplicates(translateNGrams(getTopN(phrases, (int)(n*1.5)), context)).subList(0, n);
+        Set<int[]> preferred = phraseSet();
+        TObjectDoubleMap<int[]> phrases = getPhrasesforCompletion(lastTermID, (int)(n*1.5), ctx, preferred, trace, deadline);
+        deadline.checkCancelled();
+        trace.setPhrases(phrases.size());
+        t = trace.lap(QueryTrace.Stage.PHRASE_GATHERING, t);
+        return finishComplete(ctx.word, ctx.id, phrases, preferred, n, trace, t);
+    }
+
+    /**
+     * Selects the top phrases for a complete last query term and converts
+     * them to suggestions.
+     * @param context the word preceding the last query term
+     * @param contextID its id, -1 if there is no corresponding unigram
+     * @param phrases the phrases with their probabilities
+     * @param preferred the phrases ranked above all others
+     * @param n the number of suggestions to make
+     * @param trace the trace of this query
+     * @param t the time the last stage ended
+     * @return a list with the top n suggestions
+     */
+    private List<Suggestion> finishComplete(String context, int contextID, TObjectDoubleMap<int[]> phrases, Set<int[]> preferred, int n, QueryTrace trace, long t) {
+        // get top 1.5n phrases and keep the top n without duplicates
+        int[][] topPhrases = getTopN(phrases, preferred, (int)(n*1.5));
+        t = trace.lap(QueryTrace.Stage.TOP_K, t);
+        List<Suggestion> results = new ArrayList<>();
+        addDistinct(results, topPhrases, phrases, context, contextID, n);
+        trace.lap(QueryTrace.Stage.TRANSLATION, t);
+        return results;
+    }
+
+    /**
+     * @param word a word
+     * @return the id of the word if it can be suggested, -1 otherwise
+     */
+    public int getUnigramID(String word) {
+        return unigramToID.get(word);
+    }
+
+    /**
+     * @param id a word id
+     * @return the docset of the word, null if it has none
+     */
+    int[] getDocSet(int id) {
+        return docSets.get(id);
+    }
+
+    /**
+     * @param context the word preceding the last query term, empty if none
+     * @return the context as a list of terms
+     */
+    private static List<String> contextTerms(String context) {
+        return context.isEmpty() ? Collections.emptyList() : Collections.singletonList(context);
+    }
+
+    /**
+     * Resolves the terms preceding the last query term. With several
+     * terms, completions and phrases are correlated with the documents
+     * shared by all of them (see ContextCache).
+     * @param terms the terms preceding the last query term, in order
+     * @param cache the context cache of the session, null for none
+     * @return the context
+     */
+    private Context resolveContext(List<String> terms, ContextCache cache) {
+        if (terms.size() <= 1)
+            return new Context(terms.isEmpty() ? "" : terms.get(0));
+        int[] ids = new int[terms.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = unigramToID.get(terms.get(i));
+        int[] docs = ((cache != null) ? cache : new ContextCache()).intersect(this, ids);
+        return new Context(terms.get(ids.length - 1), ids[ids.length - 1], docs);
+    }
+
+    /**
+     * Resolves the terms preceding the last query term from their ids.
+     * @param ids the ids of the terms, -1 for terms without a corresponding unigram
+     * @return the context
+     */
+    private Context resolveContext(int[] ids) {
+        int id = (ids.length == 0) ? -1 : ids[ids.length - 1];
+        String word = (id == -1) ? "" : IDToWord.get(id);
+        if (ids.length <= 1)
+            return new Context(word, id);
+        return new Context(word, id, new ContextCache().intersect(this, ids));
+    }
+
+    /**
+     * Ranks the completions of a partial term in this shard of a sharded
+     * index as queryPartial() does: by their correlation with the context
+     * or, without context, by their tf-idfs. The context may belong to
+     * another shard, but its docset has to be loaded.
+     * @param context the ids of the query terms preceding the last query
+     *                term, -1 for terms without a corresponding unigram
+     * @param partial the partially entered last query term
+     * @param max the maximum number of completions to return
+     * @return the number of completions and the best of them
+     */
+    public ShardCompletions rankCompletions(int[] context, String partial, int max) {
+        Context ctx = resolveContext(context);
+        TIntSet completions = unigramToID.getValuesWithPrefix(partial);
+        completions.remove(ctx.id);
+        TIntDoubleMap scores = new TIntDoubleHashMap();
+        for (TIntIterator iter = completions.iterator(); iter.hasNext(); ) {
+            int c = iter.next();
+            if (!ctx.known)
+                scores.put(c, unigrams.get(c));
+            else
+                scores.put(c, correlation(c, ctx));
+        }
+        List<Integer> ranked = new ArrayList<>(Ints.asList(completions.toArray()));
+        ranked.sort(byScore(scores));
+
+        int size = Math.min(max, ranked.size());
+        int[] ids = new int[size];
+        double[] rankScores = new double[size];
+        double[] weights = new double[size];
+        int[] phrases = new int[size];
+        for (int i = 0; i < size; i++) {
+            int c = ranked.get(i);
+            ids[i] = c;
+            rankScores[i] = scores.get(c);
+            weights[i] = unigrams.get(c);
+            phrases[i] = ngrams.containsKey(c) ? ngrams.get(c).size() : 0;
+        }
+        return new ShardCompletions(completions.size(), ids, rankScores, weights, phrases);
+    }
+
+    /**
+     * Scores the phrases of some completions in this shard of a sharded
+     * index as queryPartial() does, given the values computed over all
+     * shards.
+     * @param context the ids of the query terms preceding the last query
+     *                term, -1 for terms without a corresponding unigram
+     * @param completions the selected completions of this shard
+     * @param csum the sum of the tf-idfs of the selected completions of all shards
+     * @param tooManyPhrases whether the selected completions of all shards
+     *                       have more than MAX_PHRASES phrases
+     * @param k the number of phrases to return
+     * @return the k most probable phrases
+     */
+    public List<ScoredPhrase> scorePhrases(int[] context, int[] completions, double csum, boolean tooManyPhrases, int k) {
+        Context ctx = resolveContext(context);
+        return toScoredPhrases(gatherPhrases(completions, csum, tooManyPhrases, NO_EDITS, k, ctx, QueryTrace.DISABLED, Deadline.NONE),
+                Collections.emptySet(), k);
+    }
+
+    /**
+     * Scores the phrases of a complete term in the shard of a sharded index
+     * it belongs to, as queryComplete() does.
+     * @param context the ids of the query terms preceding the last query
+     *                term, -1 for terms without a corresponding unigram
+     * @param lastTermID the id of the last query term
+     * @param k the number of phrases to return
+     * @return the k most probable phrases
+     */
+    public List<ScoredPhrase> scoreExtensions(int[] context, int lastTermID, int k) {
+        Context ctx = resolveContext(context);
+        Set<int[]> preferred = phraseSet();
+        return toScoredPhrases(getPhrasesforCompletion(lastTermID, k, ctx, preferred, QueryTrace.DISABLED, Deadline.NONE), preferred, k);
+    }
+
+    /**
+     * Converts the phrases of all shards of a sharded index for a partial
+     * last query term to suggestions, as queryPartial() does. Only the
+     * dictionary of this QuerySuggestor is used.
+     * @param context the word preceding the last query term
+     * @param contextID its id, -1 if there is no corresponding unigram
+     * @param phrases the phrases of all shards
+     * @param completions the selected completions of all shards
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<String> mergePartial(String context, int contextID, List<ScoredPhrase> phrases, int[] completions, int n) {
+        if (completions.length == 0) return new ArrayList<>();
+        return texts(finishPartial(context, contextID, fromScoredPhrases(phrases, phraseSet()), new TIntHashSet(completions), n, QueryTrace.DISABLED, 0));
+    }
+
+    /**
+     * Converts the phrases of a complete last query term from its shard
+     * to suggestions, as queryComplete() does. Only the dictionary of this
+     * QuerySuggestor is used.
+     * @param context the word preceding the last query term
+     * @param phrases the phrases
+     * @param n the number of suggestions to make
+     * @return a list with the top n suggestions
+     */
+    public List<String> mergeComplete(String context, List<ScoredPhrase> phrases, int n) {
+        Set<int[]> preferred = phraseSet();
+        TObjectDoubleMap<int[]> merged = fromScoredPhrases(phrases, preferred);
+        return texts(finishComplete(context, -1, merged, preferred, n, QueryTrace.DISABLED, 0));
+    }
+
+    /**
+     * @param phrases phrases with their probabilities
+     * @param preferred the phrases ranked above all others
+     * @param k the number of phrases to keep
+     * @return the k most probable phrases
+     */
+    private List<ScoredPhrase> toScoredPhrases(TObjectDoubleMap<int[]> phrases, Set<int[]> preferred, int k) {
+        List<ScoredPhrase> scored = new ArrayList<>();
+        for (int[] phrase : getTopN(phrases, preferred, k))
+            scored.add(new ScoredPhrase(phrase, phrases.get(phrase), preferred.contains(phrase)));
+        return scored;
+    }
+
+    /**
+     * Collects the phrases of several shards. A phrase returned by several
+     * shards is scored with its highest probability, as in getPhrases(),
+     * and ranked above all others if any of them does so.
+     * @param phrases the phrases of all shards
+     * @param preferred the set the phrases ranked above all others are added to
+     * @return a map from phrases to probabilities
+     */
+    private TObjectDoubleMap<int[]> fromScoredPhrases(List<ScoredPhrase> phrases, Set<int[]> preferred) {
+        List<ScoredPhrase> sorted = new ArrayList<>(phrases);
+        sorted.sort((p1, p2) -> compareIDs(p1.getNGram(), p2.getNGram()));
+        TObjectDoubleMap<int[]> merged = new TObjectDoubleHashMap<>();
+        int[] last = null;
+        for (ScoredPhrase phrase : sorted) {
+            if (last != null && compareIDs(last, phrase.getNGram()) == 0) {
+                if (phrase.getScore() > merged.get(last))
+                    merged.put(last, phrase.getScore());
+            }
+            else {
+                last = phrase.getNGram();
+                merged.put(last, phrase.getScore());
+            }
+            if (phrase.isPreferred())
+                preferred.add(last);
+        }
+        return merged;
+    }
+
+    /**
+     * @return an empty set of phrases, which are compared by identity like
+     * the keys of the maps from phrases to probabilities
+     */
+    private static Set<int[]> phraseSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Starts the trace of a query.
+     * @param kind the kind of query
+     * @param context the word preceding the last query term
+     * @param term the last query term
+     * @return a new trace, or a disabled one if metrics are disabled and
+     * no flight recording enables QueryEvent
+     */
+    private QueryTrace startTrace(String kind, String context, String term) {
+        return (metrics == null && !QueryEvent.isRecorded()) ? QueryTrace.DISABLED : new QueryTrace(kind, context, term);
+    }
+
+    /**
+     * Ends the trace of a query and reports it to the metrics and the
+     * flight recorder.
+     * @param trace the trace
+     * @param deadline the deadline of the query
+     */
+    private void finishTrace(QueryTrace trace, Deadline deadline) {
+        if (!trace.isEnabled()) return;
+        trace.setDegraded(deadline.getDegradedStages());
+        trace.finish();
+        QueryMetrics m = metrics;
+        if (m != null)
+            m.record(trace);
     }
 
     /**
      * Gets the best completions for a partial term given a preceding
      * query term.
-     * @param context the preceding query term
+     * @param ctx the preceding query term
      * @param partial the partially entered query term
+     * @param edits the map to place the number of edits of the completions
+     *              of mistyped prefixes in, NO_EDITS if typos are not tolerated
+     * @param folded the index of the folded unigrams, null to respect
+     *               accents and case
+     * @param maxEdits the maximum number of edits of mistyped prefixes
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
      * @return the best completions for the partial term
      */
-    private TIntSet getCompletions(int context, String partial) {
+    private TIntSet getCompletions(Context ctx, String partial, TIntIntMap edits, FoldedIndex folded, int maxEdits,
+                                   QueryTrace trace, Deadline deadline) {
+        long t = trace.now();
         // get all possible completions for the partial string
         TIntSet completions = unigramToID.getValuesWithPrefix(partial);
+        if (edits != NO_EDITS) {
+            addFuzzyCompletions(partial, completions, edits, maxEdits);
+            edits.remove(ctx.id);
+        }
+        if (folded != null)
+            addFoldedCompletions(partial, folded, completions, edits);
         // remove context in case it is a possible completion
-        completions.remove(context);
+        completions.remove(ctx.id);
+        trace.setCompletions(completions.size());
+        t = trace.lap(QueryTrace.Stage.TRIE_LOOKUP, t);
         // only return sqrt(n_c) (min. 10, max. 100) most probable
         // completions given the context
-        int n = (completions.size() < 100) ? 10 : ((completions.size() > 10000) ? 100 : (int) Math.sqrt(completions.size()));
-        return getTopNGivenContext(completions, n, context);
+        int n = completionsToSelect(completions.size());
+        TIntSet topCompletions = getTopNGivenContext(completions, n, edits, ctx, trace, deadline);
+        trace.setSelectedCompletions(topCompletions.size());
+        trace.lap(QueryTrace.Stage.COMPLETION_RANKING, t);
+        return topCompletions;
+    }
+
+    /**
+     * Adds the completions of prefixes within a few edits of a partial
+     * term, as many as allowed by the length of the term. If there are
+     * more than MAX_FUZZY_COMPLETIONS, those with the highest penalized
+     * weights are added.
+     * @param partial the partially entered query term
+     * @param completions the completions of the term to add to
+     * @param edits the map to place the number of edits of the added
+     *              completions in
+     * @param maxEdits the maximum number of edits
+     */
+    private void addFuzzyCompletions(String partial, TIntSet completions, TIntIntMap edits, int maxEdits) {
+        int allowed = (partial.length() <= 2) ? 0 : ((partial.length() <= 5) ? 1 : 2);
+        TIntIntMap similar = unigramToID.getValuesWithFuzzyPrefix(partial, Math.min(allowed, maxEdits));
+        if (similar.size() > MAX_FUZZY_COMPLETIONS) {
+            List<Integer> ranked = new ArrayList<>(Ints.asList(similar.keys()));
+            ranked.sort(byScore(weights(ranked, similar)));
+            TIntIntMap best = new TIntIntHashMap();
+            for (int c : ranked.subList(0, MAX_FUZZY_COMPLETIONS))
+                best.put(c, similar.get(c));
+            similar = best;
+        }
+        edits.putAll(similar);
+        completions.addAll(similar.keySet());
+    }
+
+    /**
+     * Adds the completions of a partial term that differ from it only in
+     * accents and case. They are weighted as exact completions, even if
+     * they are also completions of a mistyped prefix. A term that is empty
+     * once folded has none.
+     * @param partial the partially entered query term
+     * @param folded the index of the folded unigrams
+     * @param completions the completions of the term to add to
+     * @param edits the number of edits of the completions of mistyped
+     *              prefixes, NO_EDITS if typos are not tolerated
+     */
+    private void addFoldedCompletions(String partial, FoldedIndex folded, TIntSet completions, TIntIntMap edits) {
+        String prefix = FoldedIndex.fold(partial);
+        // an empty prefix has no completions, as in the trie
+        if (prefix.isEmpty())
+            return;
+        TIntSet variants = prefix.equals(partial) ? new TIntHashSet() : unigramToID.getValuesWithPrefix(prefix);
+        folded.addValuesWithPrefix(prefix, variants);
+        completions.addAll(variants);
+        if (edits != NO_EDITS)
+            edits.keySet().removeAll(variants);
+    }
+
+    /**
+     * @param term a complete query term
+     * @return the id of the term if it is a unigram, otherwise, if accents
+     * and case are ignored, the id of the unigram with the highest tf-idf
+     * and the same folded form; -1 if there is none
+     */
+    private int getTermID(String term) {
+        int id = unigramToID.get(term);
+        FoldedIndex folded = foldedIndex;
+        if (id != -1 || folded == null)
+            return id;
+        String key = FoldedIndex.fold(term);
+        if (!key.equals(term))
+            id = unigramToID.get(key);
+        for (int variant : folded.getValues(key))
+            if (id == -1 || unigrams.get(variant) > unigrams.get(id))
+                id = variant;
+        return id;
+    }
+
+    /**
+     * @param completion a completion
+     * @param edits the number of edits of the completions of mistyped prefixes
+     * @return the tf-idf of the completion, lowered by EDIT_PENALTY per edit
+     */
+    private double weight(int completion, TIntIntMap edits) {
+        int e = edits.get(completion);
+        return (e == 0) ? unigrams.get(completion) : unigrams.get(completion) * Math.pow(EDIT_PENALTY, e);
+    }
+
+    /**
+     * @param completions some completions
+     * @param edits the number of edits of the completions of mistyped prefixes
+     * @return the weights of the completions (see weight())
+     */
+    private TIntDoubleMap weights(List<Integer> completions, TIntIntMap edits) {
+        if (edits.isEmpty())
+            return unigrams;
+        TIntDoubleMap weights = new TIntDoubleHashMap();
+        for (int c : completions)
+            weights.put(c, weight(c, edits));
+        return weights;
+    }
+
+    /**
+     * @param completions the number of completions of a partial term
+     * @return the number of them to select: sqrt(n_c), min. 10, max. 100
+     */
+    public static int completionsToSelect(int completions) {
+        return (completions < 100) ? 10 : ((completions > 10000) ? 100 : (int) Math.sqrt(completions));
+    }
+
+    /**
+     * Sums the weights of some completions in the order of their ids, so
+     * that the sum does not depend on the order of a set.
+     * @param completions the completions
+     * @param edits the number of edits of the completions of mistyped prefixes
+     * @return the sum of their tf-idfs, lowered by EDIT_PENALTY per edit
+     */
+    private double weightSum(int[] completions, TIntIntMap edits) {
+        int[] sorted = completions.clone();
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (int unigram : sorted)
+            sum += weight(unigram, edits);
+        return sum;
     }
 
     /**
      * Gets all phrases containing the given completions and the context
      * with their respective probabilities.
      * @param completions all completions
-     * @param context the context
+     * @param edits the number of edits of the completions of mistyped prefixes
+     * @param k the number of top phrases that will be selected; phrases
+     *          that cannot be among them may be left out
+     * @param ctx the context
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
      * @return a map from phrases to probabilities
      */
-    private TObjectDoubleMap<int[]> getPhrases(TIntSet completions, int context) {
+    private TObjectDoubleMap<int[]> getPhrases(TIntSet completions, TIntIntMap edits, int k, Context ctx, QueryTrace trace, Deadline deadline) {
         // calculate sum of tf-idfs of all completions and check
         // whether there are more than 10000 candidate phrases
-        double csum = 0;
+        double csum = weightSum(completions.toArray(), edits);
         int numPhrases = 0;
         boolean tooManyPhrases = false;
         for (TIntIterator iter = completions.iterator(); iter.hasNext(); ) {
             int unigram = iter.next();
-            csum += unigrams.get(unigram);
             if (!tooManyPhrases && ngrams.containsKey(unigram)) {
                 numPhrases += ngrams.get(unigram).size();
-                tooManyPhrases = numPhrases > 10000;
+                tooManyPhrases = numPhrases > MAX_PHRASES;
             }
         }
 
-        // get phrases
-        TObjectDoubleMap<int[]> phrases = new TObjectDoubleHashMap<>();
-        for (TIntIterator iter = completions.iterator(); iter.hasNext(); ) {
-            int unigram = iter.next();
-            // calculate term completion probability (eq. 9 in paper)
-            double termCompletionProbability = unigrams.get(unigram) / csum;
-            // if there are too many phrases, select completions as results
-            if (tooManyPhrases) {
-                TIntList complDocs = new TIntArrayList(docSets.get(unigram));
+        // with a budget, also select completions as results if the phrases
+        // would take longer than the remaining time
+        if (!tooManyPhrases && deadline.isSet()) {
+            long postings = 0;
+            for (TIntIterator iter = completions.iterator(); iter.hasNext(); )
+                postings += phrasePostings(iter.next(), ctx);
+            if (postings * nanosPerPosting > deadline.remaining()) {
+                tooManyPhrases = true;
+                deadline.degrade(QueryTrace.Stage.PHRASE_GATHERING);
+            }
+        }
+
+        trace.setTooManyPhrases(tooManyPhrases);
+
+        // with a budget, process the most probable completions first, so
+        // that they are included if the deadline is reached; their phrases
+        // are scored in the order of their probability anyway
+        int[] ordered = completions.toArray();
+        if (deadline.isSet() && tooManyPhrases) {
+            List<Integer> byWeight = new ArrayList<>(Ints.asList(ordered));
+            byWeight.sort((s1, s2) -> Double.compare(weight(s2, edits), weight(s1, edits)));
+            ordered = Ints.toArray(byWeight);
+        }
+
+        return gatherPhrases(ordered, csum, tooManyPhrases, edits, k, ctx, trace, deadline);
+    }
+
+    /**
+     * Gets all phrases containing the given completions and the context
+     * with their respective probabilities, given the sum of the tf-idfs of
+     * all completions. A phrase containing several of the completions is
+     * scored with the most probable of them.
+     * @param ordered the completions in the order in which they are processed
+     *                if they are selected as results
+     * @param csum the sum of the tf-idfs of all completions
+     * @param tooManyPhrases whether to select the completions themselves
+     *                       as results instead of their phrases
+     * @param edits the number of edits of the completions of mistyped prefixes
+     * @param k the number of top phrases that will be selected; phrases
+     *          that cannot be among them may be left out
+     * @param ctx the context
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return a map from phrases to probabilities
+     */
+    private TObjectDoubleMap<int[]> gatherPhrases(int[] ordered, double csum, boolean tooManyPhrases, TIntIntMap edits, int k, Context ctx, QueryTrace trace, Deadline deadline) {
+        TObjectDoubleMap<int[]> phrases;
+        // if there are too many phrases, select completions as results
+        if (tooManyPhrases) {
+            phrases = new TObjectDoubleHashMap<>();
+            for (int unigram : ordered) {
+                deadline.checkCancelled();
+                if (deadline.expired()) {
+                    deadline.degrade(QueryTrace.Stage.PHRASE_GATHERING);
+                    break;
+                }
+                // calculate term completion probability (eq. 9 in paper)
+                double termCompletionProbability = weight(unigram, edits) / csum;
                 // calculate completion query correlation (eq. 5 in report);
                 // 1 without known context, because else the overall
                 // probability for all completions would be 0
-                double complQueryCorrelation = (context == -1) ? 1
-                        : intersect(complDocs, docSets.get(context)).size() / (double) complDocs.size();
+                long t = trace.now();
+                double complQueryCorrelation = !ctx.known ? 1 : correlation(unigram, ctx);
+                trace.add(QueryTrace.Stage.INTERSECTION, t);
                 phrases.put(new int[]{unigram}, termCompletionProbability*complQueryCorrelation);
             }
-            // else get phrases for completions
-            else
-                phrases.putAll(getPhrasesforCompletion(unigram, termCompletionProbability, context));
+        }
+        // else get phrases for completions
+        else {
+            List<PhraseCursor> cursors = new ArrayList<>();
+            for (int unigram : ordered) {
+                if (ngrams.containsKey(unigram))
+                    // calculate term completion probability (eq. 9 in paper)
+                    cursors.add(new PhraseCursor(unigram, weight(unigram, edits) / csum));
+            }
+            phrases = rankPhrases(cursors, new TIntDoubleHashMap(), new TIntHashSet(), Collections.emptySet(), k, ctx, trace, deadline);
         }
 
+        trace.setPhrases(phrases.size());
         return phrases;
     }
 
@@ -225,51 +1618,172 @@ public class QuerySuggestor {
      * Gets all phrases containing the given completion and the context
      * with their respective probabilities.
      * @param completion the completion
-     * @param termCompletionProbability the probability of this completion
-     * @param context the context
+     * @param k the number of top phrases that will be selected; phrases
+     *          that cannot be among them may be left out
+     * @param ctx the context
+     * @param preferred the set the phrases ranked above all others are added to
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
      * @return a map from phrases to probabilities
      */
-    private TObjectDoubleMap<int[]> getPhrasesforCompletion(int completion, double termCompletionProbability, int context) {
-        TObjectDoubleMap<int[]> phrases = new TObjectDoubleHashMap<>();
+    private TObjectDoubleMap<int[]> getPhrasesforCompletion(int completion, int k, Context ctx, Set<int[]> preferred, QueryTrace trace, Deadline deadline) {
+        List<PhraseCursor> cursors = new ArrayList<>();
+        TIntDoubleMap found = new TIntDoubleHashMap();
+        TIntSet first = new TIntHashSet();
         if (ngrams.containsKey(completion)) {
-            // get phrases containing unigram
-            List<NGram> extensions = ngrams.get(completion);
-            // get sum of the normalized frequencies of all phrases
-            double psum = 0;
-            for (NGram ngram : extensions)
-                    psum += ngram.freq;
-
-            for (NGram ngram : extensions) {
-                // calculate term to phrase probability (eq. 11 in paper)
-                double termToPhraseProbability = ngram.freq / psum;
-                // calculate phrase selection probability (eq. 8 in paper)
-                double phraseSelectionProbability = termCompletionProbability * termToPhraseProbability;
-                // calculate phrase query correlation (eq. 13 in paper);
-                // 1 without known context, because else the overall
-                // probability for all phrases would be 0
-                TIntList phraseDocs = getDocsWithPhrase(ngram);
-                double phraseQueryCorrelation = (context == -1) ? 1
-                        : intersect(phraseDocs, docSets.get(context)).size() / (double) phraseDocs.size();
-                // calculate overall probabilty (eq. 7 in paper) and add phrase
-                // and frequency to results
-                phrases.put(ngram.ngram, phraseSelectionProbability * phraseQueryCorrelation);
+            cursors.add(new PhraseCursor(completion, 1));
+            // the phrases containing the context before the completion
+            // are ranked above all others
+            TLongObjectMap<int[]> pairs = pairIndex;
+            double[] probabilities = phraseProbabilities.get(completion);
+            if (pairs != null && probabilities != null && ctx.id != -1 && pairs.containsKey(pairKey(ctx.id, completion))) {
+                TIntList extensions = ngrams.get(completion);
+                int[] positions = pairs.get(pairKey(ctx.id, completion));
+                for (int i = 0; i < positions.length && i < k; i++) {
+                    found.put(extensions.get(positions[i]), probabilities[positions[i]]);
+                    first.add(extensions.get(positions[i]));
+                }
+            }
+        }
+        return rankPhrases(cursors, found, first, preferred, k, ctx, trace, deadline);
+    }
+
+    /**
+     * Scores the phrases of several completions in descending order of
+     * their phrase selection probability over all completions. Since the
+     * phrase query correlation is at most 1, that probability bounds the
+     * overall probability of a phrase, so the phrases are only correlated
+     * with the context while they can still be among the top k, and the
+     * rest is skipped. A phrase containing several of the completions is
+     * scored with the most probable of them. With a budget, the phrases
+     * found until the deadline are returned.
+     * @param cursors the phrases of each completion, none of them empty
+     * @param found the nodes of phrases scored in advance with their
+     *              probabilities, which the results are added to
+     * @param first the nodes among them that are ranked above all others
+     *              and keep their probabilities
+     * @param preferred the set the phrases of these nodes are added to
+     * @param k the number of top phrases that will be selected
+     * @param ctx the context
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return a map from phrases to probabilities
+     */
+    private TObjectDoubleMap<int[]> rankPhrases(List<PhraseCursor> cursors, TIntDoubleMap found, TIntSet first, Set<int[]> preferred,
+                                                int k, Context ctx, QueryTrace trace, Deadline deadline) {
+        // the cursor with the most probable next phrase first
+        PriorityQueue<PhraseCursor> queue = new PriorityQueue<>(Math.max(1, cursors.size()),
+                (c1, c2) -> Double.compare(c2.nextProbability(), c1.nextProbability()));
+        queue.addAll(cursors);
+        PhraseBound bound = new PhraseBound(k);
+        for (TIntDoubleIterator iter = found.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            // no other phrase can displace those ranked first
+            bound.add(first.contains(iter.key()) ? Double.POSITIVE_INFINITY : iter.value());
+        }
+
+        long start = System.nanoTime();
+        long postings = 0;
+        int correlated = 0;
+        while (!queue.isEmpty()) {
+            deadline.checkCancelled();
+            if (deadline.expired()) {
+                deadline.degrade(QueryTrace.Stage.PHRASE_GATHERING);
+                break;
+            }
+            PhraseCursor cursor = queue.poll();
+            // calculate phrase selection probability (eq. 8 in paper)
+            double phraseSelectionProbability = cursor.nextProbability();
+            // all remaining phrases are at most as probable as this one
+            if (!exhaustive && phraseSelectionProbability < bound.get())
+                break;
+            int ngram = cursor.next();
+            if (cursor.hasNext())
+                queue.add(cursor);
+            // calculate phrase query correlation (eq. 13 in paper);
+            // 1 without known context, because else the overall
+            // probability for all phrases would be 0
+            double phraseQueryCorrelation = 1;
+            if (ctx.known) {
+                long t = trace.now();
+                List<DocSketch> phraseSketches = getSketchesOfPhrase(ngram, ctx);
+                double estimate = (phraseSketches == null) ? Double.NaN
+                        : DocSketch.correlation(ctx.sketch(), phraseSketches);
+                if (!Double.isNaN(estimate)) {
+                    phraseQueryCorrelation = estimate;
+                    postings += (phraseSketches.size() + 1) * (long) sketchSize;
+                }
+                else {
+                    TIntList phraseDocs = getDocsWithPhrase(ngram);
+                    phraseQueryCorrelation = ctx.countCommon(phraseDocs) / (double) phraseDocs.size();
+                    postings += phraseDocs.size() + ctx.cost();
+                }
+                correlated++;
+                trace.add(QueryTrace.Stage.INTERSECTION, t);
             }
+            // calculate overall probabilty (eq. 7 in paper) and add phrase
+            // and frequency to results
+            double probability = phraseSelectionProbability * phraseQueryCorrelation;
+            if (!found.containsKey(ngram)) {
+                found.put(ngram, probability);
+                bound.add(probability);
+            }
+            else if (!first.contains(ngram) && probability > found.get(ngram))
+                found.put(ngram, probability);
         }
+        calibrate(postings, System.nanoTime() - start);
+        trace.addCorrelatedPhrases(correlated);
 
+        TObjectDoubleMap<int[]> phrases = new TObjectDoubleHashMap<>();
+        for (TIntDoubleIterator iter = found.iterator(); iter.hasNext(); ) {
+            iter.advance();
+            int[] ngram = ngramTrie.getNGram(iter.key());
+            phrases.put(ngram, iter.value());
+            if (first.contains(iter.key()))
+                preferred.add(ngram);
+        }
         return phrases;
     }
 
+    /**
+     * Estimates the number of postings visited when correlating all
+     * phrases containing a completion with the context: the docset of each
+     * phrase is at most as large as that of the completion.
+     * @param completion the completion
+     * @param ctx the context
+     * @return the estimated number of postings
+     */
+    private long phrasePostings(int completion, Context ctx) {
+        if (!ctx.known || !ngrams.containsKey(completion) || !docSets.containsKey(completion))
+            return 0;
+        int docs = docSets.get(completion).length;
+        return ngrams.get(completion).size() * (docs + ctx.cost());
+    }
+
+    /**
+     * Updates the measured time per posting visited in intersections. The
+     * update is not atomic, since concurrent queries only make the
+     * estimate slightly less accurate.
+     * @param postings the number of postings visited
+     * @param nanos the time it took in ns
+     */
+    private void calibrate(long postings, long nanos) {
+        if (postings >= MIN_CALIBRATION_POSTINGS)
+            nanosPerPosting = 0.9 * nanosPerPosting + 0.1 * nanos / postings;
+    }
+
     /**
      * Gets all documents that contain a given phrase, or rather all
      * documents that contain all words in the query that we have a
      * docset for (as suggested in eq. 14 in the paper).
-     * @param phrase the phrase
+     * @param phrase the node of the phrase
      * @return the documents containing that phrase
      */
-    private TIntList getDocsWithPhrase(NGram phrase) {
+    private TIntList getDocsWithPhrase(int phrase) {
         // Sort query terms according to frequency
         List<int[]> candidates = new ArrayList<>();
-        for (int word : phrase.ngram) {
+        for (int node = phrase; node != NGramTrie.ROOT; node = ngramTrie.getParent(node)) {
+            int word = ngramTrie.getWord(node);
             if (docSets.containsKey(word))
                 candidates.add(docSets.get(word));
         }
@@ -284,13 +1798,68 @@ public class QuerySuggestor {
         return result;
     }
 
+    /**
+     * Gets the sketches of the docsets of all words of a phrase that have
+     * a docset, if its correlation with the context can be estimated.
+     * @param phrase the node of the phrase
+     * @param ctx the context
+     * @return the sketches, null if the context or one of the docsets
+     * has fewer documents than the sketch cutoff
+     */
+    private List<DocSketch> getSketchesOfPhrase(int phrase, Context ctx) {
+        if (ctx.sketch() == null)
+            return null;
+        List<DocSketch> phraseSketches = new ArrayList<>();
+        for (int node = phrase; node != NGramTrie.ROOT; node = ngramTrie.getParent(node)) {
+            int word = ngramTrie.getWord(node);
+            if (docSets.containsKey(word)) {
+                DocSketch sketch = getSketch(word);
+                if (sketch == null)
+                    return null;
+                phraseSketches.add(sketch);
+            }
+        }
+        return phraseSketches.isEmpty() ? null : phraseSketches;
+    }
+
+    /**
+     * Calculates the share of the documents of a completion shared with
+     * the context, estimated from their sketches if both have at least
+     * as many documents as the sketch cutoff.
+     * @param completion the completion
+     * @param ctx the known context
+     * @return the completion query correlation
+     */
+    private double correlation(int completion, Context ctx) {
+        DocSketch sketch = getSketch(completion);
+        if (sketch != null && ctx.sketch() != null) {
+            double estimate = DocSketch.correlation(ctx.sketch(), Collections.singletonList(sketch));
+            if (!Double.isNaN(estimate))
+                return estimate;
+        }
+        int[] docs = docSets.get(completion);
+        return ctx.countCommon(docs) / (double) docs.length;
+    }
+
+    /**
+     * @param completion the completion
+     * @param ctx the known context
+     * @return the number of postings or hashes visited when correlating
+     * the completion with the context
+     */
+    private long correlationCost(int completion, Context ctx) {
+        if (getSketch(completion) != null && ctx.sketch() != null)
+            return 2L * sketchSize;
+        return docSets.get(completion).length + ctx.cost();
+    }
+
     /**
      * Intersect a sorted list and a sorted array of ints.
      * @param l1 sorted integer list
      * @param l2 sorted integer array
      * @return intersection
      */
-    private TIntList intersect(TIntList l1, int[] l2) {
+    static TIntList intersect(TIntList l1, int[] l2) {
         if (l2 == null)
             return l1;
 
@@ -321,9 +1890,26 @@ public class QuerySuggestor {
      * @return the top n phrases
      */
     private int[][] getTopN(TObjectDoubleMap<int[]> orig, int n) {
+        return getTopN(orig, Collections.emptySet(), n);
+    }
+
+    /**
+     * Extracts the n phrases with the highest probabilities, sorted
+     * in descending order after the preferred phrases.
+     * @param orig the phrases with their probabilities
+     * @param preferred the phrases ranked above all others
+     * @param n number of phrases to return
+     * @return the top n phrases
+     */
+    private int[][] getTopN(TObjectDoubleMap<int[]> orig, Set<int[]> preferred, int n) {
         // sort phrases according to their probabilities in descending order
         List<int[]> ranked = new ArrayList<>(orig.keySet());
-        Comparator<int[]> phraseRanker = (s1, s2) -> Double.compare(orig.get(s2), orig.get(s1));
+        Comparator<int[]> phraseRanker = (s1, s2) -> {
+            int c = Boolean.compare(preferred.contains(s2), preferred.contains(s1));
+            if (c == 0)
+                c = Double.compare(orig.get(s2), orig.get(s1));
+            return (c != 0) ? c : compareIDs(s1, s2);
+        };
         ranked.sort(phraseRanker);
         // return n topmost phrases
         int[][] topN = new int[Math.min(n, ranked.size())][];
@@ -332,15 +1918,34 @@ public class QuerySuggestor {
         return topN;
     }
 
+    /**
+     * Orders phrases with the same probability by their word ids, so that
+     * the results do not depend on the order of a hash map.
+     * @param p1 a phrase
+     * @param p2 another phrase
+     * @return the lexicographic order of their word ids
+     */
+    static int compareIDs(int[] p1, int[] p2) {
+        for (int i = 0; i < p1.length && i < p2.length; i++)
+            if (p1[i] != p2[i])
+                return Integer.compare(p1[i], p2[i]);
+        return Integer.compare(p1.length, p2.length);
+    }
+
     /**
      * Extracts the n completions with the highest correlation with
      * the given context.
      * @param orig the completions
      * @param n number of completions to return
-     * @param context
-     * @return
+     * @param edits the number of edits of the completions of mistyped
+     *              prefixes, whose correlations and tf-idfs are lowered by
+     *              EDIT_PENALTY per edit
+     * @param ctx the context
+     * @param trace the trace of this query
+     * @param deadline the deadline of this query
+     * @return the top n completions
      */
-    private TIntSet getTopNGivenContext(TIntSet orig, int n, int context) {
+    private TIntSet getTopNGivenContext(TIntSet orig, int n, TIntIntMap edits, Context ctx, QueryTrace trace, Deadline deadline) {
         // return original if it has n or less elements
         if (orig.size() <= n) return orig;
 
@@ -350,17 +1955,46 @@ public class QuerySuggestor {
 
         // sort completions according to completion query correlation or,
         // if the context is unknown, after their tf-idfs in descending order
-        if (context == -1) {
-            ranked.sort((s1, s2) -> Double.compare(unigrams.get(s2), unigrams.get(s1)));
+        if (!ctx.known) {
+            ranked.sort(byScore(weights(ranked, edits)));
         }
         else {
-            TIntList contextDocs = new TIntArrayList(docSets.get(context));
+            long postings = 0;
+            for (int c : ranked)
+                postings += correlationCost(c, ctx);
+            // with a budget, only correlate as many of the completions with
+            // the highest tf-idfs with the context as fit into its share
+            if (deadline.isSet()) {
+                long affordable = (long) (deadline.remaining() * RANKING_SHARE / nanosPerPosting);
+                if (postings > affordable) {
+                    ranked.sort(byScore(weights(ranked, edits)));
+                    int k = 0;
+                    postings = 0;
+                    while (k < ranked.size()) {
+                        long cost = correlationCost(ranked.get(k), ctx);
+                        if (k >= n && postings + cost > affordable)
+                            break;
+                        postings += cost;
+                        k++;
+                    }
+                    ranked = new ArrayList<>(ranked.subList(0, k));
+                    deadline.degrade(QueryTrace.Stage.COMPLETION_RANKING);
+                }
+            }
+
             TIntDoubleMap completionQueryCorrelation = new TIntDoubleHashMap();
+            long t = trace.now();
+            long start = System.nanoTime();
             for (int c : ranked) {
-                int[] docs = docSets.get(c);
-                completionQueryCorrelation.put(c, intersect(contextDocs, docs).size() / (double) docs.length);
+                deadline.checkCancelled();
+                double correlation = correlation(c, ctx);
+                if (edits.containsKey(c))
+                    correlation *= Math.pow(EDIT_PENALTY, edits.get(c));
+                completionQueryCorrelation.put(c, correlation);
             }
-            ranked.sort((s1, s2) -> Double.compare(completionQueryCorrelation.get(s2), completionQueryCorrelation.get(s1)));
+            calibrate(postings, System.nanoTime() - start);
+            trace.add(QueryTrace.Stage.INTERSECTION, t);
+            ranked.sort(byScore(completionQueryCorrelation));
         }
 
         // return n topmost completions
@@ -371,41 +2005,84 @@ public class QuerySuggestor {
     }
 
     /**
-     * Get string representations of the given n-grams and append
-     * the context.
-     * @param ngrams the n-grams
-     * @param context the context
-     * @return the n-grams with context as strings
+     * Orders completions by a score in descending order, and completions
+     * with the same score by their ids.
+     * @param scores the scores of the completions
+     * @return the comparator
      */
-    private List<String> translateNGrams(int[][] ngrams, String context) {
-        List<String> results = new ArrayList<>();
-        for (int i = 0; i < ngrams.length; i++)
-            results.add(translateNGram(ngrams[i], context));
-        return results;
+    static Comparator<Integer> byScore(TIntDoubleMap scores) {
+        return (s1, s2) -> {
+            int c = Double.compare(scores.get(s2), scores.get(s1));
+            return (c != 0) ? c : Integer.compare(s1, s2);
+        };
     }
 
     /**
-     * Get string representation of the given n-gram and append
-     * the context.
-     * @param ngram the n-gram
-     * @param context the context
-     * @return the n-gram with context as a string
+     * Converts phrases to suggestions with the context prepended unless
+     * they contain it, and adds them to a list unless a suggestion with
+     * the same words is already contained, until it has n suggestions.
+     * @param results the list of suggestions
+     * @param ngrams the phrases, most probable first
+     * @param phrases the phrases with their probabilities
+     * @param context the word preceding the last query term
+     * @param contextID its id, -1 if there is no corresponding unigram
+     * @param n the number of suggestions to make
      */
-    private String translateNGram(int[] ngram, String context) {
-        StringBuilder s = new StringBuilder();
-        // stores whether the context is already included in the phrase
-        boolean hasContext = false;
-        for (int id : ngram) {
-            String word = IDToWord.get(id);
-            if (word.equals(context))
-                hasContext = true;
-            s.append(' ').append(word);
+    private void addDistinct(List<Suggestion> results, int[][] ngrams, TObjectDoubleMap<int[]> phrases, String context, int contextID, int n) {
+        int prefixID = context.isEmpty() ? Suggestion.NO_PREFIX : getContextWordID(ngrams, context, contextID);
+        for (int i = 0; i < ngrams.length && results.size() < n; i++) {
+            int[] ngram = ngrams[i];
+            boolean hasContext = false;
+            for (int id : ngram)
+                if (id == prefixID)
+                    hasContext = true;
+            Suggestion suggestion = (hasContext || context.isEmpty())
+                    ? new Suggestion(ngram, phrases.get(ngram), "", Suggestion.NO_PREFIX, hasContext, IDToWord)
+                    : new Suggestion(ngram, phrases.get(ngram), context, prefixID, false, IDToWord);
+            if (!containsText(results, suggestion))
+                results.add(suggestion);
         }
-        // only append context if it is not already contained in the phrase
-        if (hasContext || context.isEmpty())
-            return s.deleteCharAt(0).toString();
-        else
-            return s.insert(0, context).toString();
+    }
+
+    /**
+     * Finds the id of the context among the words of the phrases. Only a
+     * context that is no unigram is compared with the words by its text.
+     * @param ngrams the phrases
+     * @param context the word preceding the last query term, not empty
+     * @param contextID its id, -1 if there is no corresponding unigram
+     * @return the id of the context, Suggestion.UNKNOWN_WORD if it is no
+     * unigram and none of the phrases contains it
+     */
+    private int getContextWordID(int[][] ngrams, String context, int contextID) {
+        if (contextID != -1) return contextID;
+        for (int[] ngram : ngrams)
+            for (int id : ngram)
+                if (IDToWord.get(id).equals(context))
+                    return id;
+        return Suggestion.UNKNOWN_WORD;
+    }
+
+    /**
+     * @param suggestions a list of suggestions
+     * @param suggestion a suggestion
+     * @return whether the list contains a suggestion with the same text
+     */
+    private static boolean containsText(List<Suggestion> suggestions, Suggestion suggestion) {
+        for (Suggestion s : suggestions)
+            if (s.sameText(suggestion))
+                return true;
+        return false;
+    }
+
+    /**
+     * @param suggestions suggestions
+     * @return their texts
+     */
+    private static List<String> texts(List<Suggestion> suggestions) {
+        List<String> texts = new ArrayList<>(suggestions.size());
+        for (Suggestion suggestion : suggestions)
+            texts.add(suggestion.getText());
+        return texts;
     }
 
     /**
@@ -426,55 +2103,217 @@ public class QuerySuggestor {
         int fav = -1;
         for (TIntIterator iter = completions.iterator(); iter.hasNext(); ) {
             int compl = iter.next();
-            if (fav == -1 || freqs.get(compl) > freqs.get(fav))
+            if (fav == -1 || freqs.get(compl) > freqs.get(fav) || (freqs.get(compl) == freqs.get(fav) && compl < fav))
                 fav = compl;
         }
         return fav;
     }
 
     /**
-     * Removes duplicate entries from a list. Modifies the given list.
-     * @param l the list
-     * @return the list without duplicate entries
+     * The word preceding the last query term, resolved to its id and
+     * docset once per query or group of queries.
      */
-    private List<String> removeDuplicates(List<String> l) {
-        Set<String> noDuplicates = new LinkedHashSet<>(l);
-        l.clear();
-        l.addAll(noDuplicates);
-        return l;
+    private class Context {
+        // the context
+        private final String word;
+        // its id, -1 if there is no corresponding unigram
+        private final int id;
+        // its docset, or the documents shared by all context terms of a
+        // query; null if unknown
+        private final int[] docs;
+        // whether completions and phrases are correlated with the context
+        private final boolean known;
+        // its docset as a bit set, if built
+        private BitSet docBits;
+        // the sketch of its docset, if built
+        private DocSketch sketch;
+
+        private Context(String word) {
+            this(word, unigramToID.get(word));
+        }
+
+        private Context(String word, int id) {
+            this(word, id, (id == -1) ? null : docSets.get(id));
+        }
+
+        /**
+         * @param word the word preceding the last query term
+         * @param id its id, -1 if there is no corresponding unigram
+         * @param docs the documents shared by all context terms, null if
+         *             none of them has a docset
+         */
+        private Context(String word, int id, int[] docs) {
+            this.word = word;
+            this.id = id;
+            this.docs = docs;
+            this.known = id != -1 || docs != null;
+        }
+
+        /**
+         * Stores the docset in a bit set, so that intersections only take
+         * time linear in the size of the other list.
+         */
+        private void buildBitSet() {
+            if (docs == null || docBits != null) return;
+            docBits = new BitSet(docs[docs.length-1]+1);
+            for (int doc : docs)
+                docBits.set(doc);
+        }
+
+        /**
+         * @return the sketch of the docset, null if correlations are not
+         * estimated from sketches or it has fewer documents than the
+         * sketch cutoff; the sketch of the documents shared by several
+         * context terms is built on first use
+         */
+        private DocSketch sketch() {
+            if (sketch == null && docs != null && sketches != null && docs.length >= sketchCutoff) {
+                DocSketch stored = (id == -1) ? null : getSketch(id);
+                sketch = (stored != null && docs == docSets.get(id)) ? stored : new DocSketch(docs, sketchSize);
+            }
+            return sketch;
+        }
+
+        /**
+         * @return the number of postings of the context visited when
+         * counting the documents it shares with a sorted list
+         */
+        private long cost() {
+            if (docs == null)
+                return 0;
+            return (docBits != null) ? 0 : docs.length;
+        }
+
+        /**
+         * Counts the documents shared by this context and a sorted list.
+         * @param l sorted integer list
+         * @return the size of the intersection, the size of the list if
+         * the context has no docset
+         */
+        private int countCommon(TIntList l) {
+            if (docs == null)
+                return l.size();
+            int common = 0;
+            if (docBits != null) {
+                for (int i = 0; i < l.size(); i++)
+                    if (docBits.get(l.get(i))) common++;
+                return common;
+            }
+            int i = 0;
+            int j = 0;
+            while (i != l.size() && j != docs.length) {
+                if (l.get(i) == docs[j]) {
+                    common++;
+                    i++;
+                    j++;
+                }
+                else if (l.get(i) < docs[j])
+                    i++;
+                else
+                    j++;
+            }
+            return common;
+        }
+
+        /**
+         * Counts the documents shared by this context and a sorted array.
+         * @param a sorted integer array
+         * @return the size of the intersection, the size of the array if
+         * the context has no docset
+         */
+        private int countCommon(int[] a) {
+            return countCommon(TIntArrayList.wrap(a));
+        }
     }
 
 
     /**
-     * A representation of an n-gram with its normalized frequency.
+     * A lower bound of the probability of the k-th most probable phrase
+     * found so far. Each phrase is added once, with the probability it was
+     * first found with, so that the bound never exceeds the k-th highest
+     * probability even if a phrase is found again with a higher one.
      */
-    private class NGram {
-        private int[] ngram;
-        private double freq;
+    private static class PhraseBound {
+        // the number of top phrases
+        private final int k;
+        // the k highest probabilities added, the lowest first
+        private final PriorityQueue<Double> top;
 
-        public NGram(int[] ngram, double freq) {
-            this.ngram = ngram;
-            this.freq = freq;
+        public PhraseBound(int k) {
+            this.k = k;
+            this.top = new PriorityQueue<>();
         }
 
-        public boolean contains(int word) {
-            for (int w : ngram)
-                if (w == word) return true;
-            return false;
+        /**
+         * @param probability the probability of a phrase found for the first time
+         */
+        public void add(double probability) {
+            if (top.size() < k)
+                top.add(probability);
+            else if (k > 0 && probability > top.peek()) {
+                top.poll();
+                top.add(probability);
+            }
+        }
+
+        /**
+         * @return the lowest probability among the top k phrases, 0 while
+         * fewer than k phrases were found, infinity if k is 0
+         */
+        public double get() {
+            if (top.size() < k)
+                return 0;
+            return top.isEmpty() ? Double.POSITIVE_INFINITY : top.peek();
         }
+    }
 
-        @Override
-        public boolean equals(Object other) {
-            if (other instanceof NGram) {
-                NGram otherNGram = (NGram) other;
-                return this.freq == otherNGram.freq && Arrays.equals(this.ngram, otherNGram.ngram);
+    /**
+     * The phrases of a completion in descending order of their term to
+     * phrase probability, and the position of the next one to score.
+     */
+    private class PhraseCursor {
+        // the nodes of the n-grams containing the completion
+        private final TIntList extensions;
+        // their term to phrase probabilities
+        private final double[] probabilities;
+        // the probability of the completion
+        private final double termCompletionProbability;
+        // the position of the next n-gram
+        private int next;
+
+        /**
+         * @param completion a completion with n-grams
+         * @param termCompletionProbability the probability of the completion
+         */
+        public PhraseCursor(int completion, double termCompletionProbability) {
+            TIntList extensions = ngrams.get(completion);
+            double[] probabilities = phraseProbabilities.get(completion);
+            // a list changed since sortNGrams() is sorted for this query only
+            if (probabilities == null) {
+                extensions = new TIntArrayList(extensions);
+                probabilities = sortByProbability(completion, extensions);
             }
-            return false;
+            this.extensions = extensions;
+            this.probabilities = probabilities;
+            this.termCompletionProbability = termCompletionProbability;
+        }
+
+        public boolean hasNext() {
+            return next < extensions.size();
+        }
+
+        /**
+         * @return the phrase selection probability of the next n-gram
+         */
+        public double nextProbability() {
+            return termCompletionProbability * probabilities[next];
         }
 
-        @Override
-        public int hashCode() {
-            return (13 + Arrays.hashCode(ngram)) * (31 + Double.hashCode(freq)) + 11;
+        /**
+         * @return the node of the next n-gram
+         */
+        public int next() {
+            return extensions.get(next++);
         }
     }
 }
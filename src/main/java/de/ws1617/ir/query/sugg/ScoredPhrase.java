@@ -0,0 +1,44 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+/**
+ * A phrase as word ids with its probability, as returned by a shard of a
+ * sharded index.
+ */
+public class ScoredPhrase {
+
+    // the word ids of the phrase
+    private final int[] ngram;
+    // its probability
+    private final double score;
+    // whether it is ranked above all phrases that are not, regardless of
+    // its probability (see QuerySuggestor.setPairIndex())
+    private final boolean preferred;
+
+
+    public ScoredPhrase(int[] ngram, double score) {
+        this(ngram, score, false);
+    }
+
+    public ScoredPhrase(int[] ngram, double score, boolean preferred) {
+        this.ngram = ngram;
+        this.score = score;
+        this.preferred = preferred;
+    }
+
+    public int[] getNGram() {
+        return ngram;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public boolean isPreferred() {
+        return preferred;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps track of the running query of each session, e.g. of each search
+ * box, and cancels it when the session starts another query. When a user
+ * types quickly, the queries for "wi", "wik" and "wiki" arrive back to
+ * back, and only the suggestions for the last one are still needed. It
+ * also keeps the context caches of the recently active sessions, so that
+ * the documents shared by their context terms are not intersected again
+ * for every keystroke.
+ */
+public class Sessions {
+
+    // the default number of sessions whose context cache is kept
+    public static final int DEFAULT_MAX_CONTEXTS = 10000;
+
+    // the cancellation token of the running query of each session
+    private final ConcurrentMap<String, CancellationToken> running;
+    // the context cache of each session, least recently used first
+    private final Map<String, ContextCache> contexts;
+
+
+    public Sessions() {
+        this(DEFAULT_MAX_CONTEXTS);
+    }
+
+    /**
+     * @param maxContexts the number of sessions whose context cache is
+     *                    kept; the least recently used ones are dropped
+     */
+    public Sessions(int maxContexts) {
+        this.running = new ConcurrentHashMap<>();
+        this.contexts = Collections.synchronizedMap(new LinkedHashMap<String, ContextCache>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ContextCache> eldest) {
+                return size() > maxContexts;
+            }
+        });
+    }
+
+    /**
+     * Starts a query of a session and cancels its previous query if that
+     * is still running.
+     * @param session the id of the session
+     * @return the cancellation token of the new query
+     */
+    public CancellationToken start(String session) {
+        CancellationToken token = new CancellationToken();
+        CancellationToken previous = running.put(session, token);
+        if (previous != null)
+            previous.cancel();
+        return token;
+    }
+
+    /**
+     * Ends a query of a session, unless it has already been superseded.
+     * @param session the id of the session
+     * @param token the cancellation token of the query
+     */
+    public void finish(String session, CancellationToken token) {
+        running.remove(session, token);
+    }
+
+    /**
+     * @param session the id of the session
+     * @return the context cache of the session
+     */
+    public ContextCache getContextCache(String session) {
+        return contexts.computeIfAbsent(session, s -> new ContextCache());
+    }
+
+    /**
+     * Drops the context caches of all sessions, e.g. after the index has
+     * been replaced, since their intersections refer to the docsets of
+     * the old index.
+     */
+    public void clearContextCaches() {
+        synchronized (contexts) {
+            for (ContextCache cache : contexts.values())
+                cache.clear();
+            contexts.clear();
+        }
+    }
+
+    /**
+     * @return the number of sessions with a running query
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Retrieves suggestions for a query of a session asynchronously, and
+     * cancels the previous query of the session.
+     * @param q the QuerySuggestor
+     * @param session the id of the session
+     * @param query the query
+     * @param n the number of suggestions to make
+     * @param executor the executor to run the query on
+     * @return a future with the top n suggestions without the greater
+     * context, which is cancelled if the session starts another query
+     * before this one finished
+     */
+    public CompletableFuture<List<String>> suggestAsync(QuerySuggestor q, String session, Query query, int n, Executor executor) {
+        CancellationToken token = start(session);
+        if (query.getLastTerm().isEmpty()) {
+            finish(session, token);
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        CompletableFuture<List<String>> future = q.suggestAsync(SuggestRequest.of(query, n), getContextCache(session), executor, token);
+        future.whenComplete((results, e) -> finish(session, token));
+        return future;
+    }
+}
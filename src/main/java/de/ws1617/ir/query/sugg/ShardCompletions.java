@@ -0,0 +1,59 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+/**
+ * The completions of a partial term in one shard of a sharded index: their
+ * total number and the best of them with the score they are ranked by, their
+ * tf-idf and their number of phrases, so that the coordinator can select the
+ * completions of all shards and sum their tf-idfs.
+ */
+public class ShardCompletions {
+
+    // the number of completions in this shard
+    private final int total;
+    // the best completions, ordered by score
+    private final int[] ids;
+    // their correlation with the context, or their tf-idf without context
+    private final double[] scores;
+    // their tf-idfs
+    private final double[] weights;
+    // their numbers of phrases
+    private final int[] phrases;
+
+
+    public ShardCompletions(int total, int[] ids, double[] scores, double[] weights, int[] phrases) {
+        this.total = total;
+        this.ids = ids;
+        this.scores = scores;
+        this.weights = weights;
+        this.phrases = phrases;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getID(int i) {
+        return ids[i];
+    }
+
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    public double getWeight(int i) {
+        return weights[i];
+    }
+
+    public int getPhrases(int i) {
+        return phrases[i];
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import de.ws1617.ir.query.Main;
+import de.ws1617.ir.query.load.Keystrokes;
+import de.ws1617.ir.query.metrics.MemoryReport;
+import de.ws1617.ir.query.preproc.DataCompressor;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reports the accuracy and latency of correlations estimated from
+ * sketches of the docsets (see QuerySuggestor.setSketches()) compared to
+ * exact ones. It first correlates random pairs of docsets with at least
+ * the cutoff number of documents both ways, and then replays synthesized
+ * keystrokes (see Keystrokes) with a context against the same index with
+ * and without sketches. It accepts input of the form:
+ *
+ * -data <data folder> -sketches <size>/<cutoff> -pairs <n> -queries <n> -seed <n>
+ */
+public class SketchReport {
+
+    // the number of suggestions
+    private static final int NO_OF_RESULTS = 10;
+
+
+    public static void main(String[] args) {
+        String data = Main.DATA_DIR;
+        int size = 128;
+        int cutoff = 1024;
+        int pairs = 10000;
+        int queries = 1000;
+        long seed = 42;
+        // read provided arguments
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-data": data = args[++i]; break;
+                case "-sketches":
+                    String[] split = args[++i].split("/");
+                    size = Integer.parseInt(split[0]);
+                    cutoff = Integer.parseInt(split[1]);
+                    break;
+                case "-pairs": pairs = Integer.parseInt(args[++i]); break;
+                case "-queries": queries = Integer.parseInt(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default:
+                    System.err.println("Unknown parameter " + args[i] + ".");
+                    printParameters();
+                    System.exit(1);
+            }
+        }
+        if (!data.endsWith(File.separator))
+            data += File.separator;
+
+        try {
+            comparePairs(data, size, cutoff, pairs, seed);
+            compareQueries(data, size, cutoff, queries, seed);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Correlates random pairs of large docsets exactly and from their
+     * sketches, and prints the errors of the estimates and the time per
+     * correlation.
+     * @param data the data folder
+     * @param size the number of hashes per sketch
+     * @param cutoff the minimum number of documents of the docsets
+     * @param pairs the number of pairs
+     * @param seed the seed of the random generator
+     * @throws IOException if the docsets cannot be read
+     */
+    private static void comparePairs(String data, int size, int cutoff, int pairs, long seed) throws IOException {
+        List<int[]> large = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(data + "docsets")))) {
+            DataCompressor.DocSetFileIterator iter = DataCompressor.docSetIterator(in);
+            while (iter.advance())
+                if (iter.getDocs().length >= cutoff)
+                    large.add(iter.getDocs());
+        }
+        System.out.printf("%d docsets with at least %d documents%n", large.size(), cutoff);
+        if (large.size() < 2)
+            return;
+        List<DocSketch> sketches = new ArrayList<>();
+        for (int[] docs : large)
+            sketches.add(new DocSketch(docs, size));
+
+        Random random = new Random(seed);
+        double correlationError = 0;
+        double sizeError = 0;
+        int nonEmpty = 0;
+        long exactNanos = 0;
+        long sketchNanos = 0;
+        for (int i = 0; i < pairs; i++) {
+            int a = random.nextInt(large.size());
+            int b = random.nextInt(large.size() - 1);
+            if (b >= a) b++;
+            long start = System.nanoTime();
+            int common = countCommon(large.get(a), large.get(b));
+            long middle = System.nanoTime();
+            List<DocSketch> set = Collections.singletonList(sketches.get(b));
+            double estimate = DocSketch.correlation(sketches.get(a), set);
+            sketchNanos += System.nanoTime() - middle;
+            exactNanos += middle - start;
+
+            double correlation = common / (double) large.get(b).length;
+            correlationError += Math.abs((Double.isNaN(estimate) ? 0 : estimate) - correlation);
+            if (common > 0) {
+                double estimatedSize = DocSketch.intersectionSize(Arrays.asList(sketches.get(a), sketches.get(b)));
+                sizeError += Math.abs(estimatedSize - common) / common;
+                nonEmpty++;
+            }
+        }
+        System.out.printf("%d pairs: mean absolute error of the correlation %.4f, mean relative error of the intersection size %.3f (%d non-empty)%n",
+                pairs, correlationError / pairs, sizeError / Math.max(1, nonEmpty), nonEmpty);
+        System.out.printf("per pair: exact %.2f us, sketches of %d hashes %.2f us%n",
+                exactNanos / 1e3 / pairs, size, sketchNanos / 1e3 / pairs);
+    }
+
+    /**
+     * Replays synthesized keystrokes with a context with and without
+     * sketches, and prints how many suggestions change and the mean
+     * latencies.
+     * @param data the data folder
+     * @param size the number of hashes per sketch
+     * @param cutoff the minimum number of documents of the docsets whose
+     *               correlations are estimated
+     * @param queries the number of synthesized queries
+     * @param seed the seed of the query synthesis
+     * @throws IOException if the index cannot be read
+     */
+    private static void compareQueries(String data, int size, int cutoff, int queries, long seed) throws IOException {
+        QuerySuggestor q = Main.read(data);
+        List<Query> withContext = new ArrayList<>();
+        for (String keystroke : Keystrokes.synthesize(data, queries, seed)) {
+            Query query = Query.parse(keystroke);
+            if (!query.getContext().isEmpty())
+                withContext.add(query);
+        }
+
+        q.setSketches(0, cutoff);
+        List<List<String>> exact = new ArrayList<>();
+        long exactNanos = replay(q, withContext, exact);
+        q.setSketches(size, cutoff);
+        List<List<String>> estimated = new ArrayList<>();
+        long sketchNanos = replay(q, withContext, estimated);
+
+        int differ = 0;
+        double overlap = 0;
+        for (int i = 0; i < exact.size(); i++) {
+            if (!exact.get(i).equals(estimated.get(i)))
+                differ++;
+            Set<String> shared = new HashSet<>(exact.get(i));
+            shared.retainAll(estimated.get(i));
+            overlap += exact.get(i).isEmpty() ? 1 : shared.size() / (double) exact.get(i).size();
+        }
+        int n = Math.max(1, exact.size());
+        System.out.printf("%d queries with a context: %d differ, mean overlap of the top %d %.3f%n",
+                exact.size(), differ, NO_OF_RESULTS, overlap / n);
+        System.out.printf("mean latency: exact %.3f ms, sketches %.3f ms%n", exactNanos / 1e6 / n, sketchNanos / 1e6 / n);
+        MemoryReport report = q.memoryReport();
+        for (String name : Arrays.asList(MemoryReport.POSTINGS, MemoryReport.SKETCHES)) {
+            MemoryReport.Structure structure = report.getStructure(name);
+            if (structure != null)
+                System.out.printf("%s: %d %s, %.1f MB%n", name, structure.getEntries(), structure.getUnit(),
+                        structure.getBytes() / 1048576.0);
+        }
+    }
+
+    /**
+     * Makes suggestions for queries twice, the first time to warm up.
+     * @param q the index
+     * @param queries the queries
+     * @param suggestions the list to add the suggestions for each query to
+     * @return the time the second time took in ns
+     */
+    private static long replay(QuerySuggestor q, List<Query> queries, List<List<String>> suggestions) {
+        for (Query query : queries)
+            query.suggest(q, NO_OF_RESULTS);
+        long start = System.nanoTime();
+        for (Query query : queries)
+            suggestions.add(query.suggest(q, NO_OF_RESULTS));
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @param a sorted integer array
+     * @param b sorted integer array
+     * @return the number of elements contained in both arrays
+     */
+    private static int countCommon(int[] a, int[] b) {
+        int common = 0;
+        int i = 0;
+        int j = 0;
+        while (i != a.length && j != b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            }
+            else if (a[i] < b[j])
+                i++;
+            else
+                j++;
+        }
+        return common;
+    }
+
+    /**
+     * Prints information about this program.
+     */
+    private static void printParameters() {
+        System.err.println("Applicable parameters:");
+        System.err.println("\t-data: Folder with the data files (optional, default: src/main/resources/)");
+        System.err.println("\t-sketches: Hashes per sketch and minimum documents of sketched docsets, e.g. 128/1024 (optional, default: 128/1024)");
+        System.err.println("\t-pairs: Number of random pairs of docsets to correlate (optional, default: 10000)");
+        System.err.println("\t-queries: Number of synthesized queries, each replayed keystroke by keystroke (optional, default: 1000)");
+        System.err.println("\t-seed: Seed of the random pairs and the query synthesis (optional, default: 42)");
+    }
+
+}
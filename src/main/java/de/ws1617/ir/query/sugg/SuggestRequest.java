@@ -0,0 +1,76 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single query in a batch of queries for QuerySuggestor.querySuggestBatch(),
+ * or a query that can be cancelled (see QuerySuggestor.suggest()).
+ */
+public class SuggestRequest {
+
+    // the query terms preceding the last query term, in order
+    private final List<String> context;
+    // the last query term
+    private final String term;
+    // whether the last query term is complete
+    private final boolean complete;
+    // the number of suggestions to make
+    private final int n;
+
+
+    public SuggestRequest(String context, String term, boolean complete, int n) {
+        this(context.isEmpty() ? Collections.emptyList() : Collections.singletonList(context), term, complete, n);
+    }
+
+    /**
+     * @param context the query terms preceding the last query term, in order
+     * @param term the last query term
+     * @param complete whether the last query term is complete
+     * @param n the number of suggestions to make
+     */
+    public SuggestRequest(List<String> context, String term, boolean complete, int n) {
+        this.context = Collections.unmodifiableList(new ArrayList<>(context));
+        this.term = term;
+        this.complete = complete;
+        this.n = n;
+    }
+
+    /**
+     * @param query a parsed query
+     * @param n the number of suggestions to make
+     * @return a request for the last term and all context terms of the query
+     */
+    public static SuggestRequest of(Query query, int n) {
+        return new SuggestRequest(query.getContextTerms(), query.getLastTerm(), query.isComplete(), n);
+    }
+
+    /**
+     * @return the word preceding the last query term, empty if there is none
+     */
+    public String getContext() {
+        return context.isEmpty() ? "" : context.get(context.size() - 1);
+    }
+
+    public List<String> getContextTerms() {
+        return context;
+    }
+
+    public String getTerm() {
+        return term;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getN() {
+        return n;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.List;
+
+/**
+ * The suggestions for a query with a time budget. If the budget did not
+ * suffice for the complete computation, the suggestions are the best ones
+ * found in time and are marked as degraded.
+ */
+public class SuggestResult {
+
+    // the suggestions
+    private final List<String> suggestions;
+    // whether the suggestions were computed with a cheaper strategy or
+    // stopped early to meet the deadline
+    private final boolean degraded;
+
+
+    public SuggestResult(List<String> suggestions, boolean degraded) {
+        this.suggestions = suggestions;
+        this.degraded = degraded;
+    }
+
+    public List<String> getSuggestions() {
+        return suggestions;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+}
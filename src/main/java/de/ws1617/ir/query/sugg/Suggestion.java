@@ -0,0 +1,134 @@
+/*
+ * Author: Thora Daneyko, 3822667
+ * Honor Code:  I pledge that this program represents my own work.
+ */
+
+package de.ws1617.ir.query.sugg;
+
+import java.util.List;
+
+/**
+ * A suggestion as the word ids of its phrase with its probability. The
+ * word preceding the last query term is prepended to the phrase unless
+ * the phrase already contains it. The text of the suggestion is only
+ * looked up in the dictionary when it is first asked for, so that
+ * suggestions can be ranked and deduplicated by their ids.
+ */
+public class Suggestion {
+
+    // the id of a prepended word that occurs in none of the phrases
+    static final int UNKNOWN_WORD = -2;
+    // the value of prefixID if no word is prepended
+    static final int NO_PREFIX = -1;
+
+    // the word ids of the phrase
+    private final int[] ngram;
+    // its probability
+    private final double score;
+    // the word prepended to the phrase, empty if none
+    private final String prefix;
+    // the id of the prepended word, UNKNOWN_WORD if it has none and
+    // NO_PREFIX if no word is prepended
+    private final int prefixID;
+    // whether the phrase contains the word preceding the last query term
+    private final boolean contextIncluded;
+    // the dictionary the word ids refer to
+    private final List<String> IDToWord;
+    // the text, null until it is first asked for
+    private String text;
+
+
+    /**
+     * @param ngram the word ids of the phrase
+     * @param score its probability
+     * @param prefix the word prepended to the phrase, empty if none
+     * @param prefixID the id of the prepended word, UNKNOWN_WORD if it has
+     *                 none and NO_PREFIX if no word is prepended
+     * @param contextIncluded whether the phrase contains the word
+     *                        preceding the last query term
+     * @param IDToWord the dictionary the word ids refer to
+     */
+    Suggestion(int[] ngram, double score, String prefix, int prefixID, boolean contextIncluded, List<String> IDToWord) {
+        this.ngram = ngram;
+        this.score = score;
+        this.prefix = prefix;
+        this.prefixID = prefixID;
+        this.contextIncluded = contextIncluded;
+        this.IDToWord = IDToWord;
+    }
+
+    public int[] getNGram() {
+        return ngram;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * @return the word prepended to the phrase, empty if none
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return whether the phrase contains the word preceding the last
+     * query term, so that it is not prepended
+     */
+    public boolean isContextIncluded() {
+        return contextIncluded;
+    }
+
+    /**
+     * @return the words of the phrase separated by spaces, preceded by
+     * the prepended word
+     */
+    public String getText() {
+        if (text == null) {
+            StringBuilder s = new StringBuilder(prefix);
+            for (int i = 0; i < ngram.length; i++) {
+                if (i > 0 || !prefix.isEmpty()) s.append(' ');
+                s.append(IDToWord.get(ngram[i]));
+            }
+            text = s.toString();
+        }
+        return text;
+    }
+
+    /**
+     * Compares the word ids of two suggestions including their prepended
+     * words, which is the same as comparing their texts.
+     * @param other another suggestion with the same dictionary
+     * @return whether both suggestions have the same text
+     */
+    boolean sameText(Suggestion other) {
+        int length = length();
+        if (length != other.length()) return false;
+        for (int i = 0; i < length; i++)
+            if (wordAt(i) != other.wordAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the number of words including the prepended word
+     */
+    private int length() {
+        return (prefixID == NO_PREFIX) ? ngram.length : ngram.length + 1;
+    }
+
+    /**
+     * @param i a position including the prepended word
+     * @return the id of the word at that position
+     */
+    private int wordAt(int i) {
+        if (prefixID == NO_PREFIX) return ngram[i];
+        return (i == 0) ? prefixID : ngram[i - 1];
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}